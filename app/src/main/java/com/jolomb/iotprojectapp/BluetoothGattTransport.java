@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jolomb.iotprojectapp;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothManager;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * {@code GattTransport} on top of {@code android.bluetooth.BluetoothGatt}.
+ */
+class BluetoothGattTransport implements GattTransport {
+    private final static String TAG = BluetoothGattTransport.class.getSimpleName();
+
+    private final Context mContext;
+    private final BluetoothDevice mDevice;
+    private final Callback mCallback;
+
+    private BluetoothGatt mBluetoothGatt;
+    private volatile List<GattServiceInfo> mServices = Collections.emptyList();
+
+    BluetoothGattTransport(Context context, BluetoothDevice device, Callback callback) {
+        mContext = context;
+        mDevice = device;
+        mCallback = callback;
+    }
+
+    // Translates the BluetoothGatt callbacks into transport callbacks.
+    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                mCallback.onConnectionStateChange(status, true);
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                mCallback.onConnectionStateChange(status, false);
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mServices = describe(gatt.getServices());
+            }
+            mCallback.onServicesDiscovered(status);
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt,
+                                         BluetoothGattCharacteristic characteristic,
+                                         int status) {
+            mCallback.onCharacteristicRead(characteristic.getUuid(), status,
+                    copyValue(characteristic.getValue()));
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt,
+                                          BluetoothGattCharacteristic characteristic,
+                                          int status) {
+            mCallback.onCharacteristicWrite(characteristic.getUuid(), status);
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                                      int status) {
+            mCallback.onDescriptorWrite(descriptor.getCharacteristic().getUuid(),
+                    descriptor.getUuid(), status);
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            mCallback.onMtuChanged(mtu, status);
+        }
+
+        @Override
+        public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            mCallback.onPhyUpdate(txPhy, rxPhy, status);
+        }
+
+        // Hidden in the SDK but called by the stack on every connection parameter update,
+        // hence no @Override.
+        public void onConnectionUpdated(BluetoothGatt gatt, int interval, int latency,
+                                        int timeout, int status) {
+            mCallback.onConnectionUpdated(interval, latency, timeout, status);
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt,
+                                            BluetoothGattCharacteristic characteristic) {
+            mCallback.onCharacteristicChanged(characteristic.getUuid(),
+                    copyValue(characteristic.getValue()));
+        }
+    };
+
+    private static byte[] copyValue(byte[] value) {
+        return value == null ? null : value.clone();
+    }
+
+    private static List<GattServiceInfo> describe(List<BluetoothGattService> gattServices) {
+        final List<GattServiceInfo> services = new ArrayList<GattServiceInfo>();
+        for (BluetoothGattService gattService : gattServices) {
+            final List<GattCharacteristicInfo> characteristics =
+                    new ArrayList<GattCharacteristicInfo>();
+            for (BluetoothGattCharacteristic characteristic : gattService.getCharacteristics()) {
+                final List<UUID> descriptors = new ArrayList<UUID>();
+                for (BluetoothGattDescriptor descriptor : characteristic.getDescriptors()) {
+                    descriptors.add(descriptor.getUuid());
+                }
+                characteristics.add(new GattCharacteristicInfo(gattService.getUuid(),
+                        characteristic.getUuid(), characteristic.getProperties(), descriptors));
+            }
+            services.add(new GattServiceInfo(gattService.getUuid(), characteristics));
+        }
+        return services;
+    }
+
+    @Override
+    public String getAddress() {
+        return mDevice.getAddress();
+    }
+
+    @Override
+    public synchronized boolean connect() {
+        // Previously connected device.  Try to reconnect.  This is a background connection,
+        // see ReconnectPolicy.DisconnectCause#reusesTransport() for what that costs.
+        if (mBluetoothGatt != null) {
+            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
+            return mBluetoothGatt.connect();
+        }
+
+        // We want to directly connect to the device, so we are setting the autoConnect
+        // parameter to false.
+        mBluetoothGatt = mDevice.connectGatt(mContext, false, mGattCallback);
+        Log.d(TAG, "Trying to create a new connection.");
+        return mBluetoothGatt != null;
+    }
+
+    @Override
+    public synchronized void disconnect() {
+        if (mBluetoothGatt == null) {
+            return;
+        }
+        mBluetoothGatt.disconnect();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (mBluetoothGatt == null) {
+            return;
+        }
+        mBluetoothGatt.close();
+        mBluetoothGatt = null;
+        mServices = Collections.emptyList();
+    }
+
+    @Override
+    public boolean isBonded() {
+        return mDevice.getBondState() == BluetoothDevice.BOND_BONDED;
+    }
+
+    @Override
+    public synchronized boolean discoverServices() {
+        return mBluetoothGatt != null && mBluetoothGatt.discoverServices();
+    }
+
+    @Override
+    public synchronized List<GattServiceInfo> getServices() {
+        if (mServices.isEmpty() && mBluetoothGatt != null
+                && !mBluetoothGatt.getServices().isEmpty()) {
+            // Services still held by a reused BluetoothGatt.
+            mServices = describe(mBluetoothGatt.getServices());
+        }
+        return mServices;
+    }
+
+    @Override
+    public synchronized boolean readCharacteristic(UUID serviceUuid, UUID characteristicUuid) {
+        final BluetoothGattCharacteristic characteristic =
+                findCharacteristic(serviceUuid, characteristicUuid);
+        return characteristic != null && mBluetoothGatt.readCharacteristic(characteristic);
+    }
+
+    @Override
+    public synchronized boolean writeCharacteristic(UUID serviceUuid, UUID characteristicUuid,
+                                                    byte[] value) {
+        final BluetoothGattCharacteristic characteristic =
+                findCharacteristic(serviceUuid, characteristicUuid);
+        if (characteristic == null) {
+            return false;
+        }
+        characteristic.setValue(value);
+        return mBluetoothGatt.writeCharacteristic(characteristic);
+    }
+
+    @Override
+    public synchronized boolean writeCharacteristicWithoutResponse(UUID serviceUuid,
+                                                                   UUID characteristicUuid,
+                                                                   byte[] value) {
+        final BluetoothGattCharacteristic characteristic =
+                findCharacteristic(serviceUuid, characteristicUuid);
+        if (characteristic == null) {
+            return false;
+        }
+        final int writeType = characteristic.getWriteType();
+        characteristic.setValue(value);
+        characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        try {
+            return mBluetoothGatt.writeCharacteristic(characteristic);
+        } finally {
+            // The write type sticks to the shared characteristic object.
+            characteristic.setWriteType(writeType);
+        }
+    }
+
+    @Override
+    public synchronized boolean setCharacteristicNotification(UUID serviceUuid,
+                                                              UUID characteristicUuid,
+                                                              boolean enabled) {
+        final BluetoothGattCharacteristic characteristic =
+                findCharacteristic(serviceUuid, characteristicUuid);
+        return characteristic != null
+                && mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
+    }
+
+    @Override
+    public synchronized boolean writeDescriptor(UUID serviceUuid, UUID characteristicUuid,
+                                                UUID descriptorUuid, byte[] value) {
+        final BluetoothGattCharacteristic characteristic =
+                findCharacteristic(serviceUuid, characteristicUuid);
+        if (characteristic == null) {
+            return false;
+        }
+        final BluetoothGattDescriptor descriptor = characteristic.getDescriptor(descriptorUuid);
+        if (descriptor == null) {
+            return false;
+        }
+        descriptor.setValue(value);
+        return mBluetoothGatt.writeDescriptor(descriptor);
+    }
+
+    @Override
+    public synchronized boolean requestMtu(int mtu) {
+        return mBluetoothGatt != null && mBluetoothGatt.requestMtu(mtu);
+    }
+
+    @Override
+    public synchronized boolean requestConnectionPriority(int priority) {
+        return mBluetoothGatt != null && mBluetoothGatt.requestConnectionPriority(priority);
+    }
+
+    @Override
+    public synchronized boolean setPreferredPhy(int txPhyMask, int rxPhyMask, int phyOptions) {
+        if (mBluetoothGatt == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            return false;
+        }
+        final BluetoothAdapter adapter =
+                ((BluetoothManager) mContext.getSystemService(Context.BLUETOOTH_SERVICE))
+                        .getAdapter();
+        // Asking for 2M on a controller without it would only fail later.
+        if ((txPhyMask & LinkProfile.PHY_LE_2M_MASK) != 0 && !adapter.isLe2MPhySupported()) {
+            txPhyMask &= ~LinkProfile.PHY_LE_2M_MASK;
+            rxPhyMask &= ~LinkProfile.PHY_LE_2M_MASK;
+        }
+        if (txPhyMask == 0 || rxPhyMask == 0) {
+            return false;
+        }
+        mBluetoothGatt.setPreferredPhy(txPhyMask, rxPhyMask, phyOptions);
+        return true;
+    }
+
+    private BluetoothGattCharacteristic findCharacteristic(UUID serviceUuid,
+                                                           UUID characteristicUuid) {
+        if (mBluetoothGatt == null) {
+            return null;
+        }
+        final BluetoothGattService service = mBluetoothGatt.getService(serviceUuid);
+        return service == null ? null : service.getCharacteristic(characteristicUuid);
+    }
+}
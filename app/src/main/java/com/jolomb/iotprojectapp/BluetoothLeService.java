@@ -19,41 +19,138 @@ package com.jolomb.iotprojectapp;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.os.Binder;
 import android.os.IBinder;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 
 /**
- * Service for managing connection and data communication with a GATT server hosted on a
- * given Bluetooth LE device.
+ * Service for managing connections and data communication with GATT servers hosted on
+ * Bluetooth LE devices. Several devices can be connected at once, up to
+ * {@link #getMaxConnections()}; every request takes the address of the device it targets.
+ *
+ * Events are delivered in process to the listeners registered through {@link LocalBinder},
+ * tagged with the address of the device. The {@code ACTION_*} broadcasts are only sent when
+ * enabled with {@link #setBroadcastEventsEnabled(boolean)}.
  */
 public class BluetoothLeService extends Service {
     private final static String TAG = BluetoothLeService.class.getSimpleName();
 
+    // Android stacks degrade past a handful of concurrent links.
+    public final static int DEFAULT_MAX_CONNECTIONS = 4;
+
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
-    private String mBluetoothDeviceAddress;
-    private BluetoothGatt mBluetoothGatt;
 
-    private enum ConnectionState {
-        STATE_DISCONNECTED,
-        STATE_CONNECTING,
-        STATE_CONNECTED
+    // Connection table, keyed by device address.
+    private final Map<String, GattConnection> mConnections =
+            new LinkedHashMap<String, GattConnection>();
+    private int mMaxConnections = DEFAULT_MAX_CONNECTIONS;
+    // Devices a FleetUnlockPipeline holds a connection slot for.
+    private final Set<String> mFleetConnections = new HashSet<String>();
+    private final FleetUnlockPipeline.ConnectionSlots mFleetSlots =
+            new FleetUnlockPipeline.ConnectionSlots() {
+                @Override
+                public boolean acquire(String address) {
+                    synchronized (BluetoothLeService.this) {
+                        if (getActiveConnections().size() >= mMaxConnections) {
+                            return false;
+                        }
+                        return mFleetConnections.add(address);
+                    }
+                }
+
+                @Override
+                public void release(String address) {
+                    synchronized (BluetoothLeService.this) {
+                        mFleetConnections.remove(address);
+                    }
+                }
+            };
+    // Pipelines started by unlockAll that have not completed yet.
+    private final Set<FleetUnlockPipeline> mPipelines = new HashSet<FleetUnlockPipeline>();
+
+    /**
+     * Forwards to the caller's listener and forgets the pipeline once it completes.
+     */
+    private class PipelineListener implements FleetUnlockPipeline.Listener {
+        private final FleetUnlockPipeline.Listener mListener;
+        private volatile FleetUnlockPipeline mPipeline;
+
+        PipelineListener(FleetUnlockPipeline.Listener listener) {
+            mListener = listener;
+        }
+
+        @Override
+        public void onLockResult(String address, UnlockHandshake.Outcome outcome,
+                                 long elapsedMillis) {
+            mListener.onLockResult(address, outcome, elapsedMillis);
+        }
+
+        @Override
+        public void onFleetComplete() {
+            synchronized (BluetoothLeService.this) {
+                mPipelines.remove(mPipeline);
+            }
+            mListener.onFleetComplete();
+        }
     }
-    private ConnectionState mConnectionState = ConnectionState.STATE_DISCONNECTED;
+
+    // Times out the queued requests of every connection.
+    private final ScheduledExecutorService mOperationTimer =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "BluetoothLeService-timer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    // Reads the lock keys off the main thread, one load after the other.
+    private final ExecutorService mKeyLoader =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "PublicKeyLoad");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final GattEventDispatcher mEventDispatcher = new GattEventDispatcher();
+    // Brings back links that dropped without disconnect(); shared so the jitter is too.
+    private final ReconnectPolicy mReconnectPolicy = new ReconnectPolicy();
+    private final UnlockTracer mUnlockTracer = new UnlockTracer();
+    private GattServiceCache mServiceCache;
+    private UnlockJournal mUnlockJournal;
+    private PublicKeyRing mPublicKeyRing;
+    private GattTransport.Factory mTransportFactory;
+
+    private final static String SERVICE_CACHE_PREFS_NAME = "gatt_service_cache";
+    private final static String UNLOCK_JOURNAL_DIR = "unlock_journal";
+    private final static String PUBLIC_KEYS_FILE_NAME = "lock_keys.txt";
+    private BroadcastGattEventAdapter mBroadcastAdapter;
 
     public final static String ACTION_GATT_CONNECTED =
             "com.example.bluetooth.le.ACTION_GATT_CONNECTED";
@@ -63,86 +160,59 @@ public class BluetoothLeService extends Service {
             "com.example.bluetooth.le.ACTION_GATT_SERVICES_DISCOVERED";
     public final static String ACTION_DATA_AVAILABLE =
             "com.example.bluetooth.le.ACTION_DATA_AVAILABLE";
+    // Raw characteristic value, as a byte[].
     public final static String EXTRA_DATA =
             "com.example.bluetooth.le.EXTRA_DATA";
     public final static String EXTRA_UUID =
             "com.example.bluetooth.le.EXTRA_UUID";
+    public final static String EXTRA_ADDRESS =
+            "com.example.bluetooth.le.EXTRA_ADDRESS";
 
     public final static String BLE_STR_ENCODING = "ASCII";
 
-    // Implements callback methods for GATT events that the app cares about.  For example,
-    // connection change and services discovered.
-    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
-        @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            String intentAction;
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                intentAction = ACTION_GATT_CONNECTED;
-                mConnectionState = ConnectionState.STATE_CONNECTED;
-                broadcastUpdate(intentAction);
-                Log.i(TAG, "Connected to GATT server.");
-                // Attempts to discover services after successful connection.
-                Log.i(TAG, "Attempting to start service discovery:" +
-                        mBluetoothGatt.discoverServices());
-
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                intentAction = ACTION_GATT_DISCONNECTED;
-                mConnectionState = ConnectionState.STATE_DISCONNECTED;
-                Log.i(TAG, "Disconnected from GATT server.");
-                broadcastUpdate(intentAction);
-            }
+    public class LocalBinder extends Binder {
+        BluetoothLeService getService() {
+            return BluetoothLeService.this;
         }
 
-        @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
-            } else {
-                Log.w(TAG, "onServicesDiscovered received: " + status);
-            }
+        /**
+         * Registers a listener for every connection, discovery and data event.
+         *
+         * @param executor Executor the listener runs on, e.g. a {@code MainThreadExecutor}.
+         */
+        public void registerListener(GattEventListener listener, Executor executor) {
+            mEventDispatcher.registerListener(listener, executor);
         }
 
-        @Override
-        public void onCharacteristicRead(BluetoothGatt gatt,
-                                         BluetoothGattCharacteristic characteristic,
-                                         int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
-            }
+        public void unregisterListener(GattEventListener listener) {
+            mEventDispatcher.unregisterListener(listener);
         }
 
-        @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt,
-                                            BluetoothGattCharacteristic characteristic) {
-            broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+        /**
+         * Registers a listener for the values of a single characteristic.
+         *
+         * @param executor Executor the listener runs on, e.g. a {@code MainThreadExecutor}.
+         */
+        public void registerCharacteristicListener(UUID uuid, CharacteristicListener listener,
+                                                   Executor executor) {
+            mEventDispatcher.registerCharacteristicListener(uuid, listener, executor);
         }
-    };
-
-    private void broadcastUpdate(final String action) {
-        final Intent intent = new Intent(action);
-        sendBroadcast(intent);
-    }
-
-    private void broadcastUpdate(final String action,
-                                 final BluetoothGattCharacteristic characteristic) {
-        final Intent intent = new Intent(action);
 
-        final byte[] data = characteristic.getValue();
-        if (data != null && data.length > 0) {
-            final StringBuilder stringBuilder = new StringBuilder(data.length);
-            for(byte byteChar : data)
-                stringBuilder.append(String.format("%02X ", byteChar));
-            intent.putExtra(EXTRA_DATA, stringBuilder.toString());
+        /**
+         * Like {@link #registerCharacteristicListener(UUID, CharacteristicListener, Executor)},
+         * queueing the values in a ring buffer that the executor drains in batches.
+         *
+         * @return The buffer, for its overflow counters.
+         */
+        public NotificationRingBuffer registerCharacteristicListener(
+                UUID uuid, CharacteristicListener listener, Executor executor,
+                NotificationRingBuffer.Policy policy, int capacity) {
+            return mEventDispatcher.registerCharacteristicListener(uuid, listener, executor,
+                    policy, capacity);
         }
 
-        String uuid = characteristic.getUuid().toString();
-        intent.putExtra(EXTRA_UUID, uuid);
-        sendBroadcast(intent);
-    }
-
-    public class LocalBinder extends Binder {
-        BluetoothLeService getService() {
-            return BluetoothLeService.this;
+        public void unregisterCharacteristicListener(UUID uuid, CharacteristicListener listener) {
+            mEventDispatcher.unregisterCharacteristicListener(uuid, listener);
         }
     }
 
@@ -160,8 +230,35 @@ public class BluetoothLeService extends Service {
         return super.onUnbind(intent);
     }
 
+    @Override
+    public void onDestroy() {
+        close();
+        mOperationTimer.shutdownNow();
+        mKeyLoader.shutdown();
+        if (mUnlockJournal != null) {
+            mUnlockJournal.close();
+            mUnlockJournal = null;
+        }
+        super.onDestroy();
+    }
+
     private final IBinder mBinder = new LocalBinder();
 
+    /**
+     * Turns the {@code ACTION_*} broadcasts on or off. They are off by default; in process
+     * consumers should register a listener through {@link LocalBinder} instead.
+     */
+    public synchronized void setBroadcastEventsEnabled(boolean enabled) {
+        if (enabled && mBroadcastAdapter == null) {
+            mBroadcastAdapter = new BroadcastGattEventAdapter(this);
+            mEventDispatcher.registerListener(mBroadcastAdapter,
+                    GattEventDispatcher.DIRECT_EXECUTOR);
+        } else if (!enabled && mBroadcastAdapter != null) {
+            mEventDispatcher.unregisterListener(mBroadcastAdapter);
+            mBroadcastAdapter = null;
+        }
+    }
+
     /**
      * Initializes a reference to the local Bluetooth adapter.
      *
@@ -184,49 +281,205 @@ public class BluetoothLeService extends Service {
             return false;
         }
 
+        if (mServiceCache == null) {
+            final SharedPreferences preferences =
+                    getSharedPreferences(SERVICE_CACHE_PREFS_NAME, Context.MODE_PRIVATE);
+            mServiceCache = new GattServiceCache(new GattServiceCache.Storage() {
+                @Override
+                public String load(String key) {
+                    return preferences.getString(key, null);
+                }
+
+                @Override
+                public void store(String key, String value) {
+                    preferences.edit().putString(key, value).apply();
+                }
+
+                @Override
+                public void remove(String key) {
+                    preferences.edit().remove(key).apply();
+                }
+            }, SampleGattAttributes.CRYPTO_SIGNER_SERVICE_UUID);
+        }
+
+        if (mUnlockJournal == null) {
+            mUnlockJournal = new UnlockJournal(new File(getFilesDir(), UNLOCK_JOURNAL_DIR));
+        }
+
+        if (mPublicKeyRing == null) {
+            final PublicKeyRing ring = new PublicKeyRing(
+                    new File(getFilesDir(), PUBLIC_KEYS_FILE_NAME),
+                    PublicKeyRing.DEFAULT_CACHE_SIZE);
+            mPublicKeyRing = ring;
+            mKeyLoader.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Log.d(TAG, ring.reload() + " lock keys loaded");
+                    } catch (IOException ex) {
+                        Log.e(TAG, "Unable to load the lock keys", ex);
+                    }
+                }
+            });
+        }
+
+        if (mTransportFactory == null) {
+            final BluetoothAdapter adapter = mBluetoothAdapter;
+            mTransportFactory = new GattTransport.Factory() {
+                @Override
+                public GattTransport create(String address, GattTransport.Callback callback) {
+                    final BluetoothDevice device = adapter.getRemoteDevice(address);
+                    if (device == null) {
+                        Log.w(TAG, "Device not found.  Unable to connect.");
+                        return null;
+                    }
+                    return new BluetoothGattTransport(BluetoothLeService.this, device, callback);
+                }
+            };
+        }
+
         return true;
     }
 
     /**
-     * Connects to the GATT server hosted on the Bluetooth LE device.
+     * Replaces the transport used for new connections, e.g. with {@code SimulatedCryptoLock}s
+     * to exercise the app without a radio. Existing connections keep their transport.
+     */
+    public synchronized void setTransportFactory(GattTransport.Factory transportFactory) {
+        mTransportFactory = transportFactory;
+    }
+
+    /**
+     * Sets how many devices may be connecting or connected at the same time.
+     * {@link #connect(String)} refuses new devices past this cap.
+     */
+    public synchronized void setMaxConnections(int maxConnections) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("maxConnections must be at least 1");
+        }
+        mMaxConnections = maxConnections;
+    }
+
+    public synchronized int getMaxConnections() {
+        return mMaxConnections;
+    }
+
+    /**
+     * @return The addresses of the devices currently connecting or connected, including the ones
+     *         a running {@link #unlockAll} holds.
+     */
+    public synchronized List<String> getActiveConnections() {
+        final List<String> addresses = new ArrayList<String>();
+        for (GattConnection connection : mConnections.values()) {
+            if (connection.isActive()) {
+                addresses.add(connection.getAddress());
+            }
+        }
+        addresses.addAll(mFleetConnections);
+        return addresses;
+    }
+
+    /**
+     * @return Return true if the device is connected.
+     */
+    public synchronized boolean isConnected(String address) {
+        final GattConnection connection = mConnections.get(address);
+        return connection != null &&
+                connection.getConnectionState() == GattConnection.ConnectionState.STATE_CONNECTED;
+    }
+
+    /**
+     * Connects to the GATT server hosted on the Bluetooth LE device. Connections to other
+     * devices are left untouched.
      *
      * @param address The device address of the destination device.
      *
      * @return Return true if the connection is initiated successfully. The connection result
      *         is reported asynchronously through the
      *         {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
-     *         callback.
+     *         callback. Return false if the connection cap is reached.
      */
-    public boolean connect(final String address) {
+    public synchronized boolean connect(final String address) {
         if (mBluetoothAdapter == null || address == null) {
             Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
             return false;
         }
 
-        // Previously connected device.  Try to reconnect.
-        if (mBluetoothDeviceAddress != null && address.equals(mBluetoothDeviceAddress)
-                && mBluetoothGatt != null) {
-            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
-            if (mBluetoothGatt.connect()) {
-                mConnectionState = ConnectionState.STATE_CONNECTING;
-                return true;
-            } else {
-                return false;
+        GattConnection connection = mConnections.get(address);
+        if ((connection == null || !connection.isActive())
+                && getActiveConnections().size() >= mMaxConnections) {
+            Log.w(TAG, "Already " + mMaxConnections + " connections.  Unable to connect to "
+                    + address);
+            return false;
+        }
+
+        if (connection == null) {
+            connection = new GattConnection(address, mTransportFactory, mEventDispatcher,
+                    mOperationTimer, mServiceCache);
+            connection.setTracer(mUnlockTracer);
+            connection.setLinkListener(mLinkListener);
+            connection.setReconnectPolicy(mReconnectPolicy);
+            mConnections.put(address, connection);
+        }
+        return connection.connect();
+    }
+
+    /**
+     * Unlocks several devices in one go through a {@code FleetUnlockPipeline}. Every link the
+     * pipeline opens takes one of the {@link #getMaxConnections()} slots of this service, so
+     * {@link #connect(String)} and the pipeline share the cap. Devices that are already connected
+     * are skipped.
+     *
+     * @param verifier Holds the key of the signed responses. The pipeline verifies them on a pool
+     *                 of its own.
+     *
+     * @return The running pipeline, or {@code null} if the service is not initialized. It is
+     *         cancelled by {@link #close()}.
+     */
+    FleetUnlockPipeline unlockAll(Collection<String> addresses, SignatureVerifier verifier,
+                                  ChallengeProvider challengeProvider,
+                                  FleetUnlockPipeline.Listener listener) {
+        final List<String> targets = new ArrayList<String>(addresses);
+        final PipelineListener tracking = new PipelineListener(listener);
+        final FleetUnlockPipeline pipeline;
+        synchronized (this) {
+            if (mBluetoothAdapter == null) {
+                Log.w(TAG, "BluetoothAdapter not initialized");
+                return null;
             }
+            targets.removeAll(getActiveConnections());
+            pipeline = new FleetUnlockPipeline(mTransportFactory, mEventDispatcher,
+                    mOperationTimer, mServiceCache, verifier, challengeProvider, tracking);
+            pipeline.setMaxConnections(mMaxConnections, FleetUnlockPipeline.DEFAULT_MAX_CONNECTING);
+            tracking.mPipeline = pipeline;
+            mPipelines.add(pipeline);
         }
+        // Started without the service lock: the pipeline takes its slots under its own lock.
+        pipeline.setConnectionSlots(mFleetSlots);
+        pipeline.setTracer(mUnlockTracer);
+        pipeline.setJournal(mUnlockJournal);
+        pipeline.start(targets);
+        return pipeline;
+    }
 
-        final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
-        if (device == null) {
-            Log.w(TAG, "Device not found.  Unable to connect.");
-            return false;
+    /**
+     * Sets up one challenge/response round with a connected device. Call
+     * {@code UnlockHandshake#start(byte[])} once it is configured.
+     *
+     * @param service The crypto signer service of the device, with the state characteristic
+     *                already notifying.
+     *
+     * @return The handshake, or {@code null} if the device is not connected.
+     */
+    UnlockHandshake newUnlockHandshake(String address, GattServiceInfo service,
+                                       SignatureVerifier verifier,
+                                       UnlockHandshake.Listener listener) {
+        final GattConnection connection = getConnection(address);
+        if (connection == null || service == null) {
+            Log.w(TAG, "Unable to unlock " + address + ", not connected");
+            return null;
         }
-        // We want to directly connect to the device, so we are setting the autoConnect
-        // parameter to false.
-        mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
-        Log.d(TAG, "Trying to create a new connection.");
-        mBluetoothDeviceAddress = address;
-        mConnectionState = ConnectionState.STATE_CONNECTING;
-        return true;
+        return new UnlockHandshake(connection, mEventDispatcher, service, verifier, listener);
     }
 
     /**
@@ -235,94 +488,290 @@ public class BluetoothLeService extends Service {
      * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
      * callback.
      */
-    public void disconnect() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+    public void disconnect(String address) {
+        final GattConnection connection = getConnection(address);
+        if (connection == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.disconnect();
+        connection.disconnect();
     }
 
     /**
      * After using a given BLE device, the app must call this method to ensure resources are
      * released properly.
      */
+    public void close(String address) {
+        final GattConnection connection;
+        synchronized (this) {
+            connection = mConnections.remove(address);
+        }
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Closes the connections to every device and cancels the running {@link #unlockAll} calls.
+     */
     public void close() {
-        if (mBluetoothGatt == null) {
-            return;
+        final List<GattConnection> connections;
+        final List<FleetUnlockPipeline> pipelines;
+        synchronized (this) {
+            connections = new ArrayList<GattConnection>(mConnections.values());
+            mConnections.clear();
+            pipelines = new ArrayList<FleetUnlockPipeline>(mPipelines);
+            mPipelines.clear();
+        }
+        // Outside the service lock: cancelling takes the pipeline lock.
+        for (FleetUnlockPipeline pipeline : pipelines) {
+            pipeline.cancel();
+        }
+        for (GattConnection connection : connections) {
+            connection.close();
         }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
     }
 
     /**
-     * Request a read on a given {@code BluetoothGattCharacteristic}. The read result is reported
-     * asynchronously through the {@code BluetoothGattCallback#onCharacteristicRead(android.bluetooth.BluetoothGatt, android.bluetooth.BluetoothGattCharacteristic, int)}
-     * callback.
+     * Request a read on a given characteristic. The read is queued behind any
+     * request still in flight to the same device. The read result is reported asynchronously
+     * through the {@code BluetoothGattCallback#onCharacteristicRead(android.bluetooth.BluetoothGatt, android.bluetooth.BluetoothGattCharacteristic, int)}
+     * callback, and through the returned operation.
      *
+     * @param address The device to read from.
      * @param characteristic The characteristic to read from.
+     *
+     * @return The queued operation, or {@code null} if the device is not connected.
      */
-    public void readCharacteristic(BluetoothGattCharacteristic characteristic) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+    public GattOperation readCharacteristic(String address,
+                                            GattCharacteristicInfo characteristic) {
+        final GattConnection connection = getConnection(address);
+        if (connection == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
-            return;
+            return null;
         }
-        mBluetoothGatt.readCharacteristic(characteristic);
+        return connection.readCharacteristic(characteristic);
     }
 
-    public void writeCharacteristic(BluetoothGattCharacteristic characteristic, String value) {
+    public GattOperation writeCharacteristic(String address,
+                                             GattCharacteristicInfo characteristic,
+                                             String value) {
         try {
-            byte valueBytes[] = value.getBytes(BLE_STR_ENCODING);
-            characteristic.setValue(valueBytes);
-            mBluetoothGatt.writeCharacteristic(characteristic);
+            return writeCharacteristic(address, characteristic, value.getBytes(BLE_STR_ENCODING));
         } catch (UnsupportedEncodingException ex) {
             // Well...
+            return null;
         }
     }
 
-    public void writeCharacteristic(BluetoothGattCharacteristic characteristic, byte[] value) {
-        characteristic.setValue(value);
-        mBluetoothGatt.writeCharacteristic(characteristic);
+    /**
+     * Request a write of {@code value} to a given characteristic. The value is copied and only
+     * handed to the transport once the write is issued, so several writes to the same
+     * characteristic can be queued back to back.
+     *
+     * @return The queued operation, or {@code null} if the device is not connected.
+     */
+    public GattOperation writeCharacteristic(String address,
+                                             GattCharacteristicInfo characteristic,
+                                             byte[] value) {
+        final GattConnection connection = getConnection(address);
+        if (connection == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized");
+            return null;
+        }
+        return connection.writeCharacteristic(characteristic, value);
+    }
 
+    /**
+     * Like {@link #writeCharacteristic(String, GattCharacteristicInfo, byte[])}, but with
+     * {@code WRITE_TYPE_NO_RESPONSE}. The operation completes when the value is sent, so the
+     * caller has to confirm that it arrived, e.g. with a {@code ChallengeDigest}.
+     *
+     * @return The queued operation, or {@code null} if the device is not connected.
+     */
+    public GattOperation writeCharacteristicWithoutResponse(String address,
+                                                            GattCharacteristicInfo characteristic,
+                                                            byte[] value) {
+        final GattConnection connection = getConnection(address);
+        if (connection == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized");
+            return null;
+        }
+        return connection.writeCharacteristic(characteristic, value, false);
     }
+
     /**
-     * Enables or disables notification on a give characteristic.
+     * Enables or disables notification on a give characteristic. The descriptor writes that
+     * switch notifications on at the remote side are queued like any other request.
      *
+     * @param address The device to act on.
      * @param characteristic Characteristic to act on.
      * @param enabled If true, enable notification.  False otherwise.
+     *
+     * @return The last queued descriptor write, which completes after every earlier one, an
+     *         operation that already succeeded if a bonded device is still subscribed, or
+     *         {@code null} if nothing could be queued.
      */
-    public void setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
-                                              boolean enabled) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+    public GattOperation setCharacteristicNotification(String address,
+                                                       GattCharacteristicInfo characteristic,
+                                                       boolean enabled) {
+        final GattConnection connection = getConnection(address);
+        if (connection == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
-            return;
+            return null;
         }
-        try {
-            Thread.sleep(1000);
-        } catch (InterruptedException ex) {}
-        mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
-        BluetoothGattDescriptor descriptor = characteristic.getDescriptor(UUID.fromString("00000013-0000-1000-8000-00805f9b34fb"));
-        if (descriptor != null) {
-            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            mBluetoothGatt.writeDescriptor(descriptor);
+        return connection.setCharacteristicNotification(characteristic, enabled);
+    }
+
+    /**
+     * Enables or disables notifications of a characteristic that the device streams as
+     * {@code FragmentCodec} fragments. Listeners receive the reassembled values.
+     *
+     * @return See {@link #setCharacteristicNotification(String, GattCharacteristicInfo, boolean)}.
+     */
+    public GattOperation setFragmentedNotification(String address,
+                                                   GattCharacteristicInfo characteristic,
+                                                   boolean enabled) {
+        final GattConnection connection = getConnection(address);
+        if (connection == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized");
+            return null;
         }
+        return connection.setFragmentedNotification(characteristic, enabled);
+    }
 
-        descriptor = characteristic.getDescriptor(UUID.fromString("00000000-0000-1000-8000-00805f9b34fb"));
-        if (descriptor != null) {
-            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            mBluetoothGatt.writeDescriptor(descriptor);
+    /**
+     * Request a larger ATT MTU for the connection to a device. The result is reported through
+     * the returned operation once {@code BluetoothGattCallback#onMtuChanged} arrives.
+     *
+     * Every connection already asks for the largest MTU right after connecting.
+     *
+     * @return The queued operation, or {@code null} if the device is not connected.
+     */
+    public GattOperation requestMtu(String address, int mtu) {
+        final GattConnection connection = getConnection(address);
+        if (connection == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized");
+            return null;
         }
+        return connection.requestMtu(mtu);
+    }
+
+    /**
+     * Asks the link to a device for the connection priority and PHY of a profile. Connections
+     * start in {@code LinkProfile.HANDSHAKE} and drop to {@code LinkProfile.LOW_POWER} when
+     * idle; callers relax them once the handshake is over.
+     *
+     * @return Return true if the request was issued.
+     */
+    public boolean setLinkProfile(String address, LinkProfile profile) {
+        final GattConnection connection = getConnection(address);
+        return connection != null && connection.setLinkProfile(profile);
     }
 
     /**
-     * Retrieves a list of supported GATT services on the connected device. This should be
+     * Sets the listener recording the link parameters of new connections. By default they are
+     * logged.
+     */
+    public void setLinkListener(LinkProfile.Listener listener) {
+        mLinkListener = listener;
+    }
+
+    private final LinkProfile.Listener mLinkLogger = new LinkProfile.Listener() {
+        @Override
+        public void onLinkProfileRequested(String address, LinkProfile profile,
+                                           boolean accepted) {
+            Log.d(TAG, address + " link profile " + profile + (accepted ? "" : " refused"));
+        }
+
+        @Override
+        public void onConnectionUpdated(String address, int interval, int latency, int timeout,
+                                        int status) {
+            Log.d(TAG, address + " connection interval " + LinkProfile.intervalMillis(interval)
+                    + " ms, latency " + latency + ", timeout " + timeout * 10 + " ms, status "
+                    + status);
+        }
+
+        @Override
+        public void onPhyUpdated(String address, int txPhy, int rxPhy, int status) {
+            Log.d(TAG, address + " PHY tx " + txPhy + " rx " + rxPhy + ", status " + status);
+        }
+    };
+    private volatile LinkProfile.Listener mLinkListener = mLinkLogger;
+
+    /**
+     * @return The tracer timing the unlock phases of every connection. The connection,
+     *         discovery and subscription phases are recorded by the service; the rest by the
+     *         caller driving the unlock.
+     */
+    public UnlockTracer getUnlockTracer() {
+        return mUnlockTracer;
+    }
+
+    /**
+     * @return The public keys of the locks, read from {@code lock_keys.txt} in the files
+     *         directory, or {@code null} before {@link #initialize()}. See
+     *         {@code PublicKeyRing} for the format.
+     */
+    public PublicKeyRing getPublicKeyRing() {
+        return mPublicKeyRing;
+    }
+
+    /**
+     * @return The thread that reads the key file. {@link #initialize()} queues the first read
+     *         there, so lookups queued after it see the keys of the file.
+     */
+    public Executor getKeyLoader() {
+        return mKeyLoader;
+    }
+
+    /**
+     * @return The journal of unlock attempts, or {@code null} before {@link #initialize()}.
+     */
+    public UnlockJournal getUnlockJournal() {
+        return mUnlockJournal;
+    }
+
+    /**
+     * @return The negotiated ATT MTU of the connection to a device, or 0 if there is none.
+     */
+    public int getMtu(String address) {
+        final GattConnection connection = getConnection(address);
+        return connection == null ? 0 : connection.getMtu();
+    }
+
+    /**
+     * Retrieves a list of supported GATT services on a connected device. This should be
      * invoked only after {@code BluetoothGatt#discoverServices()} completes successfully.
      *
      * @return A {@code List} of supported services.
      */
-    public List<BluetoothGattService> getSupportedGattServices() {
-        if (mBluetoothGatt == null) return null;
+    public List<GattServiceInfo> getSupportedGattServices(String address) {
+        final GattConnection connection = getConnection(address);
+        if (connection == null) return null;
+
+        return connection.getServices();
+    }
 
-        return mBluetoothGatt.getServices();
+    /**
+     * Returns the crypto signer service of a connected device without walking every service,
+     * if the services of the device match its cached layout. Use it on
+     * {@code GattEventListener#onServicesDiscovered(String)}, and fall back to
+     * {@link #getSupportedGattServices(String)} when it returns {@code null}.
+     *
+     * @return The service, or {@code null} on a cache miss.
+     */
+    public GattServiceInfo getCachedCryptoSignerService(String address) {
+        final GattConnection connection = getConnection(address);
+        if (connection == null) return null;
+
+        return connection.getCachedService();
+    }
+
+    private synchronized GattConnection getConnection(String address) {
+        if (mBluetoothAdapter == null || address == null) {
+            return null;
+        }
+        return mConnections.get(address);
     }
 }
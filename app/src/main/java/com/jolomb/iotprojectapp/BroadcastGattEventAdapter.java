@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jolomb.iotprojectapp;
+
+import android.content.Context;
+import android.content.Intent;
+
+import java.util.UUID;
+
+/**
+ * Compatibility adapter that republishes GATT events as the {@code BluetoothLeService.ACTION_*}
+ * broadcasts. Only needed by consumers that cannot bind to the service and use the typed
+ * listener API.
+ */
+class BroadcastGattEventAdapter implements GattEventListener {
+    private final Context mContext;
+
+    BroadcastGattEventAdapter(Context context) {
+        mContext = context;
+    }
+
+    @Override
+    public void onConnected(String address) {
+        broadcastUpdate(BluetoothLeService.ACTION_GATT_CONNECTED, address);
+    }
+
+    @Override
+    public void onDisconnected(String address) {
+        broadcastUpdate(BluetoothLeService.ACTION_GATT_DISCONNECTED, address);
+    }
+
+    @Override
+    public void onServicesDiscovered(String address) {
+        broadcastUpdate(BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED, address);
+    }
+
+    @Override
+    public void onCharacteristicValue(String address, UUID uuid, byte[] value) {
+        final Intent intent = new Intent(BluetoothLeService.ACTION_DATA_AVAILABLE);
+        if (value != null && value.length > 0) {
+            intent.putExtra(BluetoothLeService.EXTRA_DATA, value);
+        }
+        intent.putExtra(BluetoothLeService.EXTRA_UUID, uuid.toString());
+        intent.putExtra(BluetoothLeService.EXTRA_ADDRESS, address);
+        mContext.sendBroadcast(intent);
+    }
+
+    private void broadcastUpdate(final String action, final String address) {
+        final Intent intent = new Intent(action);
+        intent.putExtra(BluetoothLeService.EXTRA_ADDRESS, address);
+        mContext.sendBroadcast(intent);
+    }
+}
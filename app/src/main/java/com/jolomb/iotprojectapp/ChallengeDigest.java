@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jolomb.iotprojectapp;
+
+import java.util.zip.CRC32;
+
+/**
+ * End-to-end check of a challenge written without response. Lock firmware that accepts such
+ * writes appends the CRC-32 of the challenge it received, big endian, to its P state
+ * notification: {@code 'P' c0 c1 c2 c3}. A missing or different digest means the write was
+ * lost or mangled, and the challenge has to be written again with an acknowledged write.
+ *
+ * The digest only detects transport errors; the signature still covers the challenge.
+ */
+public final class ChallengeDigest {
+
+    public final static int LENGTH = 4;
+
+    /**
+     * How long to wait for the P notification of a write without response before assuming it
+     * was lost. A handful of connection intervals, even at the relaxed link profiles.
+     */
+    public final static long CONFIRM_TIMEOUT_MS = 500;
+
+    private ChallengeDigest() {
+    }
+
+    /**
+     * Writes the {@link #LENGTH} digest bytes of {@code challenge} into {@code dst}.
+     */
+    public static void compute(byte[] challenge, byte[] dst, int dstOff) {
+        final CRC32 crc = new CRC32();
+        crc.update(challenge, 0, challenge.length);
+        final long value = crc.getValue();
+        for (int i = 0; i < LENGTH; i++) {
+            dst[dstOff + i] = (byte) (value >>> (8 * (LENGTH - 1 - i)));
+        }
+    }
+
+    /**
+     * @param stateValue A value of the state characteristic.
+     *
+     * @return True if {@code stateValue} is a P state carrying the digest of {@code challenge}.
+     */
+    public static boolean confirms(byte[] stateValue, byte[] challenge) {
+        if (stateValue == null || challenge == null || stateValue.length != 1 + LENGTH
+                || stateValue[0] != LockStateMachine.REMOTE_WAITING_FOR_ONBOARD_BUTTON) {
+            return false;
+        }
+        final byte digest[] = new byte[LENGTH];
+        compute(challenge, digest, 0);
+        int diff = 0;
+        for (int i = 0; i < LENGTH; i++) {
+            diff |= digest[i] ^ stateValue[1 + i];
+        }
+        return diff == 0;
+    }
+}
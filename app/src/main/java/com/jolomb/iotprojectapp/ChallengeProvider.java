@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jolomb.iotprojectapp;
+
+import java.security.SecureRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Hands out random challenges for the crypto signer lock without making the caller wait for
+ * {@code SecureRandom}.
+ *
+ * A single {@code SecureRandom} is seeded once on a background thread, which keeps a bounded
+ * pool of ready challenges topped up. {@link #take()} removes a challenge from the pool, so a
+ * challenge is never handed out twice. Only when the pool has run dry is a challenge generated
+ * on the calling thread.
+ */
+public class ChallengeProvider {
+
+    private final int mChallengeLength;
+    private final ArrayBlockingQueue<byte[]> mPool;
+    private final ExecutorService mExecutor;
+    private final boolean mOwnsExecutor;
+    private final AtomicBoolean mRefillScheduled = new AtomicBoolean();
+
+    private SecureRandom mRandom;
+
+    /**
+     * @param challengeLength Length of every challenge in bytes.
+     * @param capacity How many ready challenges to keep.
+     */
+    public ChallengeProvider(int challengeLength, int capacity) {
+        this(challengeLength, capacity, Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ChallengeProvider");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }), true);
+    }
+
+    /**
+     * @param executor Executor the pool is refilled on. It is not shut down by
+     *                 {@link #shutdown()}.
+     */
+    public ChallengeProvider(int challengeLength, int capacity, ExecutorService executor) {
+        this(challengeLength, capacity, executor, false);
+    }
+
+    private ChallengeProvider(int challengeLength, int capacity, ExecutorService executor,
+                              boolean ownsExecutor) {
+        mChallengeLength = challengeLength;
+        mPool = new ArrayBlockingQueue<byte[]>(capacity);
+        mExecutor = executor;
+        mOwnsExecutor = ownsExecutor;
+    }
+
+    /**
+     * Seeds the generator and fills the pool in the background.
+     */
+    public void prepare() {
+        scheduleRefill();
+    }
+
+    /**
+     * @return A fresh challenge, owned by the caller. Never returned again.
+     */
+    public byte[] take() {
+        byte challenge[] = mPool.poll();
+        if (challenge == null) {
+            challenge = generate();
+        }
+        scheduleRefill();
+        return challenge;
+    }
+
+    /**
+     * @return The number of ready challenges.
+     */
+    public int available() {
+        return mPool.size();
+    }
+
+    public void shutdown() {
+        if (mOwnsExecutor) {
+            mExecutor.shutdownNow();
+        }
+        mPool.clear();
+    }
+
+    private void scheduleRefill() {
+        if (mPool.remainingCapacity() == 0 || !mRefillScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mRefillScheduled.set(false);
+                    while (mPool.remainingCapacity() > 0
+                            && !Thread.currentThread().isInterrupted()) {
+                        if (!mPool.offer(generate())) {
+                            break;
+                        }
+                    }
+                }
+            });
+        } catch (RuntimeException ex) {
+            // Shut down; take() keeps working on the calling thread.
+            mRefillScheduled.set(false);
+        }
+    }
+
+    private byte[] generate() {
+        final SecureRandom random;
+        synchronized (this) {
+            if (mRandom == null) {
+                // The first nextBytes() seeds the generator, which is the slow part.
+                mRandom = new SecureRandom();
+            }
+            random = mRandom;
+        }
+        final byte challenge[] = new byte[mChallengeLength];
+        random.nextBytes(challenge);
+        return challenge;
+    }
+}
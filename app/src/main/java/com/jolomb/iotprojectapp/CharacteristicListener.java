@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jolomb.iotprojectapp;
+
+import java.util.UUID;
+
+/**
+ * Receives the values of a GATT characteristic, whether they come from a read or a notification.
+ */
+public interface CharacteristicListener {
+    /**
+     * @param address Address of the device the value came from.
+     * @param uuid UUID of the characteristic.
+     * @param value The raw value. It is shared between listeners and must not be modified.
+     */
+    void onCharacteristicValue(String address, UUID uuid, byte[] value);
+}
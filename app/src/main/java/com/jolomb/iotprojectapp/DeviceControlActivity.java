@@ -18,19 +18,13 @@ package com.jolomb.iotprojectapp;
 
 import android.app.Activity;
 import android.bluetooth.BluetoothClass;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.graphics.Color;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -45,16 +39,18 @@ import android.widget.SimpleExpandableListAdapter;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.security.KeyFactory;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
-import java.security.Signature;
-import java.security.interfaces.RSAPublicKey;
-import java.security.spec.X509EncodedKeySpec;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.security.PublicKey;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Executor;
 import java.util.regex.Pattern;
 
 /**
@@ -65,49 +61,86 @@ import java.util.regex.Pattern;
  */
 public class DeviceControlActivity extends Activity {
 
-    private enum LockState {
-        WAITING_FOR_INPUT_BUFFER,
-        WAITING_FOR_ON_BOARD_CLICK,
-        RESPONSE_READY,
-        SIGNATURE_DONE,
-        SIGNING_FAILED,
-        INCORRECT_KEY
-    }
-    private final static char REMOTE_WAITING_FOR_INPUT_CHAR = 'W';
-    private final static char REMOTE_WAITING_FOR_ONBOARD_BUTTON_CHAR = 'P';
-    private final static char REMOTE_LOCK_RESPONSE_READY_CHAR = 'R';
-    private final static String REMOTE_LOCK_DONE_STRING = "D";
-    private final static char REMOTE_SIGN_FAILED_CHAR = 'N';
+    private final static String REMOTE_LOCK_DONE_STRING =
+            String.valueOf(LockStateMachine.REMOTE_DONE);
 
     private final static String TAG = DeviceControlActivity.class.getSimpleName();
 
     public static final String EXTRAS_DEVICE_NAME = "DEVICE_NAME";
     public static final String EXTRAS_DEVICE_ADDRESS = "DEVICE_ADDRESS";
+    public static final String EXTRAS_SCAN_START_MILLIS = "SCAN_START_MILLIS";
+    public static final String EXTRAS_DEVICE_FOUND_MILLIS = "DEVICE_FOUND_MILLIS";
+
+    private final static String TRACE_FILE_NAME = "unlock-trace.json";
+    private final static String PREF_AUTO_UNLOCK = "auto_unlock";
+    private final static String PREF_FAST_WRITE = "fast_write";
+    // Followed by the device address; set once a write without response to it went unconfirmed.
+    private final static String PREF_FAST_WRITE_FELL_BACK = "fast_write_fell_back_";
 
     private TextView mConnectionState;
     private String mDeviceName;
     private String mDeviceAddress;
     private BluetoothLeService mBluetoothLeService;
+    private BluetoothLeService.LocalBinder mBluetoothLeBinder;
+    private UnlockTracer mUnlockTracer;
+    private UnlockJournal mUnlockJournal;
+    private long mScanStartMillis;
+    private long mDeviceFoundMillis;
 
     // Specific char of the remote device
-    private BluetoothGattCharacteristic mRemoteLockBufferChar;
-    private BluetoothGattCharacteristic mRemoteSignedResponseBuffer;
-    private BluetoothGattCharacteristic mRemoteLockStateChar;
+    private GattServiceInfo mCryptoSignerService;
+    private GattCharacteristicInfo mRemoteLockBufferChar;
+    private GattCharacteristicInfo mRemoteLockStateChar;
+    // True when the lock pushes the signed response by itself.
+    private boolean mResponseStreamed;
+    // Reads the response as soon as the lock reports R, instead of on the second tap.
+    private boolean mAutoUnlock;
+    // Writes the challenge without response when the lock allows it.
+    private boolean mFastWrite;
+    // The round in progress, if any.
+    private UnlockHandshake mHandshake;
 
     private final String SIGNATURE_ALGORITHM = "SHA256withRSA";
+    private final String KEY_ALGORITHM = "RSA";
+    // One verifier per scheme a key is known for; the lock's reported scheme picks one.
+    private final Map<SignatureScheme, SignatureVerifier> mSignatureVerifiers =
+            new EnumMap<SignatureScheme, SignatureVerifier>(SignatureScheme.class);
+    private NotificationRingBuffer mStateBuffer;
+    // The scheme the lock reported, if any, or the id it reported if this app does not know it.
+    private SignatureScheme mReportedScheme;
+    private String mUnknownScheme;
+    private final Executor mMainThreadExecutor = new MainThreadExecutor();
 
-    private ArrayList<ArrayList<BluetoothGattCharacteristic>> mGattCharacteristics =
-            new ArrayList<ArrayList<BluetoothGattCharacteristic>>();
     private boolean mConnected = false;
 
-    private final String LIST_NAME = "NAME";
-    private final String LIST_UUID = "UUID";
-
     private final int CRYPTO_CHALLANGE_LENGTH = 16;
-    private final int CRYPTO_RESPONSE_LENGTH = 128;
     private byte mChallangeBytes[];
+    private ChallengeProvider mChallengeProvider;
+
+    // Only touched on the main thread: every event that drives it is delivered there.
+    private final LockStateMachine mLockStateMachine =
+            new LockStateMachine(new LockStateMachine.Listener() {
+        @Override
+        public void onTransition(LockState from, LockState to, long timestampNanos) {
+            // The handshake reads and verifies the response; the states only drive the UI.
+            switch (to) {
+                case SIGNING_FAILED:
+                case SIGNATURE_DONE:
+                case INCORRECT_KEY:
+                    setLinkProfile(LinkProfile.BALANCED);
+                    break;
+                default:
+                    break;
+            }
+            updateRemoteLockState(to);
+        }
 
-    private LockState mRemoteLockState;
+        @Override
+        public void onRejected(LockState from, LockState to, int rawState,
+                               long timestampNanos) {
+            Log.w(TAG, "Ignoring lock state " + (to != null ? to : rawState) + " in " + from);
+        }
+    });
     private TextView mRemoteLocakStateText;
 
     private Button mResetStateButton;
@@ -172,11 +205,17 @@ public class DeviceControlActivity extends Activity {
 
         @Override
         public void onServiceConnected(ComponentName componentName, IBinder service) {
-            mBluetoothLeService = ((BluetoothLeService.LocalBinder) service).getService();
+            mBluetoothLeBinder = (BluetoothLeService.LocalBinder) service;
+            mBluetoothLeService = mBluetoothLeBinder.getService();
             if (!mBluetoothLeService.initialize()) {
                 Log.e(TAG, "Unable to initialize Bluetooth");
                 finish();
             }
+            registerGattListeners();
+            mUnlockTracer = mBluetoothLeService.getUnlockTracer();
+            mUnlockJournal = mBluetoothLeService.getUnlockJournal();
+            loadDeviceKey(false);
+            traceScan();
             // Automatically connects to the device upon successful start-up initialization.
             mBluetoothLeService.connect(mDeviceAddress);
         }
@@ -184,92 +223,120 @@ public class DeviceControlActivity extends Activity {
         @Override
         public void onServiceDisconnected(ComponentName componentName) {
             mBluetoothLeService = null;
+            mBluetoothLeBinder = null;
         }
     };
 
-    // Handles various events fired by the Service.
-    // ACTION_GATT_CONNECTED: connected to a GATT server.
-    // ACTION_GATT_DISCONNECTED: disconnected from a GATT server.
-    // ACTION_GATT_SERVICES_DISCOVERED: discovered GATT services.
-    // ACTION_DATA_AVAILABLE: received data from the device.  This can be a result of read
-    //                        or notification operations.
-    private final BroadcastReceiver mGattUpdateReceiver = new BroadcastReceiver() {
+    // Handles the connection events fired by the Service, on the main thread.
+    private final GattEventListener mGattEventListener = new GattEventListener.Adapter() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            final String action = intent.getAction();
-            if (BluetoothLeService.ACTION_GATT_CONNECTED.equals(action)) {
-                mConnected = true;
-                invalidateOptionsMenu();
-            } else if (BluetoothLeService.ACTION_GATT_DISCONNECTED.equals(action)) {
-                mConnected = false;
-                updateConnectionState(R.string.disconnected);
-                invalidateOptionsMenu();
-                clearUI();
-            } else if (BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
-                // Go over the remote GATT services
-                iterateServices(mBluetoothLeService.getSupportedGattServices());
-
-            } else if (BluetoothLeService.ACTION_DATA_AVAILABLE.equals(action)) {
-                String char_uuid = intent.getStringExtra(BluetoothLeService.EXTRA_UUID);
-                String char_data = intent.getStringExtra(BluetoothLeService.EXTRA_DATA);
-                if (char_uuid.equals(SampleGattAttributes.CRYPTO_SIGNER_RESPONSE_STATE)) {
-                    // The state of the locking machine should always be 1 byte == 2 chars in HEX
-                    if (char_data.length() == 3) {
-                        try {
-                            char currentLockState = (char) Integer.parseInt(char_data.trim(), 16);
-                            switch (currentLockState) {
-                                case REMOTE_WAITING_FOR_INPUT_CHAR:
-                                    mRemoteLockState = LockState.WAITING_FOR_INPUT_BUFFER;
-                                    break;
-                                case REMOTE_WAITING_FOR_ONBOARD_BUTTON_CHAR:
-                                    mRemoteLockState = LockState.WAITING_FOR_ON_BOARD_CLICK;
-                                    break;
-                                case REMOTE_LOCK_RESPONSE_READY_CHAR:
-                                    mRemoteLockState = LockState.RESPONSE_READY;
-                                    break;
-                                case REMOTE_SIGN_FAILED_CHAR:
-                                    mRemoteLockState = LockState.SIGNING_FAILED;
-                                    break;
+        public void onConnected(String address) {
+            if (!address.equals(mDeviceAddress)) {
+                return;
+            }
+            mConnected = true;
+            invalidateOptionsMenu();
+        }
 
-                            }
-                            updateRemoteLockState(mRemoteLockState);
-                        } catch (NumberFormatException ex) {
-                            // Well this means the other side is messed up...
-                            updateConnectionState(R.string.connected_non_compatible);
-                        }
-                    }
-                } else if (char_uuid.equals(SampleGattAttributes.CRYPTO_SIGNER_SIGNED_RESPONSE)) {
-                    try {
-                        Signature publicSignature = Signature.getInstance(SIGNATURE_ALGORITHM);
-                        X509EncodedKeySpec spec1 = new X509EncodedKeySpec(PUBLIC_KEY_DER_PKCS8_BYTES);
-                        KeyFactory kf1 = KeyFactory.getInstance("RSA");
-                        RSAPublicKey pubKey = (RSAPublicKey) kf1.generatePublic(spec1);
-                        publicSignature.initVerify(pubKey);
-                        publicSignature.update(mChallangeBytes, 0, CRYPTO_CHALLANGE_LENGTH);
-
-                        String elements[] = char_data.split(" ");
-                        byte byteElements[] = new byte[CRYPTO_RESPONSE_LENGTH];
-                        for (int i = 0; i < CRYPTO_RESPONSE_LENGTH; i++)
-                            byteElements[i] = (byte)Integer.parseInt(elements[i], 16);
-                        if (elements.length == CRYPTO_RESPONSE_LENGTH){
-                            if (publicSignature.verify(byteElements, 0, CRYPTO_RESPONSE_LENGTH)) {
-                                mRemoteLockState = LockState.SIGNATURE_DONE;
-                                updateRemoteLockState(mRemoteLockState);
-
-                            } else {
-                                mRemoteLockState = LockState.INCORRECT_KEY;
-                                updateRemoteLockState(mRemoteLockState);
-                            }
-                        } else {
-                            mRemoteLockState = LockState.SIGNING_FAILED;
-                            updateRemoteLockState(mRemoteLockState);
-                        }
-                    } catch (Exception ex) { /* This can be solved at compilation time...*/ }
-                }
+        @Override
+        public void onDisconnected(String address) {
+            if (!address.equals(mDeviceAddress)) {
+                return;
+            }
+            mConnected = false;
+            mCryptoSignerService = null;
+            mReportedScheme = null;
+            mUnknownScheme = null;
+            mLockStateMachine.reset(LockState.UNKNOWN);
+            updateConnectionState(R.string.disconnected);
+            invalidateOptionsMenu();
+            clearUI();
+        }
+
+        @Override
+        public void onServicesDiscovered(String address) {
+            if (!address.equals(mDeviceAddress)) {
+                return;
+            }
+            // Use the cached layout of the crypto signer service when it still matches, and only
+            // go over all the remote GATT services otherwise.
+            GattServiceInfo cryptoSignerService =
+                    mBluetoothLeService.getCachedCryptoSignerService(mDeviceAddress);
+            if (cryptoSignerService != null) {
+                bindCryptoSignerService(cryptoSignerService);
+            } else {
+                iterateServices(mBluetoothLeService.getSupportedGattServices(mDeviceAddress));
+            }
+        }
+    };
+
+    // Handles the state notifications of the remote lock.
+    private final CharacteristicListener mLockStateListener = new CharacteristicListener() {
+        @Override
+        public void onCharacteristicValue(String address, UUID uuid, byte[] char_data) {
+            // The first byte is the state; a P state may carry the challenge digest, which the
+            // handshake checks.
+            if (!address.equals(mDeviceAddress) || char_data == null || char_data.length < 1) {
+                return;
+            }
+            mLockStateMachine.onRemoteState(char_data[0]);
+        }
+    };
+
+    // Records the signature scheme the lock reported. Locks without the characteristic sign
+    // with RSA.
+    private final CharacteristicListener mSignatureSchemeListener =
+            new CharacteristicListener() {
+        @Override
+        public void onCharacteristicValue(String address, UUID uuid, byte[] char_data) {
+            if (!address.equals(mDeviceAddress) || char_data == null || char_data.length != 1) {
+                return;
+            }
+            mReportedScheme = SignatureScheme.fromId(char_data[0]);
+            mUnknownScheme = mReportedScheme == null ? HexCodec.toHexString(char_data) : null;
+            if (mUnknownScheme != null) {
+                Log.e(TAG, "Unknown signature scheme " + mUnknownScheme);
             }
         }
     };
 
+    // Reports the outcome of a round on the main thread.
+    private final UnlockHandshake.Listener mHandshakeListener = new UnlockHandshake.Listener() {
+        @Override
+        public void onHandshakeComplete(final String address,
+                                        final UnlockHandshake.Outcome outcome) {
+            mMainThreadExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    onUnlockOutcome(address, outcome);
+                }
+            });
+        }
+    };
+
+    private void registerGattListeners() {
+        mBluetoothLeBinder.registerListener(mGattEventListener, mMainThreadExecutor);
+        // Every state transition is kept; the state machine rejects a skipped one.
+        mStateBuffer = mBluetoothLeBinder.registerCharacteristicListener(
+                SampleGattAttributes.CRYPTO_SIGNER_RESPONSE_STATE_UUID,
+                mLockStateListener, mMainThreadExecutor,
+                NotificationRingBuffer.Policy.LOSSLESS,
+                NotificationRingBuffer.DEFAULT_CAPACITY);
+        mBluetoothLeBinder.registerCharacteristicListener(
+                SampleGattAttributes.CRYPTO_SIGNER_SIGNATURE_SCHEME_UUID,
+                mSignatureSchemeListener, mMainThreadExecutor);
+    }
+
+    private void unregisterGattListeners() {
+        mBluetoothLeBinder.unregisterListener(mGattEventListener);
+        mBluetoothLeBinder.unregisterCharacteristicListener(
+                SampleGattAttributes.CRYPTO_SIGNER_RESPONSE_STATE_UUID, mLockStateListener);
+        mBluetoothLeBinder.unregisterCharacteristicListener(
+                SampleGattAttributes.CRYPTO_SIGNER_SIGNATURE_SCHEME_UUID,
+                mSignatureSchemeListener);
+        Log.d(TAG, "Notifications: state " + mStateBuffer.getOfferedCount() + " ("
+                + mStateBuffer.getOverflowCount() + " overflowed)");
+    }
 
     private void clearUI() {
         //mGattServicesList.setAdapter((SimpleExpandableListAdapter) null);
@@ -288,24 +355,35 @@ public class DeviceControlActivity extends Activity {
 
         mResetStateButton.setOnClickListener(new View.OnClickListener() {
             public void onClick(View v) {
-                byte resetBytes[] = new byte[] { REMOTE_WAITING_FOR_INPUT_CHAR, 0};
+                byte resetBytes[] = new byte[] { LockStateMachine.REMOTE_WAITING_FOR_INPUT, 0};
                 //Reset the remote board for another signature
-                mBluetoothLeService.writeCharacteristic(mRemoteLockStateChar,
+                mBluetoothLeService.writeCharacteristic(mDeviceAddress, mRemoteLockStateChar,
                         REMOTE_LOCK_DONE_STRING);
 
-                mBluetoothLeService.writeCharacteristic(
+                mBluetoothLeService.writeCharacteristic(mDeviceAddress,
                         DeviceControlActivity.this.mRemoteLockStateChar,
                         resetBytes);
-                mRemoteLockState = LockState.WAITING_FOR_INPUT_BUFFER;
-                updateRemoteLockState(mRemoteLockState);
+                mLockStateMachine.moveTo(LockState.WAITING_FOR_INPUT_BUFFER);
                 ViewGroup linearLayout = findViewById(R.id.lock_device_control_activity_layout);
                 linearLayout.removeView(mResetStateButton);
             }
         });
 
+        final SignatureVerifier verifier = new SignatureVerifier(KEY_ALGORITHM,
+                SIGNATURE_ALGORITHM, PUBLIC_KEY_DER_PKCS8_BYTES);
+        // Verifies with JCA, see SignatureVerifier#setBuiltInRsaEnabled.
+        verifier.prepare();
+        mSignatureVerifiers.put(SignatureScheme.RSA_SHA256, verifier);
+        mChallengeProvider = new ChallengeProvider(CRYPTO_CHALLANGE_LENGTH, 4);
+        mChallengeProvider.prepare();
+        mAutoUnlock = getPreferences(MODE_PRIVATE).getBoolean(PREF_AUTO_UNLOCK, true);
+        mFastWrite = getPreferences(MODE_PRIVATE).getBoolean(PREF_FAST_WRITE, false);
+
         final Intent intent = getIntent();
         mDeviceName = intent.getStringExtra(EXTRAS_DEVICE_NAME);
         mDeviceAddress = intent.getStringExtra(EXTRAS_DEVICE_ADDRESS);
+        mScanStartMillis = intent.getLongExtra(EXTRAS_SCAN_START_MILLIS, 0);
+        mDeviceFoundMillis = intent.getLongExtra(EXTRAS_DEVICE_FOUND_MILLIS, 0);
 
         mRemoteLockBufferChar = null;
 
@@ -314,8 +392,7 @@ public class DeviceControlActivity extends Activity {
         ((TextView) findViewById(R.id.device_address)).setText(mDeviceAddress);
         mRemoteLocakStateText = findViewById(R.id.locking_state);
 
-        mRemoteLockState = LockState.WAITING_FOR_INPUT_BUFFER;
-        updateRemoteLockState(mRemoteLockState);
+        updateRemoteLockState(LockState.WAITING_FOR_INPUT_BUFFER);
 
         getActionBar().setTitle(mDeviceName);
         getActionBar().setDisplayHomeAsUpEnabled(true);
@@ -329,22 +406,18 @@ public class DeviceControlActivity extends Activity {
             @Override
             public void onClick(View v) {
 
-                if ( (mRemoteLockState == LockState.WAITING_FOR_INPUT_BUFFER) &&
+                final LockState lockState = mLockStateMachine.getState();
+                if ( (lockState == LockState.WAITING_FOR_INPUT_BUFFER) &&
                         (mConnected) && (mRemoteLockBufferChar != null)) {
                     Toast.makeText(DeviceControlActivity.this, "Generating the random Crypto Challange", Toast.LENGTH_LONG).show();
-                    SecureRandom random = new SecureRandom();
-                    DeviceControlActivity.this.mChallangeBytes = new byte[CRYPTO_CHALLANGE_LENGTH];
-                    random.nextBytes(mChallangeBytes);
+                    DeviceControlActivity.this.mChallangeBytes = mChallengeProvider.take();
 
                     // Write the challange we just created to the remote GATT char
-                    DeviceControlActivity.this.mBluetoothLeService.writeCharacteristic(
-                            DeviceControlActivity.this.mRemoteLockBufferChar,
-                            mChallangeBytes
-                    );
-                } else if(mRemoteLockState == LockState.RESPONSE_READY) {
+                    startHandshake();
+                } else if (lockState == LockState.RESPONSE_READY && mHandshake != null
+                        && mHandshake.readResponse()) {
                     // Read the signed response from the remote BLE device
                     Toast.makeText(DeviceControlActivity.this, "Verifiying the Response now!", Toast.LENGTH_LONG).show();
-                    DeviceControlActivity.this.mBluetoothLeService.readCharacteristic(mRemoteSignedResponseBuffer);
                 }
             }
 
@@ -354,24 +427,28 @@ public class DeviceControlActivity extends Activity {
     @Override
     protected void onResume() {
         super.onResume();
-        registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter());
         if (mBluetoothLeService != null) {
             final boolean result = mBluetoothLeService.connect(mDeviceAddress);
             Log.d(TAG, "Connect request result=" + result);
         }
     }
 
-    @Override
-    protected void onPause() {
-        super.onPause();
-        unregisterReceiver(mGattUpdateReceiver);
-    }
-
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (mBluetoothLeBinder != null) {
+            unregisterGattListeners();
+        }
         unbindService(mServiceConnection);
         mBluetoothLeService = null;
+        mBluetoothLeBinder = null;
+        if (mHandshake != null) {
+            mHandshake.cancel();
+        }
+        for (SignatureVerifier verifier : mSignatureVerifiers.values()) {
+            verifier.shutdown();
+        }
+        mChallengeProvider.shutdown();
     }
 
     @Override
@@ -384,6 +461,8 @@ public class DeviceControlActivity extends Activity {
             menu.findItem(R.id.menu_connect).setVisible(true);
             menu.findItem(R.id.menu_disconnect).setVisible(false);
         }
+        menu.findItem(R.id.menu_auto_unlock).setChecked(mAutoUnlock);
+        menu.findItem(R.id.menu_fast_write).setChecked(mFastWrite);
         return true;
     }
 
@@ -394,7 +473,25 @@ public class DeviceControlActivity extends Activity {
                 mBluetoothLeService.connect(mDeviceAddress);
                 return true;
             case R.id.menu_disconnect:
-                mBluetoothLeService.disconnect();
+                mBluetoothLeService.disconnect(mDeviceAddress);
+                return true;
+            case R.id.menu_auto_unlock:
+                mAutoUnlock = !item.isChecked();
+                item.setChecked(mAutoUnlock);
+                getPreferences(MODE_PRIVATE).edit().putBoolean(PREF_AUTO_UNLOCK, mAutoUnlock)
+                        .apply();
+                return true;
+            case R.id.menu_fast_write:
+                mFastWrite = !item.isChecked();
+                item.setChecked(mFastWrite);
+                getPreferences(MODE_PRIVATE).edit().putBoolean(PREF_FAST_WRITE, mFastWrite)
+                        .apply();
+                return true;
+            case R.id.menu_reload_keys:
+                loadDeviceKey(true);
+                return true;
+            case R.id.menu_export_trace:
+                exportUnlockTrace();
                 return true;
             case android.R.id.home:
                 onBackPressed();
@@ -403,6 +500,200 @@ public class DeviceControlActivity extends Activity {
         return super.onOptionsItemSelected(item);
     }
 
+    // Runs one round with the current challenge. The handshake writes it, waits for the lock,
+    // reads and verifies the response.
+    private void startHandshake() {
+        if (mHandshake != null) {
+            mHandshake.cancel();
+        }
+        // Locks that do not report their scheme sign with RSA.
+        final SignatureScheme scheme = mReportedScheme != null ? mReportedScheme :
+                SignatureScheme.RSA_SHA256;
+        final SignatureVerifier verifier = mSignatureVerifiers.get(scheme);
+        if (mUnknownScheme != null || verifier == null) {
+            Toast.makeText(this, getString(R.string.unsupported_signature_scheme,
+                    mUnknownScheme != null ? mUnknownScheme : scheme.name()),
+                    Toast.LENGTH_LONG).show();
+            return;
+        }
+        mHandshake = mBluetoothLeService.newUnlockHandshake(mDeviceAddress,
+                mCryptoSignerService, verifier, mHandshakeListener);
+        if (mHandshake == null) {
+            return;
+        }
+        setLinkProfile(LinkProfile.HANDSHAKE);
+        mHandshake.setResponseStreamed(mResponseStreamed);
+        mHandshake.setReadOnReady(mAutoUnlock);
+        // A lock that lost a fast challenge once gets acknowledged writes from then on.
+        mHandshake.setFastWrite(mFastWrite && !getPreferences(MODE_PRIVATE)
+                .getBoolean(PREF_FAST_WRITE_FELL_BACK + mDeviceAddress, false));
+        mHandshake.setTracer(mUnlockTracer);
+        mHandshake.start(mChallangeBytes);
+    }
+
+    private void onUnlockOutcome(String address, UnlockHandshake.Outcome outcome) {
+        if (!address.equals(mDeviceAddress)) {
+            return;
+        }
+        final UnlockHandshake handshake = mHandshake;
+        if (handshake != null && handshake.isFinished() && handshake.didFallBack()) {
+            getPreferences(MODE_PRIVATE).edit()
+                    .putBoolean(PREF_FAST_WRITE_FELL_BACK + address, true).apply();
+        }
+        mHandshake = null;
+        switch (outcome) {
+            case GRANTED:
+                finishTrace("granted", LockState.SIGNATURE_DONE);
+                mLockStateMachine.moveTo(LockState.SIGNATURE_DONE);
+                break;
+            case DENIED:
+                finishTrace("denied", LockState.INCORRECT_KEY);
+                mLockStateMachine.moveTo(LockState.INCORRECT_KEY);
+                break;
+            case SIGNING_FAILED:
+                finishTrace("signing failed", LockState.SIGNING_FAILED);
+                // Unless the N state already moved the machine.
+                if (mLockStateMachine.getState() != LockState.SIGNING_FAILED) {
+                    mLockStateMachine.moveTo(LockState.SIGNING_FAILED);
+                }
+                break;
+            default:
+                finishTrace("failed", LockState.UNKNOWN);
+                setLinkProfile(LinkProfile.BALANCED);
+                break;
+        }
+    }
+
+    // The handshake runs on a fast link; once it is over the link can relax.
+    private void setLinkProfile(LinkProfile profile) {
+        if (mBluetoothLeService != null) {
+            mBluetoothLeService.setLinkProfile(mDeviceAddress, profile);
+        }
+    }
+
+    // Closes the trace of the attempt and journals it with its phase timings.
+    private void finishTrace(String outcome, LockState state) {
+        if (mUnlockTracer == null) {
+            return;
+        }
+        final int phaseMicros[] = new int[UnlockTracer.Phase.values().length];
+        mUnlockTracer.finish(mDeviceAddress, outcome, phaseMicros);
+        if (mUnlockJournal != null) {
+            mUnlockJournal.append(mDeviceAddress, mChallangeBytes, state, phaseMicros);
+        }
+    }
+
+    // Records the scan that found the device, timed by DeviceScanActivity.
+    private void traceScan() {
+        if (mScanStartMillis == 0 || mDeviceFoundMillis < mScanStartMillis) {
+            return;
+        }
+        // The scan was timed with elapsedRealtime(); the tracer runs on System.nanoTime().
+        final long offsetNanos = System.nanoTime() - SystemClock.elapsedRealtimeNanos();
+        mUnlockTracer.span(mDeviceAddress, UnlockTracer.Phase.SCAN,
+                mScanStartMillis * 1000000L + offsetNanos,
+                mDeviceFoundMillis * 1000000L + offsetNanos);
+        mScanStartMillis = 0;
+    }
+
+    // Sets the verifier of the scheme the key ring's key of this lock is for. The built in RSA
+    // key stays in use when the ring has nothing better.
+    private void loadDeviceKey(final boolean reload) {
+        final PublicKeyRing ring = mBluetoothLeService.getPublicKeyRing();
+        if (ring == null) {
+            return;
+        }
+        ring.setFallbackKey(PUBLIC_KEY_DER_PKCS8_BYTES);
+        mBluetoothLeService.getKeyLoader().execute(new Runnable() {
+            @Override
+            public void run() {
+                int count = -1;
+                PublicKey key = null;
+                try {
+                    if (reload) {
+                        count = ring.reload();
+                    }
+                    key = ring.getPublicKey(mDeviceAddress);
+                } catch (IOException ex) {
+                    Log.e(TAG, "Unable to load the lock keys", ex);
+                } catch (GeneralSecurityException ex) {
+                    Log.e(TAG, "Unusable key for " + mDeviceAddress, ex);
+                }
+                final PublicKey publicKey = key;
+                final int loaded = count;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        final SignatureScheme scheme = publicKey == null ? null :
+                                SignatureScheme.forKeyAlgorithm(publicKey.getAlgorithm());
+                        if (scheme != null && !isDestroyed()) {
+                            final SignatureVerifier verifier =
+                                    new SignatureVerifier(scheme, publicKey);
+                            verifier.prepare();
+                            final SignatureVerifier previous =
+                                    mSignatureVerifiers.put(scheme, verifier);
+                            if (previous != null) {
+                                previous.shutdown();
+                            }
+                        }
+                        if (reload) {
+                            Toast.makeText(DeviceControlActivity.this, loaded >= 0 ?
+                                    getString(R.string.keys_reloaded, loaded) :
+                                    getString(R.string.keys_reload_failed),
+                                    Toast.LENGTH_LONG).show();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    // Writes the last handshakes as a Chrome trace to the app's external files directory.
+    private void exportUnlockTrace() {
+        if (mUnlockTracer == null) {
+            return;
+        }
+        final UnlockTracer tracer = mUnlockTracer;
+        File directory = getExternalFilesDir(null);
+        if (directory == null) {
+            directory = getFilesDir();
+        }
+        final File file = new File(directory, TRACE_FILE_NAME);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Log.i(TAG, tracer.appendSummary(new StringBuilder("Unlock phases:\n")).toString());
+                boolean written = false;
+                Writer writer = null;
+                try {
+                    writer = new FileWriter(file);
+                    tracer.writeChromeTrace(writer);
+                    written = true;
+                } catch (IOException ex) {
+                    Log.e(TAG, "Unable to write " + file, ex);
+                } finally {
+                    if (writer != null) {
+                        try {
+                            writer.close();
+                        } catch (IOException ex) {
+                            // Nothing left to do.
+                        }
+                    }
+                }
+                final boolean success = written;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Toast.makeText(DeviceControlActivity.this, success ?
+                                getString(R.string.trace_exported, file.getAbsolutePath()) :
+                                getString(R.string.trace_export_failed),
+                                Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+        }, "UnlockTraceExport").start();
+    }
+
     private void updateRemoteLockState(final LockState state) {
         runOnUiThread(new Runnable() {
             @Override
@@ -437,6 +728,8 @@ public class DeviceControlActivity extends Activity {
                         linearLayout = findViewById(R.id.lock_device_control_activity_layout);
                         linearLayout.addView(mResetStateButton);
                         break;
+                    default:
+                        break;
                 }
             }
         });
@@ -455,77 +748,62 @@ public class DeviceControlActivity extends Activity {
     }
 
 
-    private void iterateServices(List<BluetoothGattService> gattServices) {
-        if (gattServices == null) return;
-        String uuid = null;
-        ArrayList<HashMap<String, String>> gattServiceData = new ArrayList<HashMap<String, String>>();
-        ArrayList<ArrayList<HashMap<String, String>>> gattCharacteristicData
-                = new ArrayList<ArrayList<HashMap<String, String>>>();
-        mGattCharacteristics = new ArrayList<ArrayList<BluetoothGattCharacteristic>>();
+    private void bindCryptoSignerService(GattServiceInfo gattService) {
+        mCryptoSignerService = gattService;
+        for (GattCharacteristicInfo gattCharacteristic : gattService.getCharacteristics()) {
+            bindCryptoSignerCharacteristic(gattCharacteristic);
+        }
+        updateConnectionState(R.string.connected_compatible);
+    }
+
+    private void bindCryptoSignerCharacteristic(GattCharacteristicInfo gattCharacteristic) {
+        final UUID uuid = gattCharacteristic.getUuid();
+        // If it's the response state we want to get notified about it changing
+        if (uuid.equals(SampleGattAttributes.CRYPTO_SIGNER_RESPONSE_STATE_UUID)) {
+            mBluetoothLeService.readCharacteristic(mDeviceAddress, gattCharacteristic);
+            mBluetoothLeService.setCharacteristicNotification(mDeviceAddress,
+                    gattCharacteristic, true);
+            mRemoteLockStateChar = gattCharacteristic;
+
+        } else if (uuid.equals(SampleGattAttributes.CRYPTO_SIGNER_CHALLANGE_INPUT_UUID)) {
+            // Hold this char aside for a while
+            mRemoteLockBufferChar = gattCharacteristic;
+        } else if (uuid.equals(SampleGattAttributes.CRYPTO_SIGNER_SIGNATURE_SCHEME_UUID)) {
+            mBluetoothLeService.readCharacteristic(mDeviceAddress, gattCharacteristic);
+        } else if (uuid.equals(SampleGattAttributes.CRYPTO_SIGNER_SIGNED_RESPONSE_UUID)) {
+            // Newer lock firmware pushes the response in fragments as soon as it is signed,
+            // which saves the read and its read blob round trips.
+            if (gattCharacteristic.hasProperty(GattCharacteristicInfo.PROPERTY_NOTIFY)) {
+                mResponseStreamed = true;
+                mBluetoothLeService.setFragmentedNotification(mDeviceAddress,
+                        gattCharacteristic, true);
+            }
+        }
+    }
 
+    private void iterateServices(List<GattServiceInfo> gattServices) {
+        if (gattServices == null) return;
         boolean isCompatServiceFound = false;
 
         // Loops through available GATT Services.
-        for (BluetoothGattService gattService : gattServices) {
-            HashMap<String, String> currentServiceData = new HashMap<String, String>();
-            uuid = gattService.getUuid().toString();
-
+        for (GattServiceInfo gattService : gattServices) {
             // Find out if it's a service we recognize!
-            String serviceName = null;
-            try {
-                serviceName = SampleGattAttributes.lookupNoDefault(uuid);
-                if (uuid.equals(SampleGattAttributes.CRYPTO_SIGNER_SERVICE)) {
-                    isCompatServiceFound = true;
-                }
-            } catch (RuntimeException ex) {
+            if (SampleGattAttributes.lookup(gattService.getUuid()) == null) {
                 continue;
             }
-            currentServiceData.put(
-                    LIST_NAME, serviceName);
-            currentServiceData.put(LIST_UUID, uuid);
-            gattServiceData.add(currentServiceData);
-
-            ArrayList<HashMap<String, String>> gattCharacteristicGroupData =
-                    new ArrayList<HashMap<String, String>>();
-            List<BluetoothGattCharacteristic> gattCharacteristics =
-                    gattService.getCharacteristics();
-            ArrayList<BluetoothGattCharacteristic> charas =
-                    new ArrayList<BluetoothGattCharacteristic>();
+            if (gattService.getUuid().equals(SampleGattAttributes.CRYPTO_SIGNER_SERVICE_UUID)) {
+                isCompatServiceFound = true;
+                mCryptoSignerService = gattService;
+            }
 
             // Loops through available Characteristics.
-            String attributeName;
-            for (BluetoothGattCharacteristic gattCharacteristic : gattCharacteristics) {
-                // Get the UUID of the current attribute
-                uuid = gattCharacteristic.getUuid().toString();
-                try {
-                    attributeName = SampleGattAttributes.lookupNoDefault(uuid);
-                } catch (RuntimeException ex) {
+            for (GattCharacteristicInfo gattCharacteristic : gattService.getCharacteristics()) {
+                if (SampleGattAttributes.lookup(gattCharacteristic.getUuid()) == null) {
                     // Only handle attributes we recognize
                     continue;
                 }
-
-                charas.add(gattCharacteristic);
-                HashMap<String, String> currentCharaData = new HashMap<String, String>();
-                currentCharaData.put(
-                        LIST_NAME, attributeName);
-                currentCharaData.put(LIST_UUID, uuid);
-                gattCharacteristicGroupData.add(currentCharaData);
-
-                // If it's the response state we want to get notified about it changing
-                if (uuid.equals(SampleGattAttributes.CRYPTO_SIGNER_RESPONSE_STATE)) {
-                    mBluetoothLeService.readCharacteristic(gattCharacteristic);
-                    mBluetoothLeService.setCharacteristicNotification(gattCharacteristic, true);
-                    mRemoteLockStateChar = gattCharacteristic;
-
-                } else if (uuid.equals(SampleGattAttributes.CRYPTO_SIGNER_CHALLANGE_INPUT)) {
-                    // Hold this char aside for a while
-                    mRemoteLockBufferChar = gattCharacteristic;
-                } else if (uuid.equals(SampleGattAttributes.CRYPTO_SIGNER_SIGNED_RESPONSE)) {
-                    mRemoteSignedResponseBuffer = gattCharacteristic;
-                }
+                bindCryptoSignerCharacteristic(gattCharacteristic);
             }
-            mGattCharacteristics.add(charas);
-            gattCharacteristicData.add(gattCharacteristicGroupData);
         }
 
         // Make sure the GATT server we connected to is compatible with out locking application
@@ -536,13 +814,4 @@ public class DeviceControlActivity extends Activity {
         }
 
     }
-
-    private static IntentFilter makeGattUpdateIntentFilter() {
-        final IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_CONNECTED);
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_DISCONNECTED);
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
-        intentFilter.addAction(BluetoothLeService.ACTION_DATA_AVAILABLE);
-        return intentFilter;
-    }
 }
@@ -30,6 +30,8 @@ import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -50,14 +52,28 @@ import java.util.HashMap;
  * Activity for scanning and displaying available Bluetooth LE devices.
  */
 public class DeviceScanActivity extends ListActivity {
+    private final static String TAG = DeviceScanActivity.class.getSimpleName();
+
     private LeDeviceListAdapter mLeDeviceListAdapter;
+    // Updated from the scan callback, published to the list at most once per frame.
+    private final ScanResultIndex<BluetoothDevice> mScanResults =
+            new ScanResultIndex<BluetoothDevice>();
+    private final FrameBatcher mScanResultsBatcher = new FrameBatcher(new Runnable() {
+        @Override
+        public void run() {
+            if (mLeDeviceListAdapter != null) {
+                mLeDeviceListAdapter.publish(mScanResults);
+            }
+        }
+    });
     private BluetoothAdapter mBluetoothAdapter;
     private boolean mScanning;
+    // SystemClock.elapsedRealtime() when the last scan started, for the unlock trace.
+    private long mScanStartMillis;
     private Handler mHandler;
+    private ScanScheduler mScanScheduler;
 
     private static final int REQUEST_ENABLE_BT = 1;
-    // Stops scanning after 10 seconds.
-    private static final long SCAN_PERIOD = 10000;
 
     final private int REQUEST_CODE_ASK_MULTIPLE_PERMISSIONS = 124;
 
@@ -65,6 +81,7 @@ public class DeviceScanActivity extends ListActivity {
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         mHandler = new Handler();
+        mScanScheduler = new ScanScheduler(mHandler, mScanner, mScanSchedulerListener);
 
         // Use this check to determine whether BLE is supported on the device.  Then you can
         // selectively disable BLE-related features.
@@ -107,7 +124,7 @@ public class DeviceScanActivity extends ListActivity {
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case R.id.menu_scan:
-                mLeDeviceListAdapter.clear();
+                clearScanResults();
                 scanLeDevice(true);
                 break;
             case R.id.menu_stop:
@@ -233,8 +250,23 @@ public class DeviceScanActivity extends ListActivity {
     @Override
     protected void onPause() {
         super.onPause();
+        // Partly hidden, e.g. behind a dialog: keep looking for the lock at a low duty cycle.
+        if (mScanning) {
+            mScanScheduler.start(ScanScheduler.Mode.DUTY_CYCLED);
+        }
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
         scanLeDevice(false);
-        mLeDeviceListAdapter.clear();
+        mScanResultsBatcher.cancel();
+        clearScanResults();
+    }
+
+    private void clearScanResults() {
+        mScanResults.clear();
+        mLeDeviceListAdapter.publish(mScanResults);
     }
 
     @Override
@@ -244,57 +276,85 @@ public class DeviceScanActivity extends ListActivity {
         final Intent intent = new Intent(this, DeviceControlActivity.class);
         intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_NAME, device.getName());
         intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS, device.getAddress());
+        final ScanResultIndex.Entry<BluetoothDevice> entry = mScanResults.get(device.getAddress());
+        if (entry != null && entry.getFirstSeenMillis() >= mScanStartMillis) {
+            intent.putExtra(DeviceControlActivity.EXTRAS_SCAN_START_MILLIS, mScanStartMillis);
+            intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_FOUND_MILLIS,
+                    entry.getFirstSeenMillis());
+        }
         if (mScanning) {
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);
-            mScanning = false;
+            scanLeDevice(false);
         }
         startActivity(intent);
     }
 
     private void scanLeDevice(final boolean enable) {
+        // Scans aggressively while the user waits, backs off to duty cycling when nothing new
+        // shows up, and stops as soon as a lock is found.
         if (enable) {
-            // Stops scanning after a pre-defined scan period.
-            mHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    mScanning = false;
-                    mBluetoothAdapter.stopLeScan(mLeScanCallback);
-                    invalidateOptionsMenu();
-                }
-            }, SCAN_PERIOD);
+            mScanStartMillis = SystemClock.elapsedRealtime();
+            mScanScheduler.start(ScanScheduler.Mode.AGGRESSIVE);
+        } else {
+            mScanScheduler.stop();
+        }
+    }
 
-            mScanning = true;
+    private final ScanScheduler.Scanner mScanner = new ScanScheduler.Scanner() {
+        @Override
+        public void startScan() {
             mBluetoothAdapter.startLeScan(mLeScanCallback);
-        } else {
-            mScanning = false;
+        }
+
+        @Override
+        public void stopScan() {
             mBluetoothAdapter.stopLeScan(mLeScanCallback);
         }
-        invalidateOptionsMenu();
-    }
+    };
+
+    private final ScanScheduler.Listener mScanSchedulerListener = new ScanScheduler.Listener() {
+        @Override
+        public void onSchedulerRunningChanged(boolean running) {
+            mScanning = running;
+            if (!running) {
+                Log.d(TAG, "Scan stopped, radio time " + mScanScheduler.getRadioTimeMs() + " ms");
+            }
+            invalidateOptionsMenu();
+        }
+
+        @Override
+        public void onTargetFound(String address) {
+            Log.d(TAG, "Found lock " + address + " after "
+                    + mScanScheduler.getTimeToTargetMs() + " ms");
+        }
+    };
 
     // Adapter for holding devices found through scanning.
     private class LeDeviceListAdapter extends BaseAdapter {
-        private ArrayList<BluetoothDevice> mLeDevices;
+        private List<ScanResultIndex.Entry<BluetoothDevice>> mLeDevices;
+        private int mPublishedVersion = -1;
         private LayoutInflater mInflator;
 
         public LeDeviceListAdapter() {
             super();
-            mLeDevices = new ArrayList<BluetoothDevice>();
+            mLeDevices = new ArrayList<ScanResultIndex.Entry<BluetoothDevice>>();
             mInflator = DeviceScanActivity.this.getLayoutInflater();
         }
 
-        public void addDevice(BluetoothDevice device) {
-            if(!mLeDevices.contains(device)) {
-                mLeDevices.add(device);
+        /**
+         * Takes the current content of the index, if it changed since the last call.
+         */
+        public void publish(ScanResultIndex<BluetoothDevice> scanResults) {
+            final int version = scanResults.getVersion();
+            if (version == mPublishedVersion) {
+                return;
             }
+            mPublishedVersion = version;
+            mLeDevices = scanResults.snapshot();
+            notifyDataSetChanged();
         }
 
         public BluetoothDevice getDevice(int position) {
-            return mLeDevices.get(position);
-        }
-
-        public void clear() {
-            mLeDevices.clear();
+            return mLeDevices.get(position).getDevice();
         }
 
         @Override
@@ -304,7 +364,7 @@ public class DeviceScanActivity extends ListActivity {
 
         @Override
         public Object getItem(int i) {
-            return mLeDevices.get(i);
+            return mLeDevices.get(i).getDevice();
         }
 
         @Override
@@ -326,7 +386,7 @@ public class DeviceScanActivity extends ListActivity {
                 viewHolder = (ViewHolder) view.getTag();
             }
 
-            BluetoothDevice device = mLeDevices.get(i);
+            BluetoothDevice device = mLeDevices.get(i).getDevice();
             final String deviceName = device.getName();
             if (deviceName != null && deviceName.length() > 0)
                 viewHolder.deviceName.setText(deviceName);
@@ -344,13 +404,29 @@ public class DeviceScanActivity extends ListActivity {
 
                 @Override
                 public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
-                    runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            mLeDeviceListAdapter.addDevice(device);
-                            mLeDeviceListAdapter.notifyDataSetChanged();
-                        }
-                    });
+                    // Repeated advertisements only refresh the RSSI and last seen time; the list
+                    // is redrawn once per frame at most, and only when a device was added.
+                    final String address = device.getAddress();
+                    final boolean added = mScanResults.update(address, device, rssi,
+                            SystemClock.elapsedRealtime());
+                    if (added) {
+                        mScanResultsBatcher.request();
+                    }
+                    // Every advertisement is checked until the service shows up: the first one
+                    // of a lock may come without it, before its scan response.
+                    final ScanResultIndex.Entry<BluetoothDevice> entry = mScanResults.get(address);
+                    final boolean isLock = entry != null && !entry.isTarget()
+                            && ScanRecordParser.advertisesService(scanRecord,
+                                    SampleGattAttributes.CRYPTO_SIGNER_SERVICE_UUID)
+                            && mScanResults.markTarget(address);
+                    if (added || isLock) {
+                        mHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                mScanScheduler.onNewDevice(address, isLock);
+                            }
+                        });
+                    }
                 }
             };
 
@@ -0,0 +1,463 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jolomb.iotprojectapp;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unlocks a set of locks in one go. Every lock goes through connect, discovery, subscription to
+ * the state characteristic and an {@code UnlockHandshake}; the pipeline keeps several locks in
+ * flight so one lock's wait for its on-board button overlaps the connection setup of the next.
+ *
+ * Two limits apply: {@code maxConnections} open links in total, and {@code maxConnecting} of
+ * them still connecting or discovering, since the controller sets up one link at a time anyway.
+ * Signatures are checked on a pool of at most {@code maxConnections} threads, one per core, that
+ * the pipeline starts with the first lock and shuts down once the last one has reported. Each
+ * lock's result is reported as soon as it is known.
+ *
+ * The pipeline opens its own {@code GattConnection}s, so the addresses should not be connected
+ * through {@code BluetoothLeService} at the same time. With {@code ConnectionSlots}, every link
+ * it opens also counts against a cap shared with the owner of the slots.
+ */
+class FleetUnlockPipeline {
+
+    interface Listener {
+        /**
+         * Called once per lock, on the thread that delivered its final event.
+         */
+        void onLockResult(String address, UnlockHandshake.Outcome outcome, long elapsedMillis);
+
+        /**
+         * Called after the last lock has reported.
+         */
+        void onFleetComplete();
+    }
+
+    /**
+     * A connection cap shared with other users of the radio. {@link #acquire(String)} is called
+     * with the pipeline's lock held, so the owner must not call into the pipeline while holding
+     * a lock that {@code acquire} takes.
+     */
+    interface ConnectionSlots {
+        /**
+         * @return Return true if a link to the device may be opened. It then holds a slot
+         *         until {@link #release(String)}.
+         */
+        boolean acquire(String address);
+
+        void release(String address);
+    }
+
+    public final static int DEFAULT_MAX_CONNECTIONS = 4;
+    public final static int DEFAULT_MAX_CONNECTING = 1;
+    // Long enough for someone to walk over and press the button.
+    public final static long DEFAULT_LOCK_TIMEOUT_MS = 30000;
+
+    private enum Stage {
+        QUEUED,
+        CONNECTING,
+        SUBSCRIBING,
+        CHALLENGING,
+        DONE
+    }
+
+    private final GattTransport.Factory mTransportFactory;
+    private final GattEventDispatcher mEventDispatcher;
+    private final ScheduledExecutorService mTimer;
+    private final GattServiceCache mServiceCache;
+    private final SignatureVerifier mKeyVerifier;
+    private final ChallengeProvider mChallengeProvider;
+    private final Listener mListener;
+
+    private int mMaxConnections = DEFAULT_MAX_CONNECTIONS;
+    private int mMaxConnecting = DEFAULT_MAX_CONNECTING;
+    private long mLockTimeoutMs = DEFAULT_LOCK_TIMEOUT_MS;
+    private volatile UnlockTracer mTracer;
+    private volatile UnlockJournal mJournal;
+    private volatile ConnectionSlots mSlots;
+
+    private final LinkedList<Lock> mQueued = new LinkedList<Lock>();
+    private final List<Lock> mActive = new ArrayList<Lock>();
+    private int mConnecting;
+    private int mRemaining;
+    private ExecutorService mVerifyPool;
+    // Checks on mVerifyPool, set by start().
+    private volatile SignatureVerifier mVerifier;
+
+    FleetUnlockPipeline(GattTransport.Factory transportFactory,
+                        GattEventDispatcher eventDispatcher, ScheduledExecutorService timer,
+                        GattServiceCache serviceCache, SignatureVerifier verifier,
+                        ChallengeProvider challengeProvider, Listener listener) {
+        mTransportFactory = transportFactory;
+        mEventDispatcher = eventDispatcher;
+        mTimer = timer;
+        mServiceCache = serviceCache;
+        mKeyVerifier = verifier;
+        mChallengeProvider = challengeProvider;
+        mListener = listener;
+    }
+
+    synchronized void setMaxConnections(int maxConnections, int maxConnecting) {
+        mMaxConnections = Math.max(1, maxConnections);
+        mMaxConnecting = Math.max(1, Math.min(maxConnecting, mMaxConnections));
+    }
+
+    /**
+     * @param timeoutMs How long one lock may take from connect to outcome before it is failed.
+     */
+    synchronized void setLockTimeout(long timeoutMs) {
+        mLockTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * @param tracer Receives the phases of every lock, or {@code null}.
+     */
+    void setTracer(UnlockTracer tracer) {
+        mTracer = tracer;
+    }
+
+    /**
+     * @param journal Gets an entry for every lock, or {@code null}.
+     */
+    void setJournal(UnlockJournal journal) {
+        mJournal = journal;
+    }
+
+    /**
+     * @param slots Must grant every link the pipeline opens, or {@code null}.
+     */
+    void setConnectionSlots(ConnectionSlots slots) {
+        mSlots = slots;
+    }
+
+    /**
+     * Queues the locks and starts as many as the limits allow. Duplicates are dropped.
+     */
+    void start(Collection<String> addresses) {
+        final boolean empty;
+        synchronized (this) {
+            for (String address : new LinkedHashSet<String>(addresses)) {
+                mQueued.add(new Lock(address));
+                mRemaining++;
+            }
+            empty = mRemaining == 0;
+            if (!empty && mVerifyPool == null) {
+                mVerifyPool = newVerifyPool(Math.min(mMaxConnections,
+                        Runtime.getRuntime().availableProcessors()));
+                mVerifier = mKeyVerifier.withExecutor(mVerifyPool);
+            }
+        }
+        if (empty) {
+            mListener.onFleetComplete();
+            return;
+        }
+        pump();
+    }
+
+    private static ExecutorService newVerifyPool(int threads) {
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "FleetVerifier");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Shuts the verification pool down once every lock has reported.
+     */
+    private void complete() {
+        final ExecutorService pool;
+        synchronized (this) {
+            pool = mVerifyPool;
+            mVerifyPool = null;
+        }
+        if (pool != null) {
+            pool.shutdown();
+        }
+        mListener.onFleetComplete();
+    }
+
+    /**
+     * Drops the queued locks and fails the ones in flight.
+     */
+    void cancel() {
+        final List<Lock> locks;
+        synchronized (this) {
+            locks = new ArrayList<Lock>(mQueued);
+            locks.addAll(mActive);
+        }
+        for (Lock lock : locks) {
+            lock.finish(UnlockHandshake.Outcome.FAILED);
+        }
+    }
+
+    synchronized int getQueuedCount() {
+        return mQueued.size();
+    }
+
+    synchronized int getActiveCount() {
+        return mActive.size();
+    }
+
+    private void pump() {
+        final ConnectionSlots slots = mSlots;
+        while (true) {
+            final Lock next;
+            final boolean starved;
+            synchronized (this) {
+                if (mQueued.isEmpty() || mActive.size() >= mMaxConnections
+                        || mConnecting >= mMaxConnecting) {
+                    return;
+                }
+                next = mQueued.peek();
+                starved = slots != null && !slots.acquire(next.mAddress);
+                if (starved) {
+                    // Retried when one of ours finishes. With none in flight, no slot is
+                    // coming back that the pipeline would hear of.
+                    if (!mActive.isEmpty()) {
+                        return;
+                    }
+                } else {
+                    mQueued.poll();
+                    next.mHeldSlots = slots;
+                    next.mStage = Stage.CONNECTING;
+                    mActive.add(next);
+                    mConnecting++;
+                }
+            }
+            if (starved) {
+                next.finish(UnlockHandshake.Outcome.FAILED);
+                return;
+            }
+            next.connect();
+        }
+    }
+
+    /**
+     * Moves a lock to a new stage and updates the counts.
+     *
+     * @return Return false if the lock is already in that stage or done.
+     */
+    private synchronized boolean advance(Lock lock, Stage stage) {
+        if (lock.mStage == Stage.DONE || lock.mStage == stage) {
+            return false;
+        }
+        if (lock.mStage == Stage.CONNECTING) {
+            mConnecting--;
+        }
+        if (stage == Stage.DONE) {
+            mQueued.remove(lock);
+            mActive.remove(lock);
+        }
+        lock.mStage = stage;
+        return true;
+    }
+
+    private synchronized boolean onLockDone() {
+        return --mRemaining == 0;
+    }
+
+    private static LockState toLockState(UnlockHandshake.Outcome outcome) {
+        switch (outcome) {
+            case GRANTED:
+                return LockState.SIGNATURE_DONE;
+            case DENIED:
+                return LockState.INCORRECT_KEY;
+            case SIGNING_FAILED:
+                return LockState.SIGNING_FAILED;
+            default:
+                return LockState.UNKNOWN;
+        }
+    }
+
+    private class Lock extends GattEventListener.Adapter implements UnlockHandshake.Listener {
+        private final String mAddress;
+        // Guarded by the pipeline.
+        private Stage mStage = Stage.QUEUED;
+        // Set while the lock holds a connection slot.
+        private ConnectionSlots mHeldSlots;
+
+        private volatile long mStartMillis;
+        private volatile GattConnection mConnection;
+        private volatile UnlockHandshake mHandshake;
+        private volatile ScheduledFuture<?> mTimeout;
+        private volatile byte mChallenge[];
+
+        Lock(String address) {
+            mAddress = address;
+        }
+
+        void connect() {
+            mStartMillis = System.currentTimeMillis();
+            final GattConnection connection = new GattConnection(mAddress, mTransportFactory,
+                    mEventDispatcher, mTimer, mServiceCache);
+            connection.setTracer(mTracer);
+            synchronized (FleetUnlockPipeline.this) {
+                if (mStage == Stage.DONE) {
+                    return;
+                }
+                mConnection = connection;
+            }
+            mEventDispatcher.registerListener(this, GattEventDispatcher.DIRECT_EXECUTOR);
+            mTimeout = mTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    finish(UnlockHandshake.Outcome.FAILED);
+                }
+            }, mLockTimeoutMs, TimeUnit.MILLISECONDS);
+            if (!connection.connect()) {
+                finish(UnlockHandshake.Outcome.FAILED);
+            } else if (isDone()) {
+                // Cancelled while connecting; finish() may have run before the registration.
+                release();
+            }
+        }
+
+        private boolean isDone() {
+            synchronized (FleetUnlockPipeline.this) {
+                return mStage == Stage.DONE;
+            }
+        }
+
+        @Override
+        public void onDisconnected(String address) {
+            // Once the handshake runs, it reports the disconnect itself.
+            if (mAddress.equals(address) && mHandshake == null) {
+                finish(UnlockHandshake.Outcome.FAILED);
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(String address) {
+            if (!mAddress.equals(address) || !advance(this, Stage.SUBSCRIBING)) {
+                return;
+            }
+            // The next lock can start connecting while this one subscribes and waits.
+            pump();
+            final GattServiceInfo service = mConnection.getCachedService();
+            final GattCharacteristicInfo state = service == null ? null :
+                    service.getCharacteristic(
+                            SampleGattAttributes.CRYPTO_SIGNER_RESPONSE_STATE_UUID);
+            if (state == null) {
+                finish(UnlockHandshake.Outcome.FAILED);
+                return;
+            }
+            final GattOperation subscription =
+                    mConnection.setCharacteristicNotification(state, true);
+            if (subscription == null) {
+                finish(UnlockHandshake.Outcome.FAILED);
+                return;
+            }
+            subscription.addCallback(new GattOperation.Callback() {
+                @Override
+                public void onComplete(GattOperation operation) {
+                    if (operation.isSuccessful()) {
+                        challenge(service);
+                    } else {
+                        finish(UnlockHandshake.Outcome.FAILED);
+                    }
+                }
+            });
+        }
+
+        private void challenge(GattServiceInfo service) {
+            if (!advance(this, Stage.CHALLENGING)) {
+                return;
+            }
+            mChallenge = mChallengeProvider.take();
+            final UnlockHandshake handshake = new UnlockHandshake(mConnection, mEventDispatcher,
+                    service, mVerifier, this);
+            handshake.setTracer(mTracer);
+            mHandshake = handshake;
+            handshake.start(mChallenge);
+        }
+
+        @Override
+        public void onHandshakeComplete(String address, UnlockHandshake.Outcome outcome) {
+            finish(outcome);
+        }
+
+        void finish(UnlockHandshake.Outcome outcome) {
+            if (!advance(this, Stage.DONE)) {
+                return;
+            }
+            release();
+            record(outcome);
+            final long elapsedMillis = mStartMillis == 0 ? 0 :
+                    System.currentTimeMillis() - mStartMillis;
+            mListener.onLockResult(mAddress, outcome, elapsedMillis);
+            if (onLockDone()) {
+                complete();
+            }
+            pump();
+        }
+
+        private void release() {
+            mEventDispatcher.unregisterListener(this);
+            final ScheduledFuture<?> timeout = mTimeout;
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            final UnlockHandshake handshake = mHandshake;
+            if (handshake != null) {
+                handshake.cancel();
+            }
+            final GattConnection connection = mConnection;
+            if (connection != null) {
+                connection.close();
+            }
+            final ConnectionSlots slots;
+            synchronized (FleetUnlockPipeline.this) {
+                slots = mHeldSlots;
+                mHeldSlots = null;
+            }
+            if (slots != null) {
+                slots.release(mAddress);
+            }
+        }
+
+        private void record(UnlockHandshake.Outcome outcome) {
+            final UnlockTracer tracer = mTracer;
+            final int phaseMicros[] = new int[UnlockTracer.Phase.values().length];
+            if (tracer != null) {
+                tracer.finish(mAddress, outcome.name().toLowerCase(Locale.US), phaseMicros);
+            } else {
+                for (int i = 0; i < phaseMicros.length; i++) {
+                    phaseMicros[i] = -1;
+                }
+            }
+            final UnlockJournal journal = mJournal;
+            // Locks dropped from the queue never made an attempt.
+            if (journal != null && mStartMillis != 0) {
+                journal.append(mAddress, mChallenge, toLockState(outcome), phaseMicros);
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jolomb.iotprojectapp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits characteristic values that do not fit in one ATT payload into notifications, and puts
+ * them back together on the receiving side.
+ *
+ * Every fragment starts with a one byte header: bit 7 marks the last fragment of a value and
+ * bits 0-6 hold a sequence number that starts at 0 and wraps at 128. The rest of the fragment is
+ * payload. A peer streams all fragments of a value back to back, so a 384 byte RSA 3072
+ * signature takes two notifications at a 247 byte MTU instead of a read and several read blob
+ * round trips at the default MTU.
+ */
+public final class FragmentCodec {
+
+    // ATT opcode and attribute handle in front of every notification payload.
+    public final static int ATT_HEADER_LENGTH = 3;
+    public final static int HEADER_LENGTH = 1;
+
+    private final static int LAST_FLAG = 0x80;
+    private final static int SEQUENCE_MASK = 0x7f;
+
+    private FragmentCodec() {
+    }
+
+    /**
+     * @return The number of value bytes one fragment carries at the given ATT MTU.
+     */
+    public static int payloadSize(int mtu) {
+        return mtu - ATT_HEADER_LENGTH - HEADER_LENGTH;
+    }
+
+    /**
+     * Splits {@code value} into fragments that each fit in one notification at the given ATT MTU.
+     * An empty value yields a single, empty, last fragment.
+     */
+    public static List<byte[]> split(byte[] value, int mtu) {
+        final int payload = payloadSize(mtu);
+        if (payload <= 0) {
+            throw new IllegalArgumentException("MTU too small: " + mtu);
+        }
+        final int count = Math.max(1, (value.length + payload - 1) / payload);
+        final List<byte[]> fragments = new ArrayList<byte[]>(count);
+        for (int i = 0; i < count; i++) {
+            final int offset = i * payload;
+            final int length = Math.min(payload, value.length - offset);
+            final byte fragment[] = new byte[HEADER_LENGTH + length];
+            fragment[0] = (byte) ((i & SEQUENCE_MASK) | (i == count - 1 ? LAST_FLAG : 0));
+            System.arraycopy(value, offset, fragment, HEADER_LENGTH, length);
+            fragments.add(fragment);
+        }
+        return fragments;
+    }
+
+    /**
+     * Reassembles the fragments of one characteristic. Fragments must be offered in the order
+     * they were received.
+     */
+    public static class Reassembler {
+
+        private final int mMaxLength;
+        private byte mBuffer[];
+        private int mLength;
+        private int mNextSequence;
+        private int mErrorCount;
+
+        /**
+         * @param maxLength Largest value accepted; longer streams are dropped.
+         */
+        public Reassembler(int maxLength) {
+            mMaxLength = maxLength;
+            mBuffer = new byte[Math.min(maxLength, 512)];
+        }
+
+        /**
+         * @return The complete value when {@code fragment} is the last one of a value, otherwise
+         *         {@code null}. A fragment out of sequence, or one that would grow the value past
+         *         the maximum length, drops the value being assembled.
+         */
+        public synchronized byte[] offer(byte[] fragment) {
+            if (fragment == null || fragment.length < HEADER_LENGTH) {
+                return fail();
+            }
+            final int header = fragment[0] & 0xff;
+            final int sequence = header & SEQUENCE_MASK;
+            if (sequence != mNextSequence) {
+                if (sequence != 0) {
+                    return fail();
+                }
+                // A new value starting mid-stream means the tail of the last one was lost.
+                fail();
+            }
+            final int length = fragment.length - HEADER_LENGTH;
+            if (mLength + length > mMaxLength) {
+                return fail();
+            }
+            if (mLength + length > mBuffer.length) {
+                final byte grown[] = new byte[Math.min(mMaxLength,
+                        Math.max(mBuffer.length * 2, mLength + length))];
+                System.arraycopy(mBuffer, 0, grown, 0, mLength);
+                mBuffer = grown;
+            }
+            System.arraycopy(fragment, HEADER_LENGTH, mBuffer, mLength, length);
+            mLength += length;
+            mNextSequence = (sequence + 1) & SEQUENCE_MASK;
+            if ((header & LAST_FLAG) == 0) {
+                return null;
+            }
+            final byte value[] = new byte[mLength];
+            System.arraycopy(mBuffer, 0, value, 0, mLength);
+            reset();
+            return value;
+        }
+
+        /**
+         * @return How many values were dropped because of missing or oversized fragments.
+         */
+        public synchronized int getErrorCount() {
+            return mErrorCount;
+        }
+
+        public synchronized boolean isIdle() {
+            return mLength == 0 && mNextSequence == 0;
+        }
+
+        public synchronized void reset() {
+            mLength = 0;
+            mNextSequence = 0;
+        }
+
+        private byte[] fail() {
+            mErrorCount++;
+            reset();
+            return null;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jolomb.iotprojectapp;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Coalesces update requests coming from any thread into at most one call of a task per display
+ * frame, run on the main thread.
+ */
+public class FrameBatcher {
+    private final Runnable mTask;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mScheduled.set(false);
+            mTask.run();
+        }
+    };
+
+    private final Runnable mPostFrameCallback = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(mFrameCallback);
+        }
+    };
+
+    /**
+     * @param task Runs on the main thread on the next frame after {@link #request()}.
+     */
+    public FrameBatcher(Runnable task) {
+        mTask = task;
+    }
+
+    /**
+     * Asks for the task to run on the next frame. Requests made before that frame are folded
+     * into the same run.
+     */
+    public void request() {
+        if (mScheduled.compareAndSet(false, true)) {
+            mMainHandler.post(mPostFrameCallback);
+        }
+    }
+
+    /**
+     * Drops a pending run.
+     */
+    public void cancel() {
+        mMainHandler.removeCallbacks(mPostFrameCallback);
+        Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+        mScheduled.set(false);
+    }
+}
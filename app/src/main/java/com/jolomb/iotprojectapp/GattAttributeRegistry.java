@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jolomb.iotprojectapp;
+
+import java.util.UUID;
+
+/**
+ * Names of known GATT attributes, keyed on the two longs of their UUID.
+ *
+ * An open addressing table with linear probing over primitive arrays: a lookup hashes the two
+ * longs and compares them in place, without building a string or a key object, and a miss just
+ * returns {@code null}. Most UUIDs on a real peripheral are unknown, so misses are the common
+ * case and are as cheap as hits.
+ *
+ * Fill the registry before sharing it; lookups are not synchronized against {@link #put}.
+ */
+public class GattAttributeRegistry {
+
+    private long mMostSignificant[];
+    private long mLeastSignificant[];
+    private String mNames[];
+    private int mSize;
+
+    public GattAttributeRegistry() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize Number of attributes the registry holds without growing.
+     */
+    public GattAttributeRegistry(int expectedSize) {
+        int capacity = 4;
+        // Keep the table at most half full so probe sequences stay short.
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    public void put(UUID uuid, String name) {
+        put(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), name);
+    }
+
+    public void put(long mostSignificant, long leastSignificant, String name) {
+        if (name == null) {
+            throw new IllegalArgumentException("name == null");
+        }
+        if ((mSize + 1) * 2 > mNames.length) {
+            grow();
+        }
+        final int mask = mNames.length - 1;
+        int index = hash(mostSignificant, leastSignificant) & mask;
+        while (mNames[index] != null) {
+            if (mMostSignificant[index] == mostSignificant
+                    && mLeastSignificant[index] == leastSignificant) {
+                mNames[index] = name;
+                return;
+            }
+            index = (index + 1) & mask;
+        }
+        mMostSignificant[index] = mostSignificant;
+        mLeastSignificant[index] = leastSignificant;
+        mNames[index] = name;
+        mSize++;
+    }
+
+    /**
+     * @return The name of the attribute, or {@code null} if it is not known.
+     */
+    public String lookup(UUID uuid) {
+        return lookup(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    /**
+     * @return The name of the attribute, or {@code defaultName} if it is not known.
+     */
+    public String lookup(UUID uuid, String defaultName) {
+        final String name = lookup(uuid);
+        return name == null ? defaultName : name;
+    }
+
+    public String lookup(long mostSignificant, long leastSignificant) {
+        final long msb[] = mMostSignificant;
+        final long lsb[] = mLeastSignificant;
+        final String names[] = mNames;
+        final int mask = names.length - 1;
+        int index = hash(mostSignificant, leastSignificant) & mask;
+        String name;
+        while ((name = names[index]) != null) {
+            if (msb[index] == mostSignificant && lsb[index] == leastSignificant) {
+                return name;
+            }
+            index = (index + 1) & mask;
+        }
+        return null;
+    }
+
+    public boolean contains(UUID uuid) {
+        return lookup(uuid) != null;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    private static int hash(long mostSignificant, long leastSignificant) {
+        // 16 bit UUIDs only differ in bits 32-47 of the high long, so mix everything down.
+        long h = mostSignificant * 0x9E3779B97F4A7C15L + leastSignificant;
+        h ^= h >>> 32;
+        h *= 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 29));
+    }
+
+    private void allocate(int capacity) {
+        mMostSignificant = new long[capacity];
+        mLeastSignificant = new long[capacity];
+        mNames = new String[capacity];
+        mSize = 0;
+    }
+
+    private void grow() {
+        final long msb[] = mMostSignificant;
+        final long lsb[] = mLeastSignificant;
+        final String names[] = mNames;
+        allocate(names.length * 2);
+        for (int i = 0; i < names.length; i++) {
+            if (names[i] != null) {
+                put(msb[i], lsb[i], names[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jolomb.iotprojectapp;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Plain description of a GATT characteristic, independent of {@code android.bluetooth}, as
+ * reported by a {@code GattTransport}.
+ */
+public class GattCharacteristicInfo {
+    // Same values as the BluetoothGattCharacteristic.PROPERTY_* constants.
+    public final static int PROPERTY_READ = 0x02;
+    public final static int PROPERTY_WRITE_NO_RESPONSE = 0x04;
+    public final static int PROPERTY_WRITE = 0x08;
+    public final static int PROPERTY_NOTIFY = 0x10;
+    public final static int PROPERTY_INDICATE = 0x20;
+
+    private final UUID mServiceUuid;
+    private final UUID mUuid;
+    private final int mProperties;
+    private final List<UUID> mDescriptorUuids;
+
+    public GattCharacteristicInfo(UUID serviceUuid, UUID uuid, int properties,
+                                  List<UUID> descriptorUuids) {
+        mServiceUuid = serviceUuid;
+        mUuid = uuid;
+        mProperties = properties;
+        mDescriptorUuids = Collections.unmodifiableList(descriptorUuids);
+    }
+
+    public UUID getServiceUuid() {
+        return mServiceUuid;
+    }
+
+    public UUID getUuid() {
+        return mUuid;
+    }
+
+    public int getProperties() {
+        return mProperties;
+    }
+
+    public boolean hasProperty(int property) {
+        return (mProperties & property) != 0;
+    }
+
+    public List<UUID> getDescriptorUuids() {
+        return mDescriptorUuids;
+    }
+
+    public boolean hasDescriptor(UUID uuid) {
+        return mDescriptorUuids.contains(uuid);
+    }
+}
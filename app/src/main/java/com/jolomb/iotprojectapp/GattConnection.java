@@ -0,0 +1,700 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jolomb.iotprojectapp;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A GATT connection to a single device, owned by {@code BluetoothLeService}. Holds the
+ * {@code GattTransport}, the connection state and the operation queue of the device, and tags
+ * every event it dispatches with the device address.
+ *
+ * The connection state is held in an atomic reference, since the transport callbacks and the
+ * callers run on different threads. With a {@code ReconnectPolicy}, a link the app did not
+ * drop itself is connected again after a jittered backoff, over the same transport when the
+ * disconnect cause allows it and over a fresh one otherwise.
+ *
+ * Plain Java: with a simulated transport it runs on any JVM.
+ */
+class GattConnection implements GattTransport.Callback {
+
+    enum ConnectionState {
+        STATE_DISCONNECTED,
+        // Dropped, with a reconnect scheduled.
+        STATE_WAITING_TO_RECONNECT,
+        STATE_CONNECTING,
+        STATE_CONNECTED
+    }
+
+    // Same values as the BluetoothGattDescriptor constants.
+    final static byte ENABLE_NOTIFICATION_VALUE[] = { 0x01, 0x00 };
+    final static byte DISABLE_NOTIFICATION_VALUE[] = { 0x00, 0x00 };
+
+    final static UUID NOTIFICATION_DESCRIPTOR_UUIDS[] = {
+            UUID.fromString("00000013-0000-1000-8000-00805f9b34fb"),
+            UUID.fromString("00000000-0000-1000-8000-00805f9b34fb")
+    };
+
+    // The ATT MTU every connection starts with, and the one asked for right after connecting.
+    // The peer answers with the largest value both sides support.
+    final static int DEFAULT_MTU = 23;
+    final static int REQUESTED_MTU = 517;
+
+    // Largest value put together from fragments, enough for an RSA 4096 signature.
+    final static int MAX_FRAGMENTED_VALUE_LENGTH = 512;
+
+    // A link with no traffic for this long drops to LinkProfile.LOW_POWER.
+    final static long LINK_IDLE_TIMEOUT_MS = 15000;
+
+    private final String mAddress;
+    private final GattTransport.Factory mTransportFactory;
+    private final GattEventDispatcher mEventDispatcher;
+    // Every request to the transport goes through this queue, one at a time.
+    private final GattOperationQueue mOperationQueue;
+    private final GattServiceCache mServiceCache;
+    private final ScheduledExecutorService mTimer;
+
+    // Characteristics whose notifications arrive as FragmentCodec fragments.
+    private final ConcurrentMap<UUID, FragmentCodec.Reassembler> mReassemblers =
+            new ConcurrentHashMap<UUID, FragmentCodec.Reassembler>();
+
+    private GattTransport mTransport;
+    private volatile int mMtu = DEFAULT_MTU;
+    private volatile UnlockTracer mTracer;
+    // Subscriptions still waiting for their descriptor writes, for the trace.
+    private final AtomicInteger mPendingSubscriptions = new AtomicInteger();
+    private final AtomicReference<ConnectionState> mConnectionState =
+            new AtomicReference<ConnectionState>(ConnectionState.STATE_DISCONNECTED);
+    // True from the connected callback of a link until its disconnected callback.
+    private final AtomicBoolean mLinkUp = new AtomicBoolean();
+
+    private volatile ReconnectPolicy mReconnectPolicy;
+    // Set by disconnect() and close(), cleared by connect().
+    private volatile boolean mDisconnectRequested;
+    private volatile ReconnectPolicy.DisconnectCause mLastDisconnectCause;
+    // Guarded by this.
+    private int mReconnectAttempt;
+    private ScheduledFuture<?> mReconnect;
+
+    private volatile LinkProfile.Listener mLinkListener;
+    private volatile long mLastTrafficNanos;
+    // Guarded by this.
+    private LinkProfile mLinkProfile;
+    private ScheduledFuture<?> mIdleCheck;
+
+    GattConnection(String address, GattTransport.Factory transportFactory,
+                   GattEventDispatcher eventDispatcher, ScheduledExecutorService timer,
+                   GattServiceCache serviceCache) {
+        mAddress = address;
+        mTransportFactory = transportFactory;
+        mEventDispatcher = eventDispatcher;
+        mOperationQueue = new GattOperationQueue(timer);
+        mServiceCache = serviceCache;
+        mTimer = timer;
+    }
+
+    @Override
+    public void onConnectionStateChange(int status, boolean connected) {
+        if (connected) {
+            // Only the attempt in progress can come up; not a link that close() or
+            // disconnect() already gave up on.
+            if (!mConnectionState.compareAndSet(ConnectionState.STATE_CONNECTING,
+                    ConnectionState.STATE_CONNECTED)) {
+                return;
+            }
+            mLinkUp.set(true);
+            synchronized (this) {
+                mReconnectAttempt = 0;
+            }
+            mMtu = DEFAULT_MTU;
+            trace(UnlockTracer.Phase.CONNECT, false);
+            for (FragmentCodec.Reassembler reassembler : mReassemblers.values()) {
+                reassembler.reset();
+            }
+            mEventDispatcher.dispatchConnected(mAddress);
+            // Setup and the handshake that follows are all round trips; keep them short.
+            setLinkProfile(LinkProfile.HANDSHAKE);
+            // Negotiate a larger MTU first so every later read, write and notification carries
+            // as much as the peer allows. Discovery goes ahead whatever the outcome.
+            final GattOperation mtuOperation = requestMtu(REQUESTED_MTU);
+            if (mtuOperation == null) {
+                discoverServices();
+            } else {
+                mtuOperation.addCallback(new GattOperation.Callback() {
+                    @Override
+                    public void onComplete(GattOperation operation) {
+                        if (operation.getStatus() != GattOperation.STATUS_DISCONNECTED) {
+                            discoverServices();
+                        }
+                    }
+                });
+            }
+        } else {
+            if (mLinkUp.compareAndSet(true, false)) {
+                // The link that was up went down. If connect() was called in the meantime the
+                // state stays STATE_CONNECTING and no reconnect is scheduled.
+                mConnectionState.compareAndSet(ConnectionState.STATE_CONNECTED,
+                        ConnectionState.STATE_DISCONNECTED);
+            } else if (!mConnectionState.compareAndSet(ConnectionState.STATE_CONNECTING,
+                    ConnectionState.STATE_DISCONNECTED)) {
+                // A repeated disconnect of a link already handled.
+                return;
+            }
+            resetLinkProfile();
+            mOperationQueue.clear(GattOperation.STATUS_DISCONNECTED);
+            final ReconnectPolicy.DisconnectCause cause = mDisconnectRequested ?
+                    ReconnectPolicy.DisconnectCause.REQUESTED : ReconnectPolicy.classify(status);
+            mLastDisconnectCause = cause;
+            mEventDispatcher.dispatchDisconnected(mAddress);
+            scheduleReconnect(cause);
+        }
+    }
+
+    /**
+     * Schedules the next connect for a dropped link, if the policy retries the cause.
+     */
+    private void scheduleReconnect(ReconnectPolicy.DisconnectCause cause) {
+        final ReconnectPolicy policy = mReconnectPolicy;
+        if (policy == null || mDisconnectRequested) {
+            return;
+        }
+        GattTransport stale = null;
+        synchronized (this) {
+            final long delayMs = policy.getDelayMs(cause, mReconnectAttempt);
+            if (delayMs < 0 || !mConnectionState.compareAndSet(
+                    ConnectionState.STATE_DISCONNECTED,
+                    ConnectionState.STATE_WAITING_TO_RECONNECT)) {
+                return;
+            }
+            mReconnectAttempt++;
+            if (!cause.reusesTransport()) {
+                stale = mTransport;
+                mTransport = null;
+            }
+            mReconnect = mTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    reconnect();
+                }
+            }, delayMs, TimeUnit.MILLISECONDS);
+        }
+        if (stale != null) {
+            stale.close();
+        }
+    }
+
+    private void reconnect() {
+        synchronized (this) {
+            mReconnect = null;
+        }
+        // Lost to disconnect(), close() or an explicit connect() in the meantime.
+        if (mDisconnectRequested || mConnectionState.get()
+                != ConnectionState.STATE_WAITING_TO_RECONNECT) {
+            return;
+        }
+        if (!connect(false)) {
+            scheduleReconnect(ReconnectPolicy.DisconnectCause.FAILED_TO_ESTABLISH);
+        }
+    }
+
+    private void cancelReconnectLocked() {
+        if (mReconnect != null) {
+            mReconnect.cancel(false);
+            mReconnect = null;
+        }
+    }
+
+    private void discoverServices() {
+        final GattTransport transport = getTransport();
+        if (transport == null) {
+            return;
+        }
+        trace(UnlockTracer.Phase.DISCOVER_SERVICES, true);
+        // A reused transport may still hold the services found last time. If they match
+        // the cached layout there is no need to discover them again.
+        if (mServiceCache.matches(mAddress, mServiceCache.findService(transport.getServices()))) {
+            trace(UnlockTracer.Phase.DISCOVER_SERVICES, false);
+            mEventDispatcher.dispatchServicesDiscovered(mAddress);
+        } else {
+            // Attempts to discover services after successful connection.
+            transport.discoverServices();
+        }
+    }
+
+    @Override
+    public void onServicesDiscovered(int status) {
+        final GattTransport transport = getTransport();
+        if (status != GattOperation.STATUS_SUCCESS || transport == null) {
+            return;
+        }
+        final GattServiceInfo service = mServiceCache.findService(transport.getServices());
+        if (service != null) {
+            mServiceCache.put(mAddress, service);
+        } else {
+            mServiceCache.remove(mAddress);
+        }
+        trace(UnlockTracer.Phase.DISCOVER_SERVICES, false);
+        mEventDispatcher.dispatchServicesDiscovered(mAddress);
+    }
+
+    @Override
+    public void onCharacteristicRead(UUID characteristicUuid, int status, byte[] value) {
+        if (status == GattOperation.STATUS_SUCCESS) {
+            mEventDispatcher.dispatchCharacteristicValue(mAddress, characteristicUuid, value);
+        }
+        mOperationQueue.onOperationComplete(GattOperation.Type.READ_CHARACTERISTIC,
+                characteristicUuid, status, value);
+    }
+
+    @Override
+    public void onCharacteristicWrite(UUID characteristicUuid, int status) {
+        mOperationQueue.onOperationComplete(GattOperation.Type.WRITE_CHARACTERISTIC,
+                characteristicUuid, status, null);
+    }
+
+    @Override
+    public void onDescriptorWrite(UUID characteristicUuid, UUID descriptorUuid, int status) {
+        mOperationQueue.onOperationComplete(GattOperation.Type.WRITE_DESCRIPTOR,
+                descriptorUuid, status, null);
+    }
+
+    @Override
+    public void onCharacteristicChanged(UUID characteristicUuid, byte[] value) {
+        mLastTrafficNanos = System.nanoTime();
+        final FragmentCodec.Reassembler reassembler = mReassemblers.get(characteristicUuid);
+        if (reassembler != null) {
+            value = reassembler.offer(value);
+            if (value == null) {
+                return;
+            }
+        }
+        mEventDispatcher.dispatchCharacteristicValue(mAddress, characteristicUuid, value);
+    }
+
+    @Override
+    public void onMtuChanged(int mtu, int status) {
+        if (status == GattOperation.STATUS_SUCCESS) {
+            mMtu = mtu;
+        }
+        mOperationQueue.onOperationComplete(GattOperation.Type.REQUEST_MTU, null, status, null);
+    }
+
+    @Override
+    public void onConnectionUpdated(int interval, int latency, int timeout, int status) {
+        final LinkProfile.Listener listener = mLinkListener;
+        if (listener != null) {
+            listener.onConnectionUpdated(mAddress, interval, latency, timeout, status);
+        }
+    }
+
+    @Override
+    public void onPhyUpdate(int txPhy, int rxPhy, int status) {
+        final LinkProfile.Listener listener = mLinkListener;
+        if (listener != null) {
+            listener.onPhyUpdated(mAddress, txPhy, rxPhy, status);
+        }
+    }
+
+    String getAddress() {
+        return mAddress;
+    }
+
+    ConnectionState getConnectionState() {
+        return mConnectionState.get();
+    }
+
+    /**
+     * @param tracer Receives the connect, discovery and subscription phases, or {@code null}.
+     */
+    void setTracer(UnlockTracer tracer) {
+        mTracer = tracer;
+    }
+
+    /**
+     * @param listener Receives the requested profiles and the negotiated parameters, or
+     *                 {@code null}.
+     */
+    void setLinkListener(LinkProfile.Listener listener) {
+        mLinkListener = listener;
+    }
+
+    /**
+     * Asks the link for the connection priority and PHY of a profile. Anything but
+     * {@link LinkProfile#LOW_POWER} falls back to it after {@link #LINK_IDLE_TIMEOUT_MS}
+     * without traffic.
+     *
+     * @return Return true if the priority request was issued, or the profile is already set.
+     */
+    boolean setLinkProfile(LinkProfile profile) {
+        final GattTransport transport = getTransport();
+        if (transport == null || mConnectionState.get() != ConnectionState.STATE_CONNECTED) {
+            return false;
+        }
+        synchronized (this) {
+            if (mLinkProfile == profile) {
+                return true;
+            }
+            mLinkProfile = profile;
+            if (mIdleCheck != null) {
+                mIdleCheck.cancel(false);
+                mIdleCheck = null;
+            }
+            mLastTrafficNanos = System.nanoTime();
+            if (profile != LinkProfile.LOW_POWER) {
+                scheduleIdleCheckLocked(LINK_IDLE_TIMEOUT_MS);
+            }
+        }
+        final boolean accepted =
+                transport.requestConnectionPriority(profile.getConnectionPriority());
+        if (profile.getPhyMask() != 0) {
+            transport.setPreferredPhy(profile.getPhyMask(), profile.getPhyMask(),
+                    LinkProfile.PHY_OPTION_NO_PREFERRED);
+        }
+        final LinkProfile.Listener listener = mLinkListener;
+        if (listener != null) {
+            listener.onLinkProfileRequested(mAddress, profile, accepted);
+        }
+        return accepted;
+    }
+
+    /**
+     * Runs {@code task} on the connection's timer thread after {@code delayMs}.
+     */
+    ScheduledFuture<?> schedule(Runnable task, long delayMs) {
+        return mTimer.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized LinkProfile getLinkProfile() {
+        return mLinkProfile;
+    }
+
+    private void scheduleIdleCheckLocked(long delayMs) {
+        mIdleCheck = mTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                checkIdle();
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void checkIdle() {
+        synchronized (this) {
+            mIdleCheck = null;
+            if (mLinkProfile == null || mLinkProfile == LinkProfile.LOW_POWER) {
+                return;
+            }
+            final long idleMs = TimeUnit.NANOSECONDS.toMillis(
+                    System.nanoTime() - mLastTrafficNanos);
+            if (idleMs < LINK_IDLE_TIMEOUT_MS) {
+                scheduleIdleCheckLocked(LINK_IDLE_TIMEOUT_MS - idleMs);
+                return;
+            }
+        }
+        setLinkProfile(LinkProfile.LOW_POWER);
+    }
+
+    private synchronized void resetLinkProfile() {
+        mLinkProfile = null;
+        if (mIdleCheck != null) {
+            mIdleCheck.cancel(false);
+            mIdleCheck = null;
+        }
+    }
+
+    /**
+     * @return The negotiated ATT MTU of the current connection.
+     */
+    int getMtu() {
+        return mMtu;
+    }
+
+    /**
+     * @return Return true while connecting or connected. Active connections count against the
+     *         connection cap of the service.
+     */
+    boolean isActive() {
+        return mConnectionState.get() != ConnectionState.STATE_DISCONNECTED;
+    }
+
+    /**
+     * Connects, reusing the existing transport when there is one. Cancels a pending reconnect
+     * and starts its backoff over. Returns true right away if the link is already up.
+     */
+    boolean connect() {
+        return connect(true);
+    }
+
+    private boolean connect(boolean requested) {
+        final GattTransport transport;
+        synchronized (this) {
+            if (requested) {
+                mDisconnectRequested = false;
+                mReconnectAttempt = 0;
+                cancelReconnectLocked();
+            } else if (mDisconnectRequested) {
+                return false;
+            }
+            if (mLinkUp.get() && mConnectionState.get() == ConnectionState.STATE_CONNECTED) {
+                // Already connected; the state must not go back to connecting.
+                return true;
+            }
+            if (mTransport == null) {
+                mTransport = mTransportFactory.create(mAddress, this);
+                if (mTransport == null) {
+                    mConnectionState.set(ConnectionState.STATE_DISCONNECTED);
+                    return false;
+                }
+            }
+            transport = mTransport;
+            mConnectionState.set(ConnectionState.STATE_CONNECTING);
+        }
+        trace(UnlockTracer.Phase.CONNECT, true);
+        if (!transport.connect()) {
+            mConnectionState.compareAndSet(ConnectionState.STATE_CONNECTING,
+                    ConnectionState.STATE_DISCONNECTED);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param policy Reconnects links dropped without {@link #disconnect()}, or {@code null} to
+     *               leave them down.
+     */
+    void setReconnectPolicy(ReconnectPolicy policy) {
+        mReconnectPolicy = policy;
+    }
+
+    /**
+     * @return Why the link went down last, or {@code null} if it never did.
+     */
+    ReconnectPolicy.DisconnectCause getLastDisconnectCause() {
+        return mLastDisconnectCause;
+    }
+
+    void disconnect() {
+        synchronized (this) {
+            mDisconnectRequested = true;
+            cancelReconnectLocked();
+        }
+        mConnectionState.compareAndSet(ConnectionState.STATE_WAITING_TO_RECONNECT,
+                ConnectionState.STATE_DISCONNECTED);
+        final GattTransport transport = getTransport();
+        if (transport != null) {
+            transport.disconnect();
+        }
+    }
+
+    void close() {
+        final GattTransport transport;
+        synchronized (this) {
+            mDisconnectRequested = true;
+            cancelReconnectLocked();
+            transport = mTransport;
+            mTransport = null;
+        }
+        mOperationQueue.clear(GattOperation.STATUS_DISCONNECTED);
+        mConnectionState.set(ConnectionState.STATE_DISCONNECTED);
+        mLinkUp.set(false);
+        resetLinkProfile();
+        if (transport != null) {
+            transport.close();
+        }
+    }
+
+    List<GattServiceInfo> getServices() {
+        final GattTransport transport = getTransport();
+        if (transport == null) return Collections.emptyList();
+
+        return transport.getServices();
+    }
+
+    /**
+     * @return The cached service if it still matches the services held by the transport,
+     *         {@code null} on a cache miss.
+     */
+    GattServiceInfo getCachedService() {
+        final GattServiceInfo service = mServiceCache.findService(getServices());
+        return mServiceCache.matches(mAddress, service) ? service : null;
+    }
+
+    GattOperation readCharacteristic(final GattCharacteristicInfo characteristic) {
+        final GattTransport transport = getTransport();
+        if (transport == null) {
+            return null;
+        }
+        mLastTrafficNanos = System.nanoTime();
+        return mOperationQueue.enqueue(new GattOperation(GattOperation.Type.READ_CHARACTERISTIC,
+                characteristic.getUuid()) {
+            @Override
+            protected boolean execute() {
+                return transport.readCharacteristic(characteristic.getServiceUuid(),
+                        characteristic.getUuid());
+            }
+        });
+    }
+
+    GattOperation writeCharacteristic(GattCharacteristicInfo characteristic, byte[] value) {
+        return writeCharacteristic(characteristic, value, true);
+    }
+
+    /**
+     * @param withResponse False to write with {@code WRITE_TYPE_NO_RESPONSE}, which saves the
+     *                     ATT write response round trip. The operation then completes once the
+     *                     value is sent, so the caller has to confirm delivery by other means.
+     */
+    GattOperation writeCharacteristic(final GattCharacteristicInfo characteristic,
+                                      byte[] value, final boolean withResponse) {
+        final GattTransport transport = getTransport();
+        if (transport == null) {
+            return null;
+        }
+        mLastTrafficNanos = System.nanoTime();
+        final byte valueBytes[] = value.clone();
+        return mOperationQueue.enqueue(new GattOperation(GattOperation.Type.WRITE_CHARACTERISTIC,
+                characteristic.getUuid()) {
+            @Override
+            protected boolean execute() {
+                if (!withResponse) {
+                    return transport.writeCharacteristicWithoutResponse(
+                            characteristic.getServiceUuid(), characteristic.getUuid(),
+                            valueBytes);
+                }
+                return transport.writeCharacteristic(characteristic.getServiceUuid(),
+                        characteristic.getUuid(), valueBytes);
+            }
+        });
+    }
+
+    GattOperation setCharacteristicNotification(final GattCharacteristicInfo characteristic,
+                                                final boolean enabled) {
+        final GattTransport transport = getTransport();
+        if (transport == null) {
+            return null;
+        }
+        final UUID serviceUuid = characteristic.getServiceUuid();
+        final UUID characteristicUuid = characteristic.getUuid();
+        transport.setCharacteristicNotification(serviceUuid, characteristicUuid, enabled);
+
+        // A bonded peer keeps the subscription across connections, so the descriptor write is
+        // only needed the first time. The skip still shows up in the trace, as an empty span.
+        if (enabled && transport.isBonded()
+                && mServiceCache.isNotifying(mAddress, characteristicUuid)) {
+            if (mPendingSubscriptions.get() == 0) {
+                trace(UnlockTracer.Phase.ENABLE_NOTIFICATIONS, true);
+                trace(UnlockTracer.Phase.ENABLE_NOTIFICATIONS, false);
+            }
+            final GattOperation skipped = new GattOperation(GattOperation.Type.WRITE_DESCRIPTOR,
+                    NOTIFICATION_DESCRIPTOR_UUIDS[0]) {
+                @Override
+                protected boolean execute() {
+                    return true;
+                }
+            };
+            skipped.complete(GattOperation.STATUS_SUCCESS, null);
+            return skipped;
+        }
+
+        final byte descriptorValue[] = enabled ?
+                ENABLE_NOTIFICATION_VALUE : DISABLE_NOTIFICATION_VALUE;
+        GattOperation lastOperation = null;
+        for (final UUID descriptorUuid : NOTIFICATION_DESCRIPTOR_UUIDS) {
+            if (!characteristic.hasDescriptor(descriptorUuid)) {
+                continue;
+            }
+            lastOperation = mOperationQueue.enqueue(new GattOperation(
+                    GattOperation.Type.WRITE_DESCRIPTOR, descriptorUuid) {
+                @Override
+                protected boolean execute() {
+                    return transport.writeDescriptor(serviceUuid, characteristicUuid,
+                            descriptorUuid, descriptorValue);
+                }
+            });
+        }
+        if (lastOperation != null) {
+            if (enabled && mPendingSubscriptions.getAndIncrement() == 0) {
+                trace(UnlockTracer.Phase.ENABLE_NOTIFICATIONS, true);
+            }
+            lastOperation.addCallback(new GattOperation.Callback() {
+                @Override
+                public void onComplete(GattOperation operation) {
+                    if (operation.isSuccessful()) {
+                        mServiceCache.setNotifying(mAddress, characteristicUuid, enabled);
+                    }
+                    if (enabled && mPendingSubscriptions.decrementAndGet() == 0) {
+                        trace(UnlockTracer.Phase.ENABLE_NOTIFICATIONS, false);
+                    }
+                }
+            });
+        }
+        return lastOperation;
+    }
+
+    /**
+     * Like {@link #setCharacteristicNotification(GattCharacteristicInfo, boolean)}, for a
+     * characteristic the peer streams as {@code FragmentCodec} fragments. Listeners only see
+     * the reassembled values.
+     */
+    GattOperation setFragmentedNotification(GattCharacteristicInfo characteristic,
+                                            boolean enabled) {
+        if (enabled) {
+            mReassemblers.putIfAbsent(characteristic.getUuid(),
+                    new FragmentCodec.Reassembler(MAX_FRAGMENTED_VALUE_LENGTH));
+        } else {
+            mReassemblers.remove(characteristic.getUuid());
+        }
+        return setCharacteristicNotification(characteristic, enabled);
+    }
+
+    GattOperation requestMtu(final int mtu) {
+        final GattTransport transport = getTransport();
+        if (transport == null) {
+            return null;
+        }
+        return mOperationQueue.enqueue(new GattOperation(GattOperation.Type.REQUEST_MTU, null) {
+            @Override
+            protected boolean execute() {
+                return transport.requestMtu(mtu);
+            }
+        });
+    }
+
+    private void trace(UnlockTracer.Phase phase, boolean begin) {
+        final UnlockTracer tracer = mTracer;
+        if (tracer == null) {
+            return;
+        }
+        if (begin) {
+            tracer.begin(mAddress, phase);
+        } else {
+            tracer.end(mAddress, phase);
+        }
+    }
+
+    private synchronized GattTransport getTransport() {
+        return mTransport;
+    }
+}
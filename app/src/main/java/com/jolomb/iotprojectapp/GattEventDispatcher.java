@@ -0,0 +1,399 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jolomb.iotprojectapp;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * In-process fan out of GATT events to registered listeners, each on the executor it was
+ * registered with.
+ *
+ * Registrations are held in copy-on-write lists, so dispatching never takes a lock and
+ * registering or removing a listener from inside a callback is safe. Characteristic listeners
+ * are indexed by UUID, so a value is only handed to the listeners of its characteristic plus the
+ * listeners registered for every event.
+ *
+ * A characteristic listener can also be registered with a {@code NotificationRingBuffer}. Its
+ * values are then queued and handed over in batches by one task per burst, instead of one
+ * executor task per value, which keeps a chattering lock from flooding the main looper. The
+ * events for listeners registered for every event are queued and batched the same way, in the
+ * order they were dispatched, unless the listener runs on the {@link #DIRECT_EXECUTOR}.
+ */
+public class GattEventDispatcher {
+
+    /**
+     * Runs listeners on the thread that dispatches the event.
+     */
+    public final static Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static class Registration<T> {
+        final T listener;
+        final Executor executor;
+
+        Registration(T listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+    }
+
+    private final static int DRAIN_BATCH_SIZE = 8;
+
+    private static class BufferedRegistration extends Registration<CharacteristicListener>
+            implements Runnable {
+        final NotificationRingBuffer buffer;
+        final UUID uuid;
+        // Only one drain is scheduled at a time, so the batch arrays are not shared.
+        final String batchAddresses[];
+        final byte batchValues[][];
+
+        BufferedRegistration(UUID uuid, CharacteristicListener listener, Executor executor,
+                             NotificationRingBuffer buffer) {
+            super(listener, executor);
+            this.uuid = uuid;
+            this.buffer = buffer;
+            final int batchSize = Math.min(DRAIN_BATCH_SIZE, buffer.getCapacity());
+            batchAddresses = new String[batchSize];
+            batchValues = new byte[batchSize][];
+        }
+
+        @Override
+        public void run() {
+            int count;
+            while ((count = buffer.drain(batchAddresses, batchValues)) > 0) {
+                for (int i = 0; i < count; i++) {
+                    listener.onCharacteristicValue(batchAddresses[i], uuid, batchValues[i]);
+                    batchAddresses[i] = null;
+                    batchValues[i] = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * How many characteristic values a listener registered for every event may have queued.
+     * They are of all characteristics, so it is larger than
+     * {@link NotificationRingBuffer#DEFAULT_CAPACITY}.
+     */
+    private final static int LISTENER_BUFFER_CAPACITY = 64;
+
+    /**
+     * Queues the events of a listener registered for every event, connection events and values
+     * alike, so they reach it in the order they were dispatched. Values arriving while
+     * {@link #LISTENER_BUFFER_CAPACITY} of them are queued are dropped and counted; connection
+     * events are always kept.
+     */
+    private static class BufferedListenerRegistration extends Registration<GattEventListener>
+            implements Runnable {
+        final static int CONNECTED = 0;
+        final static int DISCONNECTED = 1;
+        final static int SERVICES_DISCOVERED = 2;
+        final static int CHARACTERISTIC_VALUE = 3;
+
+        private static class Event {
+            final int type;
+            final String address;
+            final UUID uuid;
+            final byte value[];
+
+            Event(int type, String address, UUID uuid, byte[] value) {
+                this.type = type;
+                this.address = address;
+                this.uuid = uuid;
+                this.value = value;
+            }
+        }
+
+        private final ArrayDeque<Event> mEvents = new ArrayDeque<Event>();
+        // Only one drain is scheduled at a time, so the batch is not shared.
+        private final Event mBatch[] = new Event[DRAIN_BATCH_SIZE];
+        private int mValueCount;
+        private boolean mDrainScheduled;
+        private long mOverflowCount;
+
+        BufferedListenerRegistration(GattEventListener listener, Executor executor) {
+            super(listener, executor);
+        }
+
+        void post(int type, String address, UUID uuid, byte[] value) {
+            if (offer(new Event(type, address, uuid, value))) {
+                executor.execute(this);
+            }
+        }
+
+        /**
+         * @return True if the caller has to schedule a drain.
+         */
+        private synchronized boolean offer(Event event) {
+            if (event.type == CHARACTERISTIC_VALUE) {
+                if (mValueCount == LISTENER_BUFFER_CAPACITY) {
+                    mOverflowCount++;
+                    return false;
+                }
+                mValueCount++;
+            }
+            mEvents.add(event);
+            if (mDrainScheduled) {
+                return false;
+            }
+            mDrainScheduled = true;
+            return true;
+        }
+
+        private synchronized int take(Event[] batch) {
+            int count = 0;
+            while (count < batch.length && !mEvents.isEmpty()) {
+                final Event event = mEvents.poll();
+                if (event.type == CHARACTERISTIC_VALUE) {
+                    mValueCount--;
+                }
+                batch[count++] = event;
+            }
+            if (count == 0) {
+                mDrainScheduled = false;
+            }
+            return count;
+        }
+
+        synchronized void clear() {
+            mEvents.clear();
+            mValueCount = 0;
+        }
+
+        synchronized long getOverflowCount() {
+            return mOverflowCount;
+        }
+
+        @Override
+        public void run() {
+            int count;
+            while ((count = take(mBatch)) > 0) {
+                for (int i = 0; i < count; i++) {
+                    final Event event = mBatch[i];
+                    mBatch[i] = null;
+                    switch (event.type) {
+                        case CONNECTED:
+                            listener.onConnected(event.address);
+                            break;
+                        case DISCONNECTED:
+                            listener.onDisconnected(event.address);
+                            break;
+                        case SERVICES_DISCOVERED:
+                            listener.onServicesDiscovered(event.address);
+                            break;
+                        default:
+                            listener.onCharacteristicValue(event.address, event.uuid,
+                                    event.value);
+                            break;
+                    }
+                }
+            }
+        }
+    }
+
+    private final CopyOnWriteArrayList<Registration<GattEventListener>> mListeners =
+            new CopyOnWriteArrayList<Registration<GattEventListener>>();
+    private final ConcurrentMap<UUID, CopyOnWriteArrayList<Registration<CharacteristicListener>>>
+            mCharacteristicListeners =
+            new ConcurrentHashMap<UUID, CopyOnWriteArrayList<Registration<CharacteristicListener>>>();
+
+    public void registerListener(GattEventListener listener, Executor executor) {
+        if (executor == DIRECT_EXECUTOR) {
+            mListeners.add(new Registration<GattEventListener>(listener, executor));
+        } else {
+            mListeners.add(new BufferedListenerRegistration(listener, executor));
+        }
+    }
+
+    public void unregisterListener(GattEventListener listener) {
+        remove(mListeners, listener);
+    }
+
+    public void registerCharacteristicListener(UUID uuid, CharacteristicListener listener,
+                                               Executor executor) {
+        characteristicRegistrations(uuid).add(
+                new Registration<CharacteristicListener>(listener, executor));
+    }
+
+    /**
+     * Registers a listener whose values are queued in a ring buffer and delivered in batches.
+     *
+     * @return The buffer, for its overflow and coalescing counters.
+     */
+    public NotificationRingBuffer registerCharacteristicListener(
+            UUID uuid, CharacteristicListener listener, Executor executor,
+            NotificationRingBuffer.Policy policy, int capacity) {
+        final NotificationRingBuffer buffer = new NotificationRingBuffer(policy, capacity);
+        characteristicRegistrations(uuid).add(
+                new BufferedRegistration(uuid, listener, executor, buffer));
+        return buffer;
+    }
+
+    public void unregisterCharacteristicListener(UUID uuid, CharacteristicListener listener) {
+        List<Registration<CharacteristicListener>> registrations =
+                mCharacteristicListeners.get(uuid);
+        if (registrations != null) {
+            remove(registrations, listener);
+        }
+    }
+
+    /**
+     * @return The values lost to full ring buffers, over every buffered listener.
+     */
+    public long getOverflowCount() {
+        long count = 0;
+        for (Registration<GattEventListener> registration : mListeners) {
+            if (registration instanceof BufferedListenerRegistration) {
+                count += ((BufferedListenerRegistration) registration).getOverflowCount();
+            }
+        }
+        for (List<Registration<CharacteristicListener>> registrations :
+                mCharacteristicListeners.values()) {
+            for (Registration<CharacteristicListener> registration : registrations) {
+                if (registration instanceof BufferedRegistration) {
+                    count += ((BufferedRegistration) registration).buffer.getOverflowCount();
+                }
+            }
+        }
+        return count;
+    }
+
+    public boolean hasListeners() {
+        return !mListeners.isEmpty() || !mCharacteristicListeners.isEmpty();
+    }
+
+    public void dispatchConnected(final String address) {
+        for (final Registration<GattEventListener> registration : mListeners) {
+            if (registration instanceof BufferedListenerRegistration) {
+                ((BufferedListenerRegistration) registration).post(
+                        BufferedListenerRegistration.CONNECTED, address, null, null);
+                continue;
+            }
+            registration.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.listener.onConnected(address);
+                }
+            });
+        }
+    }
+
+    public void dispatchDisconnected(final String address) {
+        for (final Registration<GattEventListener> registration : mListeners) {
+            if (registration instanceof BufferedListenerRegistration) {
+                ((BufferedListenerRegistration) registration).post(
+                        BufferedListenerRegistration.DISCONNECTED, address, null, null);
+                continue;
+            }
+            registration.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.listener.onDisconnected(address);
+                }
+            });
+        }
+    }
+
+    public void dispatchServicesDiscovered(final String address) {
+        for (final Registration<GattEventListener> registration : mListeners) {
+            if (registration instanceof BufferedListenerRegistration) {
+                ((BufferedListenerRegistration) registration).post(
+                        BufferedListenerRegistration.SERVICES_DISCOVERED, address, null, null);
+                continue;
+            }
+            registration.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.listener.onServicesDiscovered(address);
+                }
+            });
+        }
+    }
+
+    public void dispatchCharacteristicValue(final String address, final UUID uuid,
+                                            final byte[] value) {
+        final List<Registration<CharacteristicListener>> registrations =
+                mCharacteristicListeners.get(uuid);
+        if (registrations != null) {
+            for (final Registration<CharacteristicListener> registration : registrations) {
+                if (registration instanceof BufferedRegistration) {
+                    final BufferedRegistration buffered = (BufferedRegistration) registration;
+                    if (buffered.buffer.offer(address, value)) {
+                        buffered.executor.execute(buffered);
+                    }
+                    continue;
+                }
+                registration.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        registration.listener.onCharacteristicValue(address, uuid, value);
+                    }
+                });
+            }
+        }
+        for (final Registration<GattEventListener> registration : mListeners) {
+            if (registration instanceof BufferedListenerRegistration) {
+                ((BufferedListenerRegistration) registration).post(
+                        BufferedListenerRegistration.CHARACTERISTIC_VALUE, address, uuid, value);
+                continue;
+            }
+            registration.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.listener.onCharacteristicValue(address, uuid, value);
+                }
+            });
+        }
+    }
+
+    private CopyOnWriteArrayList<Registration<CharacteristicListener>>
+            characteristicRegistrations(UUID uuid) {
+        CopyOnWriteArrayList<Registration<CharacteristicListener>> registrations =
+                mCharacteristicListeners.get(uuid);
+        if (registrations == null) {
+            registrations = new CopyOnWriteArrayList<Registration<CharacteristicListener>>();
+            CopyOnWriteArrayList<Registration<CharacteristicListener>> existing =
+                    mCharacteristicListeners.putIfAbsent(uuid, registrations);
+            if (existing != null) {
+                registrations = existing;
+            }
+        }
+        return registrations;
+    }
+
+    private static <T> void remove(List<Registration<T>> registrations, T listener) {
+        for (Registration<T> registration : registrations) {
+            if (registration.listener == listener) {
+                registrations.remove(registration);
+                if (registration instanceof BufferedRegistration) {
+                    ((BufferedRegistration) registration).buffer.clear();
+                } else if (registration instanceof BufferedListenerRegistration) {
+                    ((BufferedListenerRegistration) registration).clear();
+                }
+            }
+        }
+    }
+}
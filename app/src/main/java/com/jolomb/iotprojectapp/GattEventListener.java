@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jolomb.iotprojectapp;
+
+import java.util.UUID;
+
+/**
+ * Receives the connection, discovery and data events of {@code BluetoothLeService}.
+ *
+ * Register through {@code BluetoothLeService.LocalBinder}. Extend {@link Adapter} to only
+ * override the events of interest.
+ */
+public interface GattEventListener extends CharacteristicListener {
+
+    void onConnected(String address);
+
+    void onDisconnected(String address);
+
+    void onServicesDiscovered(String address);
+
+    /**
+     * No-op implementation of every event.
+     */
+    abstract class Adapter implements GattEventListener {
+        @Override
+        public void onConnected(String address) {
+        }
+
+        @Override
+        public void onDisconnected(String address) {
+        }
+
+        @Override
+        public void onServicesDiscovered(String address) {
+        }
+
+        @Override
+        public void onCharacteristicValue(String address, UUID uuid, byte[] value) {
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jolomb.iotprojectapp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A single GATT request scheduled on a {@code GattOperationQueue}. Subclasses issue the actual
+ * request in {@link #execute()}; the queue completes the operation once the matching
+ * {@code BluetoothGattCallback} completion arrives, or when the operation times out.
+ *
+ * The operation doubles as the completion future of the request. {@link #get()} returns the
+ * value carried by the completion (the characteristic value for reads, {@code null} otherwise)
+ * and throws an {@code ExecutionException} if the request did not succeed.
+ */
+public abstract class GattOperation implements Future<byte[]> {
+
+    public enum Type {
+        READ_CHARACTERISTIC,
+        WRITE_CHARACTERISTIC,
+        WRITE_DESCRIPTOR,
+        REQUEST_MTU
+    }
+
+    /**
+     * Notified exactly once, on the thread that completed the operation, or on the thread that
+     * added it if the operation had already completed.
+     */
+    public interface Callback {
+        void onComplete(GattOperation operation);
+    }
+
+    // Same value as BluetoothGatt.GATT_SUCCESS, kept here so the queue stays plain Java.
+    public final static int STATUS_SUCCESS = 0;
+    public final static int STATUS_PENDING = -1;
+    public final static int STATUS_TIMEOUT = -2;
+    public final static int STATUS_CANCELLED = -3;
+    public final static int STATUS_FAILED_TO_START = -4;
+    public final static int STATUS_DISCONNECTED = -5;
+
+    public final static long DEFAULT_TIMEOUT_MS = 5000;
+
+    private final Type mType;
+    private final UUID mUuid;
+    private final long mTimeoutMs;
+    private final CountDownLatch mDone = new CountDownLatch(1);
+
+    private volatile int mStatus = STATUS_PENDING;
+    private volatile byte[] mValue;
+    // Guarded by this. Null once the operation completed.
+    private List<Callback> mCallbacks = new ArrayList<Callback>(1);
+
+    /**
+     * @param type The kind of request, used to match the completion callback.
+     * @param uuid UUID of the characteristic or descriptor the request targets, or {@code null}
+     *             for requests without a target attribute such as MTU negotiation.
+     * @param timeoutMs How long the queue waits for the completion before failing the operation
+     *                  with {@link #STATUS_TIMEOUT} and moving on.
+     */
+    protected GattOperation(Type type, UUID uuid, long timeoutMs) {
+        mType = type;
+        mUuid = uuid;
+        mTimeoutMs = timeoutMs;
+    }
+
+    protected GattOperation(Type type, UUID uuid) {
+        this(type, uuid, DEFAULT_TIMEOUT_MS);
+    }
+
+    /**
+     * Issues the request. Called by the queue once every earlier operation has completed.
+     *
+     * @return Return true if the request was handed to the stack. False fails the operation with
+     *         {@link #STATUS_FAILED_TO_START}.
+     */
+    protected abstract boolean execute();
+
+    public Type getType() {
+        return mType;
+    }
+
+    public UUID getUuid() {
+        return mUuid;
+    }
+
+    public long getTimeoutMs() {
+        return mTimeoutMs;
+    }
+
+    public int getStatus() {
+        return mStatus;
+    }
+
+    public byte[] getValue() {
+        return mValue;
+    }
+
+    public boolean isSuccessful() {
+        return mStatus == STATUS_SUCCESS;
+    }
+
+    /**
+     * Adds a callback invoked on completion, after the ones added before it. If the operation
+     * already completed, the callback is invoked right away on the calling thread.
+     */
+    public GattOperation addCallback(Callback callback) {
+        synchronized (this) {
+            if (mCallbacks != null) {
+                mCallbacks.add(callback);
+                return this;
+            }
+        }
+        callback.onComplete(this);
+        return this;
+    }
+
+    boolean matches(Type type, UUID uuid) {
+        return mType == type && (mUuid == null || uuid == null || mUuid.equals(uuid));
+    }
+
+    /**
+     * Completes the operation.
+     *
+     * @return Return false if the operation had already completed.
+     */
+    boolean complete(int status, byte[] value) {
+        final List<Callback> callbacks;
+        synchronized (this) {
+            if (mStatus != STATUS_PENDING) {
+                return false;
+            }
+            mValue = value;
+            mStatus = status;
+            callbacks = mCallbacks;
+            mCallbacks = null;
+        }
+        mDone.countDown();
+        for (int i = 0; i < callbacks.size(); i++) {
+            callbacks.get(i).onComplete(this);
+        }
+        return true;
+    }
+
+    /**
+     * Cancels the operation if it has not completed yet. An operation that has already been
+     * issued to the stack still occupies the queue until its completion or timeout arrives.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return complete(STATUS_CANCELLED, null);
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return mStatus == STATUS_CANCELLED;
+    }
+
+    @Override
+    public boolean isDone() {
+        return mStatus != STATUS_PENDING;
+    }
+
+    @Override
+    public byte[] get() throws InterruptedException, ExecutionException {
+        mDone.await();
+        return result();
+    }
+
+    @Override
+    public byte[] get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!mDone.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return result();
+    }
+
+    private byte[] result() throws ExecutionException {
+        final int status = mStatus;
+        if (status == STATUS_CANCELLED) {
+            throw new CancellationException();
+        }
+        if (status != STATUS_SUCCESS) {
+            throw new ExecutionException(new IllegalStateException(
+                    mType + " " + mUuid + " failed with status " + status));
+        }
+        return mValue;
+    }
+
+    @Override
+    public String toString() {
+        return mType + "(" + mUuid + ")";
+    }
+}
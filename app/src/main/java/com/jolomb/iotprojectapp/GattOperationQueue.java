@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jolomb.iotprojectapp;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializes GATT requests. Android only allows one outstanding request per
+ * {@code BluetoothGatt}; anything issued while another request is in flight is silently
+ * dropped. The queue issues one {@code GattOperation} at a time and starts the next one when
+ * {@link #onOperationComplete(GattOperation.Type, UUID, int, byte[])} reports the completion of
+ * the current one, or when the current one times out.
+ */
+public class GattOperationQueue {
+
+    private final ScheduledExecutorService mTimer;
+    private final boolean mOwnsTimer;
+
+    private final LinkedList<GattOperation> mPending = new LinkedList<GattOperation>();
+    private GattOperation mCurrent;
+    private ScheduledFuture<?> mCurrentTimeout;
+
+    public GattOperationQueue() {
+        this(Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "GattOperationQueue-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }), true);
+    }
+
+    /**
+     * @param timer Executor used to schedule the per-operation timeouts. It is not shut down by
+     *              {@link #shutdown()}.
+     */
+    public GattOperationQueue(ScheduledExecutorService timer) {
+        this(timer, false);
+    }
+
+    private GattOperationQueue(ScheduledExecutorService timer, boolean ownsTimer) {
+        mTimer = timer;
+        mOwnsTimer = ownsTimer;
+    }
+
+    /**
+     * Schedules an operation. It is issued right away if the queue is idle.
+     *
+     * @return The operation, for chaining.
+     */
+    public GattOperation enqueue(GattOperation operation) {
+        synchronized (this) {
+            mPending.add(operation);
+        }
+        drive();
+        return operation;
+    }
+
+    /**
+     * Reports the completion of a request. Should be called from every
+     * {@code BluetoothGattCallback} method that completes a request type the queue handles.
+     *
+     * @return Return true if the completion matched the operation in flight.
+     */
+    public boolean onOperationComplete(GattOperation.Type type, UUID uuid, int status,
+                                       byte[] value) {
+        final GattOperation operation;
+        synchronized (this) {
+            if (mCurrent == null || !mCurrent.matches(type, uuid)) {
+                return false;
+            }
+            operation = mCurrent;
+            finishCurrentLocked();
+        }
+        operation.complete(status, value);
+        drive();
+        return true;
+    }
+
+    /**
+     * Fails the operation in flight and every pending operation with the given status, for
+     * example when the link drops.
+     */
+    public void clear(int status) {
+        final List<GattOperation> dropped = new ArrayList<GattOperation>();
+        synchronized (this) {
+            if (mCurrent != null) {
+                dropped.add(mCurrent);
+                finishCurrentLocked();
+            }
+            dropped.addAll(mPending);
+            mPending.clear();
+        }
+        for (GattOperation operation : dropped) {
+            operation.complete(status, null);
+        }
+    }
+
+    /**
+     * Fails all operations and releases the timer thread if the queue created it.
+     */
+    public void shutdown() {
+        clear(GattOperation.STATUS_CANCELLED);
+        if (mOwnsTimer) {
+            mTimer.shutdownNow();
+        }
+    }
+
+    public synchronized int size() {
+        return mPending.size() + (mCurrent == null ? 0 : 1);
+    }
+
+    public synchronized boolean isIdle() {
+        return mCurrent == null && mPending.isEmpty();
+    }
+
+    private void finishCurrentLocked() {
+        mCurrent = null;
+        if (mCurrentTimeout != null) {
+            mCurrentTimeout.cancel(false);
+            mCurrentTimeout = null;
+        }
+    }
+
+    private void drive() {
+        while (true) {
+            final GattOperation next;
+            synchronized (this) {
+                if (mCurrent != null) {
+                    return;
+                }
+                next = mPending.poll();
+                if (next == null) {
+                    return;
+                }
+                if (next.isDone()) {
+                    // Cancelled while it was waiting its turn.
+                    continue;
+                }
+                mCurrent = next;
+                mCurrentTimeout = mTimer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        onTimeout(next);
+                    }
+                }, next.getTimeoutMs(), TimeUnit.MILLISECONDS);
+            }
+
+            boolean started;
+            try {
+                started = next.execute();
+            } catch (RuntimeException ex) {
+                started = false;
+            }
+            if (started) {
+                return;
+            }
+            synchronized (this) {
+                if (mCurrent == next) {
+                    finishCurrentLocked();
+                }
+            }
+            next.complete(GattOperation.STATUS_FAILED_TO_START, null);
+        }
+    }
+
+    private void onTimeout(GattOperation operation) {
+        synchronized (this) {
+            if (mCurrent != operation) {
+                return;
+            }
+            mCurrentTimeout = null;
+            mCurrent = null;
+        }
+        operation.complete(GattOperation.STATUS_TIMEOUT, null);
+        drive();
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jolomb.iotprojectapp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Remembers, per device, the layout of one GATT service: which characteristics it has, their
+ * properties and whether notifications were switched on for them. The layout is persisted through
+ * a {@link Storage}, the app's shared preferences in {@code BluetoothLeService}, so it survives
+ * restarts.
+ *
+ * On reconnect the layout is checked against the services the transport still holds,
+ * which only compares a few UUIDs and property masks. Service discovery and the walk over every
+ * service and characteristic are only needed when there is no entry or it does not match.
+ */
+class GattServiceCache {
+
+    /**
+     * Key/value store the layouts are persisted in.
+     */
+    interface Storage {
+        String load(String key);
+
+        void store(String key, String value);
+
+        void remove(String key);
+    }
+
+    /**
+     * The cached layout of the service on one device.
+     */
+    static class Layout {
+        final UUID serviceUuid;
+        final List<UUID> characteristicUuids = new ArrayList<UUID>();
+        final List<Integer> properties = new ArrayList<Integer>();
+        final List<Boolean> notifying = new ArrayList<Boolean>();
+
+        Layout(UUID serviceUuid) {
+            this.serviceUuid = serviceUuid;
+        }
+
+        static Layout of(GattServiceInfo service) {
+            final Layout layout = new Layout(service.getUuid());
+            for (GattCharacteristicInfo characteristic : service.getCharacteristics()) {
+                layout.add(characteristic.getUuid(), characteristic.getProperties(), false);
+            }
+            return layout;
+        }
+
+        void add(UUID uuid, int property, boolean notify) {
+            characteristicUuids.add(uuid);
+            properties.add(property);
+            notifying.add(notify);
+        }
+
+        /**
+         * @return Return true if {@code service} has every cached characteristic with the
+         *         cached properties.
+         */
+        boolean matches(GattServiceInfo service) {
+            if (service == null || !service.getUuid().equals(serviceUuid)
+                    || service.getCharacteristics().size() != characteristicUuids.size()) {
+                return false;
+            }
+            for (int i = 0; i < characteristicUuids.size(); i++) {
+                final GattCharacteristicInfo characteristic =
+                        service.getCharacteristic(characteristicUuids.get(i));
+                if (characteristic == null
+                        || characteristic.getProperties() != properties.get(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean sameCharacteristics(Layout other) {
+            return other != null && serviceUuid.equals(other.serviceUuid)
+                    && characteristicUuids.equals(other.characteristicUuids)
+                    && properties.equals(other.properties);
+        }
+
+        boolean isNotifying(UUID uuid) {
+            final int index = characteristicUuids.indexOf(uuid);
+            return index >= 0 && notifying.get(index);
+        }
+
+        // service;uuid,properties,notifying;uuid,properties,notifying...
+        String encode() {
+            final StringBuilder sb = new StringBuilder(serviceUuid.toString());
+            for (int i = 0; i < characteristicUuids.size(); i++) {
+                sb.append(';').append(characteristicUuids.get(i))
+                        .append(',').append(properties.get(i))
+                        .append(',').append(notifying.get(i) ? '1' : '0');
+            }
+            return sb.toString();
+        }
+
+        static Layout decode(String encoded) {
+            try {
+                final String parts[] = encoded.split(";");
+                final Layout layout = new Layout(UUID.fromString(parts[0]));
+                for (int i = 1; i < parts.length; i++) {
+                    final String fields[] = parts[i].split(",");
+                    layout.add(UUID.fromString(fields[0]), Integer.parseInt(fields[1]),
+                            "1".equals(fields[2]));
+                }
+                return layout;
+            } catch (RuntimeException ex) {
+                // Corrupt entry, treat it as a miss.
+                return null;
+            }
+        }
+    }
+
+    private final UUID mServiceUuid;
+    private final Storage mStorage;
+    private final Map<String, Layout> mLayouts = new HashMap<String, Layout>();
+
+    /**
+     * @param serviceUuid The service whose layout is cached.
+     */
+    GattServiceCache(Storage storage, UUID serviceUuid) {
+        mServiceUuid = serviceUuid;
+        mStorage = storage;
+    }
+
+    UUID getServiceUuid() {
+        return mServiceUuid;
+    }
+
+    /**
+     * @return The cached service among {@code services}, or {@code null}.
+     */
+    GattServiceInfo findService(List<GattServiceInfo> services) {
+        for (GattServiceInfo service : services) {
+            if (service.getUuid().equals(mServiceUuid)) {
+                return service;
+            }
+        }
+        return null;
+    }
+
+    synchronized Layout get(String address) {
+        Layout layout = mLayouts.get(address);
+        if (layout == null) {
+            final String encoded = mStorage.load(address);
+            if (encoded != null) {
+                layout = Layout.decode(encoded);
+                if (layout != null) {
+                    mLayouts.put(address, layout);
+                }
+            }
+        }
+        return layout;
+    }
+
+    /**
+     * @return Return true if the cached layout of the device matches {@code service}.
+     */
+    boolean matches(String address, GattServiceInfo service) {
+        final Layout layout = get(address);
+        return layout != null && layout.matches(service);
+    }
+
+    /**
+     * Records the layout of a freshly discovered service. The notification state of the
+     * characteristics is kept if the layout did not change.
+     */
+    synchronized void put(String address, GattServiceInfo service) {
+        final Layout layout = Layout.of(service);
+        final Layout previous = get(address);
+        if (layout.sameCharacteristics(previous)) {
+            return;
+        }
+        store(address, layout);
+    }
+
+    synchronized void setNotifying(String address, UUID characteristicUuid, boolean notifying) {
+        final Layout layout = get(address);
+        if (layout == null) {
+            return;
+        }
+        final int index = layout.characteristicUuids.indexOf(characteristicUuid);
+        if (index < 0 || layout.notifying.get(index) == notifying) {
+            return;
+        }
+        layout.notifying.set(index, notifying);
+        store(address, layout);
+    }
+
+    synchronized boolean isNotifying(String address, UUID characteristicUuid) {
+        final Layout layout = get(address);
+        return layout != null && layout.isNotifying(characteristicUuid);
+    }
+
+    synchronized void remove(String address) {
+        mLayouts.remove(address);
+        mStorage.remove(address);
+    }
+
+    private void store(String address, Layout layout) {
+        mLayouts.put(address, layout);
+        mStorage.store(address, layout.encode());
+    }
+}
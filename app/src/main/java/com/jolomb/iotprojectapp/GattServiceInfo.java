@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jolomb.iotprojectapp;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Plain description of a GATT service and its characteristics, independent of
+ * {@code android.bluetooth}, as reported by a {@code GattTransport}.
+ */
+public class GattServiceInfo {
+    private final UUID mUuid;
+    private final List<GattCharacteristicInfo> mCharacteristics;
+
+    public GattServiceInfo(UUID uuid, List<GattCharacteristicInfo> characteristics) {
+        mUuid = uuid;
+        mCharacteristics = Collections.unmodifiableList(characteristics);
+    }
+
+    public UUID getUuid() {
+        return mUuid;
+    }
+
+    public List<GattCharacteristicInfo> getCharacteristics() {
+        return mCharacteristics;
+    }
+
+    /**
+     * @return The characteristic with the given UUID, or {@code null}.
+     */
+    public GattCharacteristicInfo getCharacteristic(UUID uuid) {
+        for (GattCharacteristicInfo characteristic : mCharacteristics) {
+            if (characteristic.getUuid().equals(uuid)) {
+                return characteristic;
+            }
+        }
+        return null;
+    }
+}
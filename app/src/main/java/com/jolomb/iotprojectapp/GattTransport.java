@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jolomb.iotprojectapp;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The GATT client operations {@code BluetoothLeService} needs from a single remote device.
+ *
+ * {@code BluetoothGattTransport} implements it on top of {@code android.bluetooth.BluetoothGatt};
+ * {@code SimulatedCryptoLock} implements it in plain Java so the connection, handshake and
+ * verification logic can run without a radio.
+ *
+ * Requests return false if they could not be issued. Otherwise their result is reported
+ * asynchronously through the {@link Callback}, like their {@code BluetoothGatt} counterparts.
+ * Status codes follow {@code BluetoothGatt}, with 0 meaning success.
+ */
+public interface GattTransport {
+
+    interface Callback {
+        void onConnectionStateChange(int status, boolean connected);
+
+        void onServicesDiscovered(int status);
+
+        void onCharacteristicRead(UUID characteristicUuid, int status, byte[] value);
+
+        void onCharacteristicWrite(UUID characteristicUuid, int status);
+
+        void onDescriptorWrite(UUID characteristicUuid, UUID descriptorUuid, int status);
+
+        void onCharacteristicChanged(UUID characteristicUuid, byte[] value);
+
+        void onMtuChanged(int mtu, int status);
+
+        /**
+         * @param interval Connection interval in units of 1.25 ms.
+         */
+        void onConnectionUpdated(int interval, int latency, int timeout, int status);
+
+        void onPhyUpdate(int txPhy, int rxPhy, int status);
+    }
+
+    interface Factory {
+        /**
+         * @return A transport for the device, or {@code null} if the device is unknown.
+         */
+        GattTransport create(String address, Callback callback);
+    }
+
+    String getAddress();
+
+    /**
+     * Connects, or reconnects after a disconnect.
+     */
+    boolean connect();
+
+    void disconnect();
+
+    /**
+     * Releases the transport. It cannot be used afterwards.
+     */
+    void close();
+
+    /**
+     * @return Return true if the remote device is bonded, in which case it keeps notification
+     *         subscriptions across connections.
+     */
+    boolean isBonded();
+
+    boolean discoverServices();
+
+    /**
+     * @return The services found by the last discovery, possibly still held from an earlier
+     *         connection, or an empty list.
+     */
+    List<GattServiceInfo> getServices();
+
+    boolean readCharacteristic(UUID serviceUuid, UUID characteristicUuid);
+
+    boolean writeCharacteristic(UUID serviceUuid, UUID characteristicUuid, byte[] value);
+
+    /**
+     * Writes with {@code WRITE_TYPE_NO_RESPONSE}. The write callback still follows, once the
+     * value has left the local stack, but it says nothing about the value reaching the device.
+     */
+    boolean writeCharacteristicWithoutResponse(UUID serviceUuid, UUID characteristicUuid,
+                                               byte[] value);
+
+    /**
+     * Enables or disables local delivery of notifications. Does not touch the remote descriptor.
+     */
+    boolean setCharacteristicNotification(UUID serviceUuid, UUID characteristicUuid,
+                                          boolean enabled);
+
+    boolean writeDescriptor(UUID serviceUuid, UUID characteristicUuid, UUID descriptorUuid,
+                            byte[] value);
+
+    boolean requestMtu(int mtu);
+
+    /**
+     * @param priority One of the {@code LinkProfile.CONNECTION_PRIORITY_*} values.
+     */
+    boolean requestConnectionPriority(int priority);
+
+    /**
+     * @return Return false if the request cannot be issued, including when the platform has
+     *         no PHY selection.
+     */
+    boolean setPreferredPhy(int txPhyMask, int rxPhyMask, int phyOptions);
+}
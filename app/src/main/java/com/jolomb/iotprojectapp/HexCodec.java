@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jolomb.iotprojectapp;
+
+/**
+ * Table driven hex encoder/decoder. Characteristic values travel as {@code byte[]}; this class is
+ * only meant for the places that actually need text, such as the UI and logs.
+ *
+ * The encode/decode methods that take a destination array do not allocate.
+ */
+public final class HexCodec {
+
+    private final static char HEX_DIGITS[] = {
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'
+    };
+
+    // Upper and lower nibble characters for every byte value.
+    private final static char HIGH[] = new char[256];
+    private final static char LOW[] = new char[256];
+
+    // Nibble value of every ASCII character, -1 for non hex characters.
+    private final static byte NIBBLE[] = new byte[128];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            HIGH[i] = HEX_DIGITS[i >>> 4];
+            LOW[i] = HEX_DIGITS[i & 0x0f];
+        }
+        for (int i = 0; i < NIBBLE.length; i++) {
+            NIBBLE[i] = -1;
+        }
+        for (int i = 0; i < 10; i++) {
+            NIBBLE['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            NIBBLE['A' + i] = (byte) (10 + i);
+            NIBBLE['a' + i] = (byte) (10 + i);
+        }
+    }
+
+    private HexCodec() {
+    }
+
+    /**
+     * Writes two upper case hex digits per byte of {@code src[srcOff, srcOff + len)} into
+     * {@code dst} starting at {@code dstOff}.
+     *
+     * @return The index in {@code dst} after the last written character.
+     */
+    public static int encode(byte[] src, int srcOff, int len, char[] dst, int dstOff) {
+        for (int i = srcOff; i < srcOff + len; i++) {
+            final int b = src[i] & 0xff;
+            dst[dstOff++] = HIGH[b];
+            dst[dstOff++] = LOW[b];
+        }
+        return dstOff;
+    }
+
+    /**
+     * Appends {@code data} as space separated hex bytes, e.g. {@code "57 0A"}.
+     */
+    public static StringBuilder append(StringBuilder sb, byte[] data) {
+        if (data == null) {
+            return sb;
+        }
+        sb.ensureCapacity(sb.length() + data.length * 3);
+        for (int i = 0; i < data.length; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            final int b = data[i] & 0xff;
+            sb.append(HIGH[b]).append(LOW[b]);
+        }
+        return sb;
+    }
+
+    /**
+     * @return {@code data} as space separated hex bytes, for display and logging.
+     */
+    public static String toHexString(byte[] data) {
+        if (data == null) {
+            return "";
+        }
+        return append(new StringBuilder(data.length * 3), data).toString();
+    }
+
+    /**
+     * Decodes hex text into {@code dst}. Whitespace between bytes is skipped, so both
+     * {@code "570A"} and {@code "57 0A"} are accepted.
+     *
+     * @return The number of bytes written, or -1 if {@code src} holds a non hex character, an odd
+     *         number of digits, or more bytes than {@code dst} can hold.
+     */
+    public static int decode(CharSequence src, byte[] dst) {
+        int count = 0;
+        int high = -1;
+        for (int i = 0; i < src.length(); i++) {
+            final char c = src.charAt(i);
+            if (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                if (high >= 0) {
+                    return -1;
+                }
+                continue;
+            }
+            final int nibble = c < 128 ? NIBBLE[c] : -1;
+            if (nibble < 0) {
+                return -1;
+            }
+            if (high < 0) {
+                high = nibble;
+            } else {
+                if (count == dst.length) {
+                    return -1;
+                }
+                dst[count++] = (byte) ((high << 4) | nibble);
+                high = -1;
+            }
+        }
+        return high < 0 ? count : -1;
+    }
+}
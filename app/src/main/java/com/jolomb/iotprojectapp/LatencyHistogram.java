@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jolomb.iotprojectapp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed memory latency histogram with log-linear buckets, in the spirit of HdrHistogram.
+ *
+ * Values are kept in microseconds. Below {@value #LINEAR_LIMIT_US} us every microsecond has its
+ * own bucket; above, every power of two is split into {@value #SUB_BUCKETS} buckets, so a
+ * reported percentile is at most 1/{@value #SUB_BUCKETS} above the real value. The range ends
+ * at about 2^40 us (12 days). Recording is lock free and allocates nothing.
+ */
+public class LatencyHistogram {
+
+    private final static int SUB_BUCKET_BITS = 4;
+    public final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    public final static int LINEAR_LIMIT_US = 2 * SUB_BUCKETS;
+    private final static int LINEAR_BITS = 5;
+    private final static int MAX_EXPONENT = 40;
+    private final static int BUCKET_COUNT =
+            LINEAR_LIMIT_US + (MAX_EXPONENT - LINEAR_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mTotalUs = new AtomicLong();
+    private final AtomicLong mMaxUs = new AtomicLong();
+
+    /**
+     * Records one latency.
+     */
+    public void recordNanos(long nanos) {
+        recordMicros(nanos / 1000);
+    }
+
+    public void recordMicros(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        mCounts.incrementAndGet(bucketOf(micros));
+        mCount.incrementAndGet();
+        mTotalUs.addAndGet(micros);
+        long max;
+        while (micros > (max = mMaxUs.get()) && !mMaxUs.compareAndSet(max, micros)) {
+            // Lost a race against another recorder; retry.
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMaxMicros() {
+        return mMaxUs.get();
+    }
+
+    public long getMeanMicros() {
+        final long count = mCount.get();
+        return count == 0 ? 0 : mTotalUs.get() / count;
+    }
+
+    /**
+     * @param percentile Between 0 and 100.
+     * @return The upper bound of the bucket holding the percentile, capped at the largest
+     *         recorded value, or 0 if nothing was recorded.
+     */
+    public long getPercentileMicros(double percentile) {
+        final long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), mMaxUs.get());
+            }
+        }
+        return mMaxUs.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts.set(i, 0);
+        }
+        mCount.set(0);
+        mTotalUs.set(0);
+        mMaxUs.set(0);
+    }
+
+    static int bucketOf(long micros) {
+        if (micros < LINEAR_LIMIT_US) {
+            return (int) micros;
+        }
+        final int exponent = Math.min(63 - Long.numberOfLeadingZeros(micros), MAX_EXPONENT);
+        final int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        if (exponent == MAX_EXPONENT && micros >>> MAX_EXPONENT > 1) {
+            return BUCKET_COUNT - 1;
+        }
+        return LINEAR_LIMIT_US + (exponent - LINEAR_BITS) * SUB_BUCKETS + subBucket;
+    }
+
+    static long upperBoundOf(int bucket) {
+        if (bucket < LINEAR_LIMIT_US) {
+            return bucket;
+        }
+        final int exponent = (bucket - LINEAR_LIMIT_US) / SUB_BUCKETS + LINEAR_BITS;
+        final int subBucket = (bucket - LINEAR_LIMIT_US) % SUB_BUCKETS;
+        final long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (1L << exponent) + (subBucket + 1) * width - 1;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jolomb.iotprojectapp;
+
+/**
+ * Connection parameters asked of the link for a phase of its life. The connection interval
+ * bounds every round trip of the challenge/response exchange, so the handshake runs at high
+ * priority on the LE 2M PHY where the peer supports it, and the link relaxes once the outcome
+ * is known or the lock sits idle.
+ *
+ * The constants mirror {@code BluetoothGatt} and {@code BluetoothDevice}, so the profiles stay
+ * plain Java.
+ */
+public enum LinkProfile {
+
+    // 2M alone: with 1M in the mask too, the controller may settle on 1M. A peer without LE 2M
+    // stays on 1M anyway.
+    HANDSHAKE(LinkProfile.CONNECTION_PRIORITY_HIGH, LinkProfile.PHY_LE_2M_MASK),
+    BALANCED(LinkProfile.CONNECTION_PRIORITY_BALANCED, 0),
+    LOW_POWER(LinkProfile.CONNECTION_PRIORITY_LOW_POWER, LinkProfile.PHY_LE_1M_MASK);
+
+    /**
+     * Receives what was asked of a link and what the controller settled on.
+     */
+    public interface Listener {
+        void onLinkProfileRequested(String address, LinkProfile profile, boolean accepted);
+
+        /**
+         * @param interval Connection interval in units of 1.25 ms.
+         * @param latency Number of connection events the peripheral may skip.
+         * @param timeout Supervision timeout in units of 10 ms.
+         */
+        void onConnectionUpdated(String address, int interval, int latency, int timeout,
+                                 int status);
+
+        /**
+         * @param txPhy One of the {@code PHY_LE_*} values.
+         */
+        void onPhyUpdated(String address, int txPhy, int rxPhy, int status);
+    }
+
+    // Same values as BluetoothGatt.CONNECTION_PRIORITY_*.
+    public final static int CONNECTION_PRIORITY_BALANCED = 0;
+    public final static int CONNECTION_PRIORITY_HIGH = 1;
+    public final static int CONNECTION_PRIORITY_LOW_POWER = 2;
+
+    // Same values as BluetoothDevice.PHY_LE_1M/2M and their masks.
+    public final static int PHY_LE_1M = 1;
+    public final static int PHY_LE_2M = 2;
+    public final static int PHY_LE_1M_MASK = 1;
+    public final static int PHY_LE_2M_MASK = 2;
+    public final static int PHY_OPTION_NO_PREFERRED = 0;
+
+    private final int mConnectionPriority;
+    private final int mPhyMask;
+
+    LinkProfile(int connectionPriority, int phyMask) {
+        mConnectionPriority = connectionPriority;
+        mPhyMask = phyMask;
+    }
+
+    public int getConnectionPriority() {
+        return mConnectionPriority;
+    }
+
+    /**
+     * @return The PHYs to prefer in both directions, or 0 to leave the PHY as it is.
+     */
+    public int getPhyMask() {
+        return mPhyMask;
+    }
+
+    /**
+     * @return The connection interval in milliseconds of an interval in 1.25 ms units.
+     */
+    public static double intervalMillis(int interval) {
+        return interval * 1.25;
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jolomb.iotprojectapp;
+
+/**
+ * States of an unlock round as seen by the app. Most of them mirror the state byte of the crypto
+ * signer lock; {@link #SIGNATURE_DONE} and {@link #INCORRECT_KEY} are decided locally once the
+ * signed response is verified.
+ */
+public enum LockState {
+    /** Nothing known yet, e.g. right after connecting. */
+    UNKNOWN,
+    /** Remote 'W': waiting for a challenge. */
+    WAITING_FOR_INPUT_BUFFER,
+    /** Remote 'P': waiting for the on-board button. */
+    WAITING_FOR_ON_BOARD_CLICK,
+    /** Remote 'R': the signed response can be read. */
+    RESPONSE_READY,
+    SIGNATURE_DONE,
+    /** Remote 'N', or a response that could not be used. */
+    SIGNING_FAILED,
+    INCORRECT_KEY,
+    /** Remote 'D': the round was closed and the lock is about to reset. */
+    DONE
+}
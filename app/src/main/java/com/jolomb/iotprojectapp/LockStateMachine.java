@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jolomb.iotprojectapp;
+
+/**
+ * Tracks the {@code LockState} of one lock.
+ *
+ * The raw state byte of the {@code 0000fff3} characteristic is decoded through a 256 entry
+ * table and every move is checked against an explicit transition table, so a stale or
+ * reordered notification cannot, say, take a verified round back to RESPONSE_READY. Updates
+ * allocate nothing and only take an uncontended lock, so they can run on the binder thread.
+ */
+public class LockStateMachine {
+
+    /**
+     * Called while the machine's lock is held, so transitions of one machine are reported in
+     * order. Implementations should return quickly and must not call back into the machine.
+     */
+    public interface Listener {
+        void onTransition(LockState from, LockState to, long timestampNanos);
+
+        /**
+         * @param to The requested state, or {@code null} if {@code rawState} is not a known
+         *           state byte.
+         * @param rawState The remote state byte, or -1 for a local update.
+         */
+        void onRejected(LockState from, LockState to, int rawState, long timestampNanos);
+    }
+
+    public final static char REMOTE_WAITING_FOR_INPUT = 'W';
+    public final static char REMOTE_WAITING_FOR_ONBOARD_BUTTON = 'P';
+    public final static char REMOTE_RESPONSE_READY = 'R';
+    public final static char REMOTE_SIGN_FAILED = 'N';
+    public final static char REMOTE_DONE = 'D';
+
+    private final static LockState DECODE[] = new LockState[256];
+    private final static boolean ALLOWED[][] =
+            new boolean[LockState.values().length][LockState.values().length];
+
+    static {
+        DECODE[REMOTE_WAITING_FOR_INPUT] = LockState.WAITING_FOR_INPUT_BUFFER;
+        DECODE[REMOTE_WAITING_FOR_ONBOARD_BUTTON] = LockState.WAITING_FOR_ON_BOARD_CLICK;
+        DECODE[REMOTE_RESPONSE_READY] = LockState.RESPONSE_READY;
+        DECODE[REMOTE_SIGN_FAILED] = LockState.SIGNING_FAILED;
+        DECODE[REMOTE_DONE] = LockState.DONE;
+
+        // Whatever the lock reports first is taken as is.
+        for (LockState to : LockState.values()) {
+            allow(LockState.UNKNOWN, to);
+        }
+        allow(LockState.WAITING_FOR_INPUT_BUFFER, LockState.WAITING_FOR_ON_BOARD_CLICK,
+                LockState.SIGNING_FAILED, LockState.DONE);
+        allow(LockState.WAITING_FOR_ON_BOARD_CLICK, LockState.RESPONSE_READY,
+                LockState.SIGNING_FAILED, LockState.WAITING_FOR_INPUT_BUFFER, LockState.DONE);
+        allow(LockState.RESPONSE_READY, LockState.SIGNATURE_DONE, LockState.INCORRECT_KEY,
+                LockState.SIGNING_FAILED, LockState.WAITING_FOR_INPUT_BUFFER, LockState.DONE);
+        allow(LockState.SIGNATURE_DONE, LockState.WAITING_FOR_INPUT_BUFFER, LockState.DONE);
+        allow(LockState.INCORRECT_KEY, LockState.WAITING_FOR_INPUT_BUFFER, LockState.DONE);
+        allow(LockState.SIGNING_FAILED, LockState.WAITING_FOR_INPUT_BUFFER, LockState.DONE);
+        allow(LockState.DONE, LockState.WAITING_FOR_INPUT_BUFFER);
+    }
+
+    private static void allow(LockState from, LockState... to) {
+        for (LockState state : to) {
+            ALLOWED[from.ordinal()][state.ordinal()] = true;
+        }
+    }
+
+    /**
+     * @return The state a remote state byte stands for, or {@code null} for an unknown byte.
+     */
+    public static LockState decode(int rawState) {
+        return DECODE[rawState & 0xff];
+    }
+
+    /**
+     * @return Return true if the transition table allows moving from {@code from} to {@code to}.
+     */
+    public static boolean isAllowed(LockState from, LockState to) {
+        return ALLOWED[from.ordinal()][to.ordinal()];
+    }
+
+    private final Listener mListener;
+
+    private LockState mState = LockState.UNKNOWN;
+    private long mTransitionCount;
+    private long mRejectedCount;
+
+    /**
+     * @param listener Receives every transition and rejected update, or {@code null}.
+     */
+    public LockStateMachine(Listener listener) {
+        mListener = listener;
+    }
+
+    public synchronized LockState getState() {
+        return mState;
+    }
+
+    /**
+     * Applies the value of the remote state characteristic. Only the first byte is looked at.
+     *
+     * @return Return true if the machine is in the reported state afterwards.
+     */
+    public boolean onRemoteState(byte[] value) {
+        if (value == null || value.length == 0) {
+            return false;
+        }
+        return onRemoteState(value[0]);
+    }
+
+    /**
+     * @return Return true if the machine is in the reported state afterwards.
+     */
+    public synchronized boolean onRemoteState(byte rawState) {
+        return apply(decode(rawState), rawState & 0xff);
+    }
+
+    /**
+     * Applies a locally decided state, e.g. the result of the signature verification.
+     *
+     * @return Return true if the machine is in {@code state} afterwards.
+     */
+    public synchronized boolean moveTo(LockState state) {
+        return apply(state, -1);
+    }
+
+    /**
+     * Puts the machine in {@code state} without checking the transition table, e.g. back to
+     * {@link LockState#UNKNOWN} when the link drops.
+     */
+    public synchronized void reset(LockState state) {
+        final LockState from = mState;
+        if (from == state) {
+            return;
+        }
+        mState = state;
+        mTransitionCount++;
+        if (mListener != null) {
+            mListener.onTransition(from, state, System.nanoTime());
+        }
+    }
+
+    public synchronized long getTransitionCount() {
+        return mTransitionCount;
+    }
+
+    public synchronized long getRejectedCount() {
+        return mRejectedCount;
+    }
+
+    private boolean apply(LockState to, int rawState) {
+        final LockState from = mState;
+        if (to == from) {
+            // Repeated notification, or a read racing a notification.
+            return true;
+        }
+        if (to == null || !ALLOWED[from.ordinal()][to.ordinal()]) {
+            mRejectedCount++;
+            if (mListener != null) {
+                mListener.onRejected(from, to, rawState, System.nanoTime());
+            }
+            return false;
+        }
+        mState = to;
+        mTransitionCount++;
+        if (mListener != null) {
+            mListener.onTransition(from, to, System.nanoTime());
+        }
+        return true;
+    }
+}
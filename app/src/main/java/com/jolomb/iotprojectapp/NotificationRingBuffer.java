@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jolomb.iotprojectapp;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Bounded queue of characteristic values between the binder thread that receives them and the
+ * executor of one listener. The slots are allocated up front; values are not copied.
+ *
+ * {@link #offer(String, byte[])} reports when a drain has to be scheduled, so a burst of
+ * notifications costs one executor task, which then takes them out with
+ * {@link #drain(String[], byte[][])} in batches. A buffer shared by several characteristics
+ * keeps the UUID of every value as well, see {@link #offer(String, UUID, byte[])}.
+ */
+public class NotificationRingBuffer {
+
+    public enum Policy {
+        /**
+         * For readings where only the newest value matters. Each device and characteristic holds
+         * at most one slot: a new value replaces the queued one in place, keeping its position,
+         * so the listener sees the latest value only. A buffer full of other keys overwrites its
+         * oldest value. Not meant for state characteristics, whose transitions such as P would
+         * be replaced.
+         */
+        LATEST_VALUE,
+
+        /**
+         * For state and data characteristics. Every value is kept in order; a value arriving
+         * while the buffer is full is dropped and counted, so size the buffer for the largest
+         * burst.
+         */
+        LOSSLESS
+    }
+
+    public final static int DEFAULT_CAPACITY = 16;
+
+    private final Policy mPolicy;
+    private final String mAddresses[];
+    private final UUID mUuids[];
+    private final byte mValues[][];
+    private int mHead;
+    private int mSize;
+    private boolean mDrainScheduled;
+
+    private long mOfferedCount;
+    private long mCoalescedCount;
+    private long mOverflowCount;
+
+    public NotificationRingBuffer(Policy policy, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity < 1");
+        }
+        mPolicy = policy;
+        mAddresses = new String[capacity];
+        mUuids = new UUID[capacity];
+        mValues = new byte[capacity][];
+    }
+
+    /**
+     * Queues a value.
+     *
+     * @return True if the caller has to schedule a drain. Stays false until a drain found the
+     *         buffer empty.
+     */
+    public boolean offer(String address, byte[] value) {
+        return offer(address, null, value);
+    }
+
+    /**
+     * Queues a value together with the UUID of its characteristic. Values of different
+     * characteristics are never coalesced.
+     *
+     * @see #offer(String, byte[])
+     */
+    public synchronized boolean offer(String address, UUID uuid, byte[] value) {
+        mOfferedCount++;
+        if (mPolicy == Policy.LATEST_VALUE) {
+            final int queued = indexOf(address, uuid);
+            if (queued >= 0) {
+                // A drain is already scheduled while the buffer holds a value.
+                mValues[queued] = value;
+                mCoalescedCount++;
+                return false;
+            }
+        }
+        if (mSize == mValues.length) {
+            mOverflowCount++;
+            if (mPolicy == Policy.LOSSLESS) {
+                return false;
+            }
+            // Overwrite the oldest value.
+            mHead = (mHead + 1) % mValues.length;
+            mSize--;
+        }
+        final int tail = (mHead + mSize) % mValues.length;
+        mAddresses[tail] = address;
+        mUuids[tail] = uuid;
+        mValues[tail] = value;
+        mSize++;
+        if (mDrainScheduled) {
+            return false;
+        }
+        mDrainScheduled = true;
+        return true;
+    }
+
+    /**
+     * Moves up to {@code addresses.length} queued values, oldest first, into the given arrays.
+     * Should be called until it returns 0; after that the next {@link #offer} asks for a new
+     * drain.
+     *
+     * @return The number of values moved.
+     */
+    public int drain(String[] addresses, byte[][] values) {
+        return drain(addresses, null, values);
+    }
+
+    /**
+     * Like {@link #drain(String[], byte[][])}, also moving the UUIDs given to
+     * {@link #offer(String, UUID, byte[])} into {@code uuids}, which may be null.
+     */
+    public synchronized int drain(String[] addresses, UUID[] uuids, byte[][] values) {
+        int count = Math.min(mSize, Math.min(addresses.length, values.length));
+        if (uuids != null) {
+            count = Math.min(count, uuids.length);
+        }
+        for (int i = 0; i < count; i++) {
+            addresses[i] = mAddresses[mHead];
+            if (uuids != null) {
+                uuids[i] = mUuids[mHead];
+            }
+            values[i] = mValues[mHead];
+            mAddresses[mHead] = null;
+            mUuids[mHead] = null;
+            mValues[mHead] = null;
+            mHead = (mHead + 1) % mValues.length;
+        }
+        mSize -= count;
+        if (count == 0) {
+            mDrainScheduled = false;
+        }
+        return count;
+    }
+
+    /**
+     * Drops every queued value, e.g. when the listener is removed.
+     */
+    public synchronized void clear() {
+        Arrays.fill(mAddresses, null);
+        Arrays.fill(mUuids, null);
+        Arrays.fill(mValues, null);
+        mHead = 0;
+        mSize = 0;
+    }
+
+    public Policy getPolicy() {
+        return mPolicy;
+    }
+
+    public int getCapacity() {
+        return mValues.length;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized long getOfferedCount() {
+        return mOfferedCount;
+    }
+
+    /**
+     * @return How many queued values {@link Policy#LATEST_VALUE} replaced with a newer one.
+     */
+    public synchronized long getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    /**
+     * @return How many values were lost to a full buffer.
+     */
+    public synchronized long getOverflowCount() {
+        return mOverflowCount;
+    }
+
+    private int indexOf(String address, UUID uuid) {
+        for (int i = 0; i < mSize; i++) {
+            final int index = (mHead + i) % mValues.length;
+            if (mAddresses[index].equals(address)
+                    && (uuid == null ? mUuids[index] == null : uuid.equals(mUuids[index]))) {
+                return index;
+            }
+        }
+        return -1;
+    }
+}
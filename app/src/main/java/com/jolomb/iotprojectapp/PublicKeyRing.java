@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jolomb.iotprojectapp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The public keys of the locks, by device address.
+ *
+ * Keys of every {@code SignatureScheme} are accepted. They are read from a text file with one
+ * lock per line: the address, white space, then the X.509 (DER) encoded key as hex. Blank lines
+ * and lines starting with {@code #} are skipped. An address of {@code *} sets the key of every
+ * lock without a line of its own.
+ *
+ * Parsed keys are kept in a bounded LRU cache, so the locks in use never parse their DER again.
+ * {@link #reload()} swaps in the current content of the file and drops the cache.
+ */
+public class PublicKeyRing {
+
+    public final static String DEFAULT_ADDRESS = "*";
+    public final static int DEFAULT_CACHE_SIZE = 16;
+
+    // Largest key accepted from the file, enough for RSA 8192.
+    private final static int MAX_KEY_LENGTH = 2048;
+
+    private final File mFile;
+    private final int mCacheSize;
+
+    private volatile Map<String, byte[]> mEncodedKeys = Collections.emptyMap();
+    private volatile byte mFallbackKey[];
+
+    // Access ordered, so the eldest entry is the least recently used one.
+    private final LinkedHashMap<String, PublicKey> mCache;
+    // Bumped whenever the keys change, guarded by mCache.
+    private int mGeneration;
+
+    /**
+     * @param file The key file. It may not exist yet.
+     * @param cacheSize How many parsed keys to keep.
+     */
+    public PublicKeyRing(File file, int cacheSize) {
+        mFile = file;
+        mCacheSize = cacheSize;
+        mCache = new LinkedHashMap<String, PublicKey>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PublicKey> eldest) {
+                return size() > mCacheSize;
+            }
+        };
+    }
+
+    /**
+     * @param encodedKey Used for locks the file has no key for, including the {@code *} line,
+     *                   e.g. a key built into the app. {@code null} to have none. Setting the
+     *                   same key again keeps the cache.
+     */
+    public void setFallbackKey(byte[] encodedKey) {
+        synchronized (mCache) {
+            if (Arrays.equals(mFallbackKey, encodedKey)) {
+                return;
+            }
+            mFallbackKey = encodedKey == null ? null : encodedKey.clone();
+            mCache.clear();
+            mGeneration++;
+        }
+    }
+
+    /**
+     * Reads the key file again. A missing file leaves the ring with the fallback key only.
+     * Safe to call while other threads look keys up.
+     *
+     * @return The number of keys read.
+     */
+    public int reload() throws IOException {
+        final Reader reader;
+        try {
+            reader = new InputStreamReader(new FileInputStream(mFile), "UTF-8");
+        } catch (FileNotFoundException ex) {
+            replace(Collections.<String, byte[]>emptyMap());
+            return 0;
+        }
+        try {
+            return load(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Replaces the keys with the ones read from {@code reader}. Malformed lines are skipped.
+     *
+     * @return The number of keys read.
+     */
+    public int load(Reader reader) throws IOException {
+        final Map<String, byte[]> keys = new HashMap<String, byte[]>();
+        final BufferedReader lines = new BufferedReader(reader);
+        final byte buffer[] = new byte[MAX_KEY_LENGTH];
+        String line;
+        while ((line = lines.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.charAt(0) == '#') {
+                continue;
+            }
+            int split = 0;
+            while (split < line.length() && !Character.isWhitespace(line.charAt(split))) {
+                split++;
+            }
+            final int length = HexCodec.decode(line.substring(split), buffer);
+            if (split == line.length() || length <= 0) {
+                continue;
+            }
+            final byte key[] = new byte[length];
+            System.arraycopy(buffer, 0, key, 0, length);
+            keys.put(normalize(line.substring(0, split)), key);
+        }
+        replace(keys);
+        return keys.size();
+    }
+
+    /**
+     * @return The encoded key of a lock, or {@code null} if there is none.
+     */
+    public byte[] getEncodedKey(String address) {
+        final Map<String, byte[]> keys = mEncodedKeys;
+        byte key[] = keys.get(normalize(address));
+        if (key == null) {
+            key = keys.get(DEFAULT_ADDRESS);
+        }
+        if (key == null) {
+            key = mFallbackKey;
+        }
+        return key == null ? null : key.clone();
+    }
+
+    /**
+     * @return The parsed key of a lock, from the cache when it is there, or {@code null} if
+     *         the ring has no key for the lock.
+     *
+     * @throws GeneralSecurityException if the key does not parse.
+     */
+    public PublicKey getPublicKey(String address) throws GeneralSecurityException {
+        final String normalized = normalize(address);
+        final int generation;
+        synchronized (mCache) {
+            final PublicKey key = mCache.get(normalized);
+            if (key != null) {
+                return key;
+            }
+            generation = mGeneration;
+        }
+        final byte encodedKey[] = getEncodedKey(normalized);
+        if (encodedKey == null) {
+            return null;
+        }
+        final PublicKey key = parse(encodedKey);
+        synchronized (mCache) {
+            // Skip the insert if a reload happened meanwhile; the key may be stale.
+            if (generation == mGeneration) {
+                mCache.put(normalized, key);
+            }
+        }
+        return key;
+    }
+
+    public int size() {
+        return mEncodedKeys.size();
+    }
+
+    int getCachedCount() {
+        synchronized (mCache) {
+            return mCache.size();
+        }
+    }
+
+    private void replace(Map<String, byte[]> keys) {
+        synchronized (mCache) {
+            mEncodedKeys = keys;
+            mCache.clear();
+            mGeneration++;
+        }
+    }
+
+    /**
+     * Parses a key of any {@code SignatureScheme}, RSA first since most locks use it.
+     */
+    private static PublicKey parse(byte[] encodedKey) throws GeneralSecurityException {
+        final X509EncodedKeySpec spec = new X509EncodedKeySpec(encodedKey);
+        GeneralSecurityException failure = null;
+        for (SignatureScheme scheme : SignatureScheme.values()) {
+            try {
+                return KeyFactory.getInstance(scheme.getKeyAlgorithm()).generatePublic(spec);
+            } catch (GeneralSecurityException ex) {
+                failure = ex;
+            }
+        }
+        throw failure;
+    }
+
+    private static String normalize(String address) {
+        return address == null ? "" : address.toUpperCase(Locale.US);
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jolomb.iotprojectapp;
+
+import java.util.Random;
+
+/**
+ * Decides whether and when a dropped GATT link is connected again.
+ *
+ * The status of the disconnect is classified first: link loss and a peer closing the link are
+ * retried over the existing transport, which is the fast path, while the infamous status 133
+ * and other stack errors leave the {@code BluetoothGatt} in a state that only a fresh one
+ * recovers from. Failed authentication is not retried at all. Retries back off exponentially
+ * with jitter, so a fleet of phones losing the same lock does not reconnect in lockstep.
+ */
+public class ReconnectPolicy {
+
+    // HCI and GATT status codes as reported by onConnectionStateChange.
+    public final static int STATUS_SUCCESS = 0x00;
+    public final static int STATUS_AUTHENTICATION_FAILURE = 0x05;
+    public final static int STATUS_CONNECTION_TIMEOUT = 0x08;
+    public final static int STATUS_REMOTE_USER_TERMINATED = 0x13;
+    public final static int STATUS_LOCAL_HOST_TERMINATED = 0x16;
+    public final static int STATUS_LMP_RESPONSE_TIMEOUT = 0x22;
+    public final static int STATUS_FAILED_TO_ESTABLISH = 0x3e;
+    public final static int STATUS_GATT_ERROR = 0x85;
+    public final static int STATUS_GATT_FAILURE = 0x101;
+
+    public enum DisconnectCause {
+        /** The app asked for it. */
+        REQUESTED(false, true),
+        /** Supervision or LMP timeout: the device went out of range or was busy. */
+        LINK_LOSS(true, true),
+        /** The device closed the link. */
+        REMOTE_TERMINATED(true, true),
+        /** Status 133 and friends; the stack has to start over. */
+        GATT_ERROR(true, false),
+        /** The connection was never established. */
+        FAILED_TO_ESTABLISH(true, false),
+        /** Retrying cannot fix the pairing. */
+        AUTHENTICATION(false, false),
+        UNKNOWN(true, false);
+
+        private final boolean mRetry;
+        private final boolean mReuseTransport;
+
+        DisconnectCause(boolean retry, boolean reuseTransport) {
+            mRetry = retry;
+            mReuseTransport = reuseTransport;
+        }
+
+        public boolean isRetried() {
+            return mRetry;
+        }
+
+        /**
+         * Reusing the transport saves setting up a new GATT client, but on Android the existing
+         * {@code BluetoothGatt} reconnects in the background, as with {@code autoConnect}: the
+         * link comes back only once the device advertises again, usually slower than a direct
+         * connect, and an attempt that never succeeds is never reported as failed. Callers
+         * should bound it with a timeout of their own.
+         *
+         * @return True if the transport can be connected again as is, false if it has to be
+         *         closed and created anew.
+         */
+        public boolean reusesTransport() {
+            return mReuseTransport;
+        }
+    }
+
+    public final static long DEFAULT_BASE_DELAY_MS = 200;
+    public final static long DEFAULT_MAX_DELAY_MS = 10000;
+    public final static int DEFAULT_MAX_ATTEMPTS = 8;
+
+    private final long mBaseDelayMs;
+    private final long mMaxDelayMs;
+    private final int mMaxAttempts;
+    private final Random mRandom;
+
+    public ReconnectPolicy() {
+        this(DEFAULT_BASE_DELAY_MS, DEFAULT_MAX_DELAY_MS, DEFAULT_MAX_ATTEMPTS, new Random());
+    }
+
+    /**
+     * @param baseDelayMs Delay ceiling of the first retry; it doubles with every attempt.
+     * @param maxDelayMs Largest delay ceiling.
+     * @param maxAttempts Retries before giving up.
+     * @param random Source of the jitter.
+     */
+    public ReconnectPolicy(long baseDelayMs, long maxDelayMs, int maxAttempts, Random random) {
+        mBaseDelayMs = baseDelayMs;
+        mMaxDelayMs = maxDelayMs;
+        mMaxAttempts = maxAttempts;
+        mRandom = random;
+    }
+
+    /**
+     * Classifies a disconnect the app did not ask for.
+     *
+     * Status 0 is how some stacks report a peer closing the link cleanly; a disconnect the app
+     * asked for never gets here. Status 0x16 without such a request means the local controller
+     * dropped the link by itself, usually after it stopped hearing from the lock, so it is
+     * treated like a supervision timeout.
+     */
+    public static DisconnectCause classify(int status) {
+        switch (status) {
+            case STATUS_CONNECTION_TIMEOUT:
+            case STATUS_LOCAL_HOST_TERMINATED:
+            case STATUS_LMP_RESPONSE_TIMEOUT:
+                return DisconnectCause.LINK_LOSS;
+            case STATUS_SUCCESS:
+            case STATUS_REMOTE_USER_TERMINATED:
+                return DisconnectCause.REMOTE_TERMINATED;
+            case STATUS_GATT_ERROR:
+            case STATUS_GATT_FAILURE:
+                return DisconnectCause.GATT_ERROR;
+            case STATUS_FAILED_TO_ESTABLISH:
+                return DisconnectCause.FAILED_TO_ESTABLISH;
+            case STATUS_AUTHENTICATION_FAILURE:
+                return DisconnectCause.AUTHENTICATION;
+            default:
+                return DisconnectCause.UNKNOWN;
+        }
+    }
+
+    /**
+     * @param attempt Number of retries since the link was last up, starting at 0.
+     *
+     * @return The delay before the next connect, between half and all of
+     *         {@code min(maxDelay, baseDelay * 2^attempt)}, or -1 to give up.
+     */
+    public long getDelayMs(DisconnectCause cause, int attempt) {
+        if (!cause.isRetried() || attempt >= mMaxAttempts) {
+            return -1;
+        }
+        final long ceiling = Math.min(mMaxDelayMs, mBaseDelayMs << Math.min(attempt, 30));
+        final long half = ceiling / 2;
+        return half + (long) (mRandom.nextDouble() * (ceiling - half));
+    }
+
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jolomb.iotprojectapp;
+
+import java.math.BigInteger;
+import java.security.DigestException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.interfaces.RSAPublicKey;
+
+/**
+ * SHA256withRSA verification for keys with the public exponent 65537, without going through
+ * the provider lookup of {@code Signature}.
+ *
+ * The Montgomery context of the modulus is computed once in the constructor; a verification
+ * is then 17 Montgomery multiplications on preallocated buffers and a comparison of the
+ * PKCS#1 v1.5 encoding that does not stop at the first mismatch. Instances are not thread
+ * safe; {@code SignatureVerifier} keeps one per verifying thread.
+ */
+public final class RsaSha256Verifier {
+
+    public final static BigInteger PUBLIC_EXPONENT = BigInteger.valueOf(65537);
+
+    // DER of the SHA-256 DigestInfo, followed by the 32 byte hash.
+    private final static byte DIGEST_INFO_PREFIX[] = {
+            0x30, 0x31, 0x30, 0x0d, 0x06, 0x09, 0x60, (byte) 0x86, 0x48, 0x01, 0x65, 0x03, 0x04,
+            0x02, 0x01, 0x05, 0x00, 0x04, 0x20
+    };
+    private final static int HASH_LENGTH = 32;
+    private final static long MASK = 0xffffffffL;
+
+    private final int mModulusBytes;
+    private final int mLimbs;
+    // Little endian 32 bit limbs.
+    private final int mModulus[];
+    private final int mRSquared[];
+    // -modulus^-1 mod 2^32.
+    private final int mModulusInverse;
+    // Everything but the hash of the expected encoding: 00 01 FF .. FF 00 DigestInfo.
+    private final byte mExpectedPrefix[];
+
+    private final MessageDigest mDigest;
+    private final int mSignature[];
+    private final int mAccumulator[];
+    private final int mProduct[];
+    private final byte mEncoded[];
+    private final byte mHash[] = new byte[HASH_LENGTH];
+
+    /**
+     * @throws InvalidKeyException If the exponent is not 65537 or the modulus is too short to
+     *                             hold a SHA-256 DigestInfo.
+     */
+    public RsaSha256Verifier(RSAPublicKey key)
+            throws InvalidKeyException, NoSuchAlgorithmException {
+        final BigInteger modulus = key.getModulus();
+        if (!PUBLIC_EXPONENT.equals(key.getPublicExponent())) {
+            throw new InvalidKeyException("Public exponent is not 65537");
+        }
+        mModulusBytes = (modulus.bitLength() + 7) / 8;
+        if (mModulusBytes < DIGEST_INFO_PREFIX.length + HASH_LENGTH + 11
+                || !modulus.testBit(0)) {
+            throw new InvalidKeyException("Unsupported modulus");
+        }
+        mLimbs = (mModulusBytes + 3) / 4;
+        mModulus = toLimbs(modulus, mLimbs);
+        mRSquared = toLimbs(BigInteger.ONE.shiftLeft(64 * mLimbs).mod(modulus), mLimbs);
+
+        // Newton iteration doubles the number of correct low bits every step: 1, 2, 4 .. 32.
+        int inverse = 1;
+        for (int i = 0; i < 5; i++) {
+            inverse *= 2 - mModulus[0] * inverse;
+        }
+        mModulusInverse = -inverse;
+
+        final int prefixLength = mModulusBytes - HASH_LENGTH;
+        mExpectedPrefix = new byte[prefixLength];
+        mExpectedPrefix[0] = 0x00;
+        mExpectedPrefix[1] = 0x01;
+        final int padEnd = prefixLength - DIGEST_INFO_PREFIX.length - 1;
+        for (int i = 2; i < padEnd; i++) {
+            mExpectedPrefix[i] = (byte) 0xff;
+        }
+        mExpectedPrefix[padEnd] = 0x00;
+        System.arraycopy(DIGEST_INFO_PREFIX, 0, mExpectedPrefix, padEnd + 1,
+                DIGEST_INFO_PREFIX.length);
+
+        mDigest = MessageDigest.getInstance("SHA-256");
+        mSignature = new int[mLimbs];
+        mAccumulator = new int[mLimbs];
+        mProduct = new int[mLimbs + 1];
+        mEncoded = new byte[mModulusBytes];
+    }
+
+    /**
+     * @return True if {@code signature} is a valid SHA256withRSA signature over
+     *         {@code message}.
+     */
+    public boolean verify(byte[] message, int messageOff, int messageLen,
+                          byte[] signature, int signatureOff, int signatureLen) {
+        if (signatureLen != mModulusBytes) {
+            return false;
+        }
+        // Big endian bytes to little endian limbs.
+        for (int i = 0; i < mLimbs; i++) {
+            mSignature[i] = 0;
+        }
+        for (int i = 0; i < signatureLen; i++) {
+            final int bytePos = signatureLen - 1 - i;
+            mSignature[i >>> 2] |= (signature[signatureOff + bytePos] & 0xff) << ((i & 3) * 8);
+        }
+        if (compare(mSignature, mModulus) >= 0) {
+            return false;
+        }
+
+        // s * R, squared 16 times to s^65536 * R, times s to s^65537.
+        montgomeryMultiply(mSignature, mRSquared, mAccumulator);
+        for (int i = 0; i < 16; i++) {
+            montgomeryMultiply(mAccumulator, mAccumulator, mAccumulator);
+        }
+        montgomeryMultiply(mAccumulator, mSignature, mAccumulator);
+
+        for (int i = 0; i < mModulusBytes; i++) {
+            mEncoded[mModulusBytes - 1 - i] = (byte) (mAccumulator[i >>> 2] >>> ((i & 3) * 8));
+        }
+
+        mDigest.reset();
+        mDigest.update(message, messageOff, messageLen);
+        try {
+            mDigest.digest(mHash, 0, HASH_LENGTH);
+        } catch (DigestException ex) {
+            return false;
+        }
+
+        int diff = 0;
+        for (int i = 0; i < mExpectedPrefix.length; i++) {
+            diff |= mEncoded[i] ^ mExpectedPrefix[i];
+        }
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            diff |= mEncoded[mExpectedPrefix.length + i] ^ mHash[i];
+        }
+        return diff == 0;
+    }
+
+    public int getModulusBytes() {
+        return mModulusBytes;
+    }
+
+    /**
+     * {@code out = a * b * R^-1 mod n}, multiplying and reducing in the same pass over the
+     * limbs. {@code out} may be {@code a} or {@code b}.
+     */
+    private void montgomeryMultiply(int[] a, int[] b, int[] out) {
+        final int limbs = mLimbs;
+        final int n[] = mModulus;
+        final int t[] = mProduct;
+        for (int i = 0; i <= limbs; i++) {
+            t[i] = 0;
+        }
+        for (int i = 0; i < limbs; i++) {
+            final long bi = b[i] & MASK;
+            long product = (t[0] & MASK) + (a[0] & MASK) * bi;
+            final long m = ((int) product * mModulusInverse) & MASK;
+            long reduced = (product & MASK) + m * (n[0] & MASK);
+            long productCarry = product >>> 32;
+            long reducedCarry = reduced >>> 32;
+            for (int j = 1; j < limbs; j++) {
+                product = (t[j] & MASK) + (a[j] & MASK) * bi + productCarry;
+                reduced = (product & MASK) + m * (n[j] & MASK) + reducedCarry;
+                t[j - 1] = (int) reduced;
+                productCarry = product >>> 32;
+                reducedCarry = reduced >>> 32;
+            }
+            final long top = (t[limbs] & MASK) + productCarry + reducedCarry;
+            t[limbs - 1] = (int) top;
+            t[limbs] = (int) (top >>> 32);
+        }
+        // The result is below 2n; one subtraction brings it below n.
+        if (t[limbs] != 0 || compare(t, n) >= 0) {
+            long borrow = 0;
+            for (int j = 0; j < limbs; j++) {
+                final long diff = (t[j] & MASK) - (n[j] & MASK) - borrow;
+                out[j] = (int) diff;
+                borrow = diff >>> 63;
+            }
+        } else {
+            System.arraycopy(t, 0, out, 0, limbs);
+        }
+    }
+
+    /**
+     * Compares the low {@code mLimbs} limbs of {@code a} and {@code b} as unsigned numbers.
+     */
+    private int compare(int[] a, int[] b) {
+        for (int i = mLimbs - 1; i >= 0; i--) {
+            if (a[i] != b[i]) {
+                return (a[i] & MASK) < (b[i] & MASK) ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+    private static int[] toLimbs(BigInteger value, int limbs) {
+        final int result[] = new int[limbs];
+        for (int i = 0; i < limbs; i++) {
+            result[i] = value.shiftRight(32 * i).intValue();
+        }
+        return result;
+    }
+}
@@ -16,35 +16,68 @@
 
 package com.jolomb.iotprojectapp;
 
-import java.util.HashMap;
+import java.util.UUID;
 
 /**
  * This class includes a small subset of standard GATT attributes for demonstration purposes.
  */
 public class SampleGattAttributes {
-    private static HashMap<String, String> attributes = new HashMap();
+    private final static GattAttributeRegistry attributes = new GattAttributeRegistry();
     public static String CRYPTO_SIGNER_CHALLANGE_INPUT = "0000fff1-0000-1000-8000-00805f9b34fb";
     public static String CRYPTO_SIGNER_SIGNED_RESPONSE = "0000fff2-0000-1000-8000-00805f9b34fb";
     public static String CRYPTO_SIGNER_RESPONSE_STATE = "0000fff3-0000-1000-8000-00805f9b34fb";
+    public static String CRYPTO_SIGNER_SIGNATURE_SCHEME = "0000fff4-0000-1000-8000-00805f9b34fb";
     public static String CRYPTO_SIGNER_SERVICE  = "0000fff0-0000-1000-8000-00805f9b34fb";
 
+    public final static UUID CRYPTO_SIGNER_CHALLANGE_INPUT_UUID =
+            UUID.fromString(CRYPTO_SIGNER_CHALLANGE_INPUT);
+    public final static UUID CRYPTO_SIGNER_SIGNED_RESPONSE_UUID =
+            UUID.fromString(CRYPTO_SIGNER_SIGNED_RESPONSE);
+    public final static UUID CRYPTO_SIGNER_RESPONSE_STATE_UUID =
+            UUID.fromString(CRYPTO_SIGNER_RESPONSE_STATE);
+    public final static UUID CRYPTO_SIGNER_SIGNATURE_SCHEME_UUID =
+            UUID.fromString(CRYPTO_SIGNER_SIGNATURE_SCHEME);
+    public final static UUID CRYPTO_SIGNER_SERVICE_UUID = UUID.fromString(CRYPTO_SIGNER_SERVICE);
+
     static {
-        attributes.put(CRYPTO_SIGNER_SERVICE, "Crypto Signing Service");
-        attributes.put(CRYPTO_SIGNER_CHALLANGE_INPUT, "Crypto challange input buffer");
-        attributes.put(CRYPTO_SIGNER_SIGNED_RESPONSE, "Crypto signed response buffer");
-        attributes.put(CRYPTO_SIGNER_RESPONSE_STATE, "State of the signed response");
+        attributes.put(CRYPTO_SIGNER_SERVICE_UUID, "Crypto Signing Service");
+        attributes.put(CRYPTO_SIGNER_CHALLANGE_INPUT_UUID, "Crypto challange input buffer");
+        attributes.put(CRYPTO_SIGNER_SIGNED_RESPONSE_UUID, "Crypto signed response buffer");
+        attributes.put(CRYPTO_SIGNER_RESPONSE_STATE_UUID, "State of the signed response");
+        attributes.put(CRYPTO_SIGNER_SIGNATURE_SCHEME_UUID, "Signature scheme of the response");
+    }
+
+    /**
+     * @return The name of a known attribute, or {@code null}.
+     */
+    public static String lookup(UUID uuid) {
+        return attributes.lookup(uuid);
     }
 
+    public static String lookup(UUID uuid, String defaultName) {
+        return attributes.lookup(uuid, defaultName);
+    }
+
+    /**
+     * @deprecated Throws for every unknown attribute; use {@link #lookup(UUID)}.
+     */
+    @Deprecated
     public static String lookupNoDefault(String uuid) throws RuntimeException {
-        String name = attributes.get(uuid);
+        String name = lookup(uuid, null);
         if (name == null) {
             throw new RuntimeException();
         }
         return name;
     }
 
+    /**
+     * Parses {@code uuid} on every call; prefer {@link #lookup(UUID, String)}.
+     */
     public static String lookup(String uuid, String defaultName) {
-        String name = attributes.get(uuid);
-        return name == null ? defaultName : name;
+        try {
+            return attributes.lookup(UUID.fromString(uuid), defaultName);
+        } catch (IllegalArgumentException ex) {
+            return defaultName;
+        }
     }
 }
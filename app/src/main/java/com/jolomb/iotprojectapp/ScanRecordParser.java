@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jolomb.iotprojectapp;
+
+import java.util.UUID;
+
+/**
+ * Minimal parser for the advertising data handed to {@code BluetoothAdapter.LeScanCallback}.
+ * Walks the AD structures in place without allocating.
+ */
+public final class ScanRecordParser {
+
+    private final static int AD_INCOMPLETE_16BIT_UUIDS = 0x02;
+    private final static int AD_COMPLETE_16BIT_UUIDS = 0x03;
+    private final static int AD_INCOMPLETE_32BIT_UUIDS = 0x04;
+    private final static int AD_COMPLETE_32BIT_UUIDS = 0x05;
+    private final static int AD_INCOMPLETE_128BIT_UUIDS = 0x06;
+    private final static int AD_COMPLETE_128BIT_UUIDS = 0x07;
+
+    // 0000xxxx-0000-1000-8000-00805f9b34fb
+    private final static long BASE_UUID_MSB_MASK = 0x00000000ffffffffL;
+    private final static long BASE_UUID_MSB = 0x0000000000001000L;
+    private final static long BASE_UUID_LSB = 0x800000805f9b34fbL;
+
+    private ScanRecordParser() {
+    }
+
+    /**
+     * @return Return true if the advertisement lists {@code serviceUuid} among its service UUIDs,
+     *         in its 16, 32 or 128 bit form.
+     */
+    public static boolean advertisesService(byte[] scanRecord, UUID serviceUuid) {
+        if (scanRecord == null) {
+            return false;
+        }
+        final long msb = serviceUuid.getMostSignificantBits();
+        final long lsb = serviceUuid.getLeastSignificantBits();
+        // Short form of the UUID, or -1 if it is not based on the Bluetooth base UUID.
+        final long shortUuid = (lsb == BASE_UUID_LSB && (msb & BASE_UUID_MSB_MASK) == BASE_UUID_MSB)
+                ? msb >>> 32 : -1;
+
+        int offset = 0;
+        while (offset < scanRecord.length) {
+            final int length = scanRecord[offset] & 0xff;
+            // A zero length ends the significant part; the rest of the record is padding.
+            if (length == 0 || offset + 1 + length > scanRecord.length) {
+                return false;
+            }
+            final int type = scanRecord[offset + 1] & 0xff;
+            final int dataStart = offset + 2;
+            final int dataEnd = offset + 1 + length;
+            switch (type) {
+                case AD_INCOMPLETE_16BIT_UUIDS:
+                case AD_COMPLETE_16BIT_UUIDS:
+                    if (shortUuid >= 0 && shortUuid <= 0xffff
+                            && containsShortUuid(scanRecord, dataStart, dataEnd, 2, shortUuid)) {
+                        return true;
+                    }
+                    break;
+                case AD_INCOMPLETE_32BIT_UUIDS:
+                case AD_COMPLETE_32BIT_UUIDS:
+                    if (shortUuid >= 0
+                            && containsShortUuid(scanRecord, dataStart, dataEnd, 4, shortUuid)) {
+                        return true;
+                    }
+                    break;
+                case AD_INCOMPLETE_128BIT_UUIDS:
+                case AD_COMPLETE_128BIT_UUIDS:
+                    for (int i = dataStart; i + 16 <= dataEnd; i += 16) {
+                        if (readLittleEndian(scanRecord, i, 8) == lsb
+                                && readLittleEndian(scanRecord, i + 8, 8) == msb) {
+                            return true;
+                        }
+                    }
+                    break;
+            }
+            offset = dataEnd;
+        }
+        return false;
+    }
+
+    private static boolean containsShortUuid(byte[] data, int start, int end, int size,
+                                             long shortUuid) {
+        for (int i = start; i + size <= end; i += size) {
+            if (readLittleEndian(data, i, size) == shortUuid) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long readLittleEndian(byte[] data, int offset, int size) {
+        long value = 0;
+        for (int i = size - 1; i >= 0; i--) {
+            value = (value << 8) | (data[offset + i] & 0xff);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jolomb.iotprojectapp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Address keyed index of scan results. Safe to update from the scan callback thread; the UI
+ * takes a {@link #snapshot()} when it redraws.
+ *
+ * Entries keep the order in which devices were first seen, so list positions stay stable while
+ * a scan is running. Each entry also keeps the last RSSI and the times the device was first and
+ * last seen.
+ *
+ * @param <T> Type of the scanned device, {@code BluetoothDevice} in the app.
+ */
+public class ScanResultIndex<T> {
+
+    public static class Entry<T> {
+        private final String mAddress;
+        private final T mDevice;
+        private final long mFirstSeenMillis;
+        private volatile int mRssi;
+        private volatile long mLastSeenMillis;
+        private volatile boolean mTarget;
+
+        Entry(String address, T device, long firstSeenMillis) {
+            mAddress = address;
+            mDevice = device;
+            mFirstSeenMillis = firstSeenMillis;
+        }
+
+        public String getAddress() {
+            return mAddress;
+        }
+
+        public T getDevice() {
+            return mDevice;
+        }
+
+        public int getRssi() {
+            return mRssi;
+        }
+
+        public long getFirstSeenMillis() {
+            return mFirstSeenMillis;
+        }
+
+        public long getLastSeenMillis() {
+            return mLastSeenMillis;
+        }
+
+        /**
+         * @return Return true once an advertisement of the device carried the target service.
+         */
+        public boolean isTarget() {
+            return mTarget;
+        }
+    }
+
+    private final Map<String, Entry<T>> mEntries = new HashMap<String, Entry<T>>();
+    private final List<Entry<T>> mOrder = new ArrayList<Entry<T>>();
+    // Bumped when a device is added, so the UI can tell whether its list is stale.
+    private int mVersion;
+
+    /**
+     * Records an advertisement.
+     *
+     * @return Return true if the device was not in the index yet.
+     */
+    public synchronized boolean update(String address, T device, int rssi, long nowMillis) {
+        Entry<T> entry = mEntries.get(address);
+        final boolean added = entry == null;
+        if (added) {
+            entry = new Entry<T>(address, device, nowMillis);
+            mEntries.put(address, entry);
+            mOrder.add(entry);
+            mVersion++;
+        }
+        entry.mRssi = rssi;
+        entry.mLastSeenMillis = nowMillis;
+        return added;
+    }
+
+    /**
+     * Flags the device as advertising the target service.
+     *
+     * @return Return true if the device is in the index and was not flagged yet.
+     */
+    public synchronized boolean markTarget(String address) {
+        final Entry<T> entry = mEntries.get(address);
+        if (entry == null || entry.mTarget) {
+            return false;
+        }
+        entry.mTarget = true;
+        return true;
+    }
+
+    public synchronized Entry<T> get(String address) {
+        return mEntries.get(address);
+    }
+
+    public synchronized T getDevice(int position) {
+        return mOrder.get(position).getDevice();
+    }
+
+    public synchronized int size() {
+        return mOrder.size();
+    }
+
+    public synchronized int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * @return The entries in the order the devices were first seen.
+     */
+    public synchronized List<Entry<T>> snapshot() {
+        return new ArrayList<Entry<T>>(mOrder);
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+        mOrder.clear();
+        mVersion++;
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jolomb.iotprojectapp;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.Arrays;
+
+/**
+ * Decides when the radio scans, instead of scanning for a fixed period.
+ *
+ * <ul>
+ *     <li>{@link Mode#AGGRESSIVE}: scans continuously while the user is waiting for a lock to
+ *     show up. Once no new device has been seen for {@link #QUIET_PERIOD_MS} it backs off to
+ *     duty cycling.</li>
+ *     <li>{@link Mode#DUTY_CYCLED}: scans for {@link #DUTY_ON_MS} then pauses. The pause starts
+ *     at {@link #DUTY_OFF_MIN_MS} and doubles up to {@link #DUTY_OFF_MAX_MS} for every window
+ *     that finds nothing new. The activity uses it while it is paused.</li>
+ * </ul>
+ *
+ * Android 7 and later silently drop the results of an app that starts more than
+ * {@link #MAX_STARTS_PER_WINDOW} scans in {@link #START_WINDOW_MS}, so a window never starts
+ * earlier than that limit allows.
+ *
+ * In either mode, the first device advertising the target service ends the scan.
+ *
+ * All methods must be called on the thread of the {@code Handler} passed to the constructor.
+ */
+public class ScanScheduler {
+
+    public enum Mode {
+        AGGRESSIVE,
+        DUTY_CYCLED
+    }
+
+    /**
+     * Starts and stops the actual scan.
+     */
+    public interface Scanner {
+        void startScan();
+
+        void stopScan();
+    }
+
+    public interface Listener {
+        /**
+         * Called when the scheduler starts or stops. Pauses between duty cycle windows do not
+         * count as stopping.
+         */
+        void onSchedulerRunningChanged(boolean running);
+
+        /**
+         * Called when a device advertising the target service ends the scan.
+         */
+        void onTargetFound(String address);
+    }
+
+    public final static long QUIET_PERIOD_MS = 3000;
+    public final static long DUTY_ON_MS = 1000;
+    public final static long DUTY_OFF_MIN_MS = 5000;
+    public final static long DUTY_OFF_MAX_MS = 30000;
+    public final static int MAX_STARTS_PER_WINDOW = 5;
+    public final static long START_WINDOW_MS = 30000;
+
+    private final Handler mHandler;
+    private final Scanner mScanner;
+    private final Listener mListener;
+
+    private Mode mMode;
+    private boolean mRunning;
+    private boolean mRadioOn;
+    private long mRadioOnSince;
+    private long mRadioTimeMs;
+    private long mStartedAt;
+    private long mLastNewDeviceAt;
+    private long mTimeToTargetMs = -1;
+    private long mDutyOffMs = DUTY_OFF_MIN_MS;
+    private boolean mFoundInWindow;
+    // Times of the last MAX_STARTS_PER_WINDOW scan starts, oldest at mNextStart.
+    private final long mStartTimes[] = new long[MAX_STARTS_PER_WINDOW];
+    private int mNextStart;
+
+    private final Runnable mQuietCheck = new Runnable() {
+        @Override
+        public void run() {
+            final long quietFor = SystemClock.elapsedRealtime() - mLastNewDeviceAt;
+            if (quietFor >= QUIET_PERIOD_MS) {
+                // Nothing new for a while, stop keeping the radio busy.
+                setMode(Mode.DUTY_CYCLED);
+            } else {
+                mHandler.postDelayed(this, QUIET_PERIOD_MS - quietFor);
+            }
+        }
+    };
+
+    private final Runnable mDutyWindowEnd = new Runnable() {
+        @Override
+        public void run() {
+            radioOff();
+            if (mFoundInWindow) {
+                mDutyOffMs = DUTY_OFF_MIN_MS;
+            } else {
+                mDutyOffMs = Math.min(mDutyOffMs * 2, DUTY_OFF_MAX_MS);
+            }
+            mHandler.postDelayed(mDutyWindowStart, offDelay(mDutyOffMs));
+        }
+    };
+
+    private final Runnable mDutyWindowStart = new Runnable() {
+        @Override
+        public void run() {
+            mFoundInWindow = false;
+            radioOn();
+            mHandler.postDelayed(mDutyWindowEnd, DUTY_ON_MS);
+        }
+    };
+
+    public ScanScheduler(Handler handler, Scanner scanner, Listener listener) {
+        mHandler = handler;
+        mScanner = scanner;
+        mListener = listener;
+        Arrays.fill(mStartTimes, Long.MIN_VALUE / 2);
+    }
+
+    /**
+     * Starts scanning in the given mode, or switches mode if already running.
+     */
+    public void start(Mode mode) {
+        if (!mRunning) {
+            mRunning = true;
+            mStartedAt = SystemClock.elapsedRealtime();
+            mTimeToTargetMs = -1;
+            mListener.onSchedulerRunningChanged(true);
+        }
+        setMode(mode);
+    }
+
+    public void stop() {
+        if (!mRunning) {
+            return;
+        }
+        cancelCallbacks();
+        radioOff();
+        mRunning = false;
+        mMode = null;
+        mListener.onSchedulerRunningChanged(false);
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    public Mode getMode() {
+        return mMode;
+    }
+
+    /**
+     * Reports a device seen for the first time during this scan, or a known one whose latest
+     * advertisement was the first to carry the target service.
+     *
+     * @param advertisesTarget Whether the device advertises the target service.
+     */
+    public void onNewDevice(String address, boolean advertisesTarget) {
+        if (!mRunning) {
+            return;
+        }
+        mLastNewDeviceAt = SystemClock.elapsedRealtime();
+        mFoundInWindow = true;
+        if (advertisesTarget) {
+            mTimeToTargetMs = mLastNewDeviceAt - mStartedAt;
+            stop();
+            mListener.onTargetFound(address);
+        }
+    }
+
+    /**
+     * @return Total time the radio spent scanning, in milliseconds.
+     */
+    public long getRadioTimeMs() {
+        return mRadioTimeMs
+                + (mRadioOn ? SystemClock.elapsedRealtime() - mRadioOnSince : 0);
+    }
+
+    /**
+     * @return Time from the start of the last scan to the first target device, or -1 if none
+     *         was found.
+     */
+    public long getTimeToTargetMs() {
+        return mTimeToTargetMs;
+    }
+
+    private void setMode(Mode mode) {
+        cancelCallbacks();
+        mMode = mode;
+        switch (mode) {
+            case AGGRESSIVE:
+                mLastNewDeviceAt = SystemClock.elapsedRealtime();
+                radioOn();
+                mHandler.postDelayed(mQuietCheck, QUIET_PERIOD_MS);
+                break;
+            case DUTY_CYCLED:
+                mDutyOffMs = DUTY_OFF_MIN_MS;
+                radioOff();
+                mHandler.postDelayed(mDutyWindowStart, offDelay(mDutyOffMs));
+                break;
+        }
+    }
+
+    private void cancelCallbacks() {
+        mHandler.removeCallbacks(mQuietCheck);
+        mHandler.removeCallbacks(mDutyWindowStart);
+        mHandler.removeCallbacks(mDutyWindowEnd);
+    }
+
+    /**
+     * @return {@code offMs}, or longer if the next start would exceed the scan start limit.
+     */
+    private long offDelay(long offMs) {
+        final long allowedAt = mStartTimes[mNextStart] + START_WINDOW_MS;
+        return Math.max(offMs, allowedAt - SystemClock.elapsedRealtime());
+    }
+
+    private void radioOn() {
+        if (mRadioOn) {
+            return;
+        }
+        mRadioOn = true;
+        mRadioOnSince = SystemClock.elapsedRealtime();
+        mStartTimes[mNextStart] = mRadioOnSince;
+        mNextStart = (mNextStart + 1) % MAX_STARTS_PER_WINDOW;
+        mScanner.startScan();
+    }
+
+    private void radioOff() {
+        if (!mRadioOn) {
+            return;
+        }
+        mRadioOn = false;
+        mRadioTimeMs += SystemClock.elapsedRealtime() - mRadioOnSince;
+        mScanner.stopScan();
+    }
+}
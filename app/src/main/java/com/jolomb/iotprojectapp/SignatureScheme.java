@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jolomb.iotprojectapp;
+
+/**
+ * The signature schemes a lock can sign its responses with. Locks report theirs as a single
+ * byte in the optional signature scheme characteristic; locks without it sign with
+ * {@link #RSA_SHA256}.
+ *
+ * ECDSA signatures travel as the raw 64 byte {@code r || s} concatenation rather than the 70 or
+ * so bytes of DER, and are converted back before verification.
+ */
+public enum SignatureScheme {
+
+    RSA_SHA256((byte) 0x01, "RSA", "SHA256withRSA", 0),
+    ECDSA_P256_SHA256((byte) 0x02, "EC", "SHA256withECDSA", 64);
+
+    private final byte mId;
+    private final String mKeyAlgorithm;
+    private final String mSignatureAlgorithm;
+    private final int mRawLength;
+
+    SignatureScheme(byte id, String keyAlgorithm, String signatureAlgorithm, int rawLength) {
+        mId = id;
+        mKeyAlgorithm = keyAlgorithm;
+        mSignatureAlgorithm = signatureAlgorithm;
+        mRawLength = rawLength;
+    }
+
+    /**
+     * @return The scheme a lock reported, or {@code null} for an unknown one.
+     */
+    public static SignatureScheme fromId(byte id) {
+        for (SignatureScheme scheme : values()) {
+            if (scheme.mId == id) {
+                return scheme;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The scheme signing with keys of the given algorithm, e.g. {@code "EC"}, or
+     *         {@code null}.
+     */
+    public static SignatureScheme forKeyAlgorithm(String keyAlgorithm) {
+        for (SignatureScheme scheme : values()) {
+            if (scheme.mKeyAlgorithm.equals(keyAlgorithm)) {
+                return scheme;
+            }
+        }
+        return null;
+    }
+
+    public byte getId() {
+        return mId;
+    }
+
+    public String getKeyAlgorithm() {
+        return mKeyAlgorithm;
+    }
+
+    public String getSignatureAlgorithm() {
+        return mSignatureAlgorithm;
+    }
+
+    /**
+     * @return Length of a raw signature, 0 for schemes sending the JCA encoding as is.
+     */
+    public int getRawLength() {
+        return mRawLength;
+    }
+
+    /**
+     * @return True if signatures go over the air as fixed length raw values that need
+     *         {@link #toDer(byte[], int, int)} before verification.
+     */
+    public boolean isRaw() {
+        return mRawLength != 0;
+    }
+
+    /**
+     * @param keyBytes Size of the key in bytes, for schemes whose signature is as long as
+     *                 the key.
+     *
+     * @return True if a signature of {@code length} bytes is plausible for the scheme.
+     */
+    public boolean isValidLength(int length, int keyBytes) {
+        return isRaw() ? length == mRawLength : length == keyBytes;
+    }
+
+    /**
+     * Encodes a raw {@code r || s} signature as the DER {@code SEQUENCE} of two
+     * {@code INTEGER}s that {@code java.security.Signature} expects. Only short form DER
+     * lengths are written, which covers P-256.
+     */
+    public static byte[] toDer(byte[] raw, int offset, int length) {
+        final int half = length / 2;
+        final byte r[] = unsignedInteger(raw, offset, half);
+        final byte s[] = unsignedInteger(raw, offset + half, half);
+        final int sequenceLength = 2 + r.length + 2 + s.length;
+        final byte der[] = new byte[2 + sequenceLength];
+        int pos = 0;
+        der[pos++] = 0x30;
+        der[pos++] = (byte) sequenceLength;
+        der[pos++] = 0x02;
+        der[pos++] = (byte) r.length;
+        System.arraycopy(r, 0, der, pos, r.length);
+        pos += r.length;
+        der[pos++] = 0x02;
+        der[pos++] = (byte) s.length;
+        System.arraycopy(s, 0, der, pos, s.length);
+        return der;
+    }
+
+    /**
+     * Converts a DER encoded ECDSA signature to raw {@code r || s}, each padded to
+     * {@code rawLength / 2} bytes. The inverse of {@link #toDer(byte[], int, int)}.
+     *
+     * @return The raw signature, or {@code null} if {@code der} is malformed.
+     */
+    public static byte[] toRaw(byte[] der, int rawLength) {
+        final int half = rawLength / 2;
+        final byte raw[] = new byte[rawLength];
+        if (der.length < 8 || der[0] != 0x30 || (der[1] & 0xff) != der.length - 2) {
+            return null;
+        }
+        int pos = 2;
+        for (int i = 0; i < 2; i++) {
+            if (pos + 2 > der.length || der[pos] != 0x02) {
+                return null;
+            }
+            int length = der[pos + 1] & 0xff;
+            pos += 2;
+            if (pos + length > der.length) {
+                return null;
+            }
+            int start = pos;
+            // Drop the sign padding and leading zeros.
+            while (length > half && der[start] == 0) {
+                start++;
+                length--;
+            }
+            if (length > half) {
+                return null;
+            }
+            System.arraycopy(der, start, raw, i * half + half - length, length);
+            pos = start + length;
+        }
+        return pos == der.length ? raw : null;
+    }
+
+    // Minimal two's complement encoding of an unsigned big endian integer.
+    private static byte[] unsignedInteger(byte[] src, int offset, int length) {
+        int start = offset;
+        final int end = offset + length;
+        while (start < end - 1 && src[start] == 0) {
+            start++;
+        }
+        final boolean pad = (src[start] & 0x80) != 0;
+        final byte value[] = new byte[end - start + (pad ? 1 : 0)];
+        System.arraycopy(src, start, value, pad ? 1 : 0, end - start);
+        return value;
+    }
+}
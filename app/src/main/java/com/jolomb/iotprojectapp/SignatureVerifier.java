@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jolomb.iotprojectapp;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Verifies the signed responses of a remote lock against a fixed public key.
+ *
+ * The key is parsed once, on first use, and every verifying thread keeps its own
+ * {@code Signature} instance, so a verification only costs the actual signature check.
+ * {@link #verifyAsync(byte[], byte[], Callback, Executor)} runs the check on a background
+ * executor and keeps it off the UI thread.
+ *
+ * With {@link #setBuiltInRsaEnabled(boolean)}, SHA256withRSA signatures of keys with the usual
+ * exponent 65537 are checked by a {@code RsaSha256Verifier} instead, which skips the provider
+ * lookup. Other keys and algorithms keep using {@code Signature}.
+ */
+public class SignatureVerifier {
+
+    public interface Callback {
+        void onVerificationResult(boolean valid);
+
+        /**
+         * Called instead of {@link #onVerificationResult(boolean)} when the key or the algorithm
+         * is not usable.
+         */
+        void onVerificationError(Exception ex);
+    }
+
+    private final String mKeyAlgorithm;
+    private final String mSignatureAlgorithm;
+    private final byte mEncodedKey[];
+    private final ExecutorService mExecutor;
+    private final boolean mOwnsExecutor;
+
+    private volatile PublicKey mPublicKey;
+    // Null for verifiers built from algorithm names, which take the JCA encoding as is.
+    private SignatureScheme mScheme;
+    private volatile boolean mBuiltInRsa;
+
+    private final ThreadLocal<Signature> mSignatures = new ThreadLocal<Signature>() {
+        @Override
+        protected Signature initialValue() {
+            try {
+                return Signature.getInstance(mSignatureAlgorithm);
+            } catch (GeneralSecurityException ex) {
+                return null;
+            }
+        }
+    };
+
+    // Null on threads where the key cannot use the built in verifier.
+    private final ThreadLocal<RsaSha256Verifier> mRsaVerifiers =
+            new ThreadLocal<RsaSha256Verifier>() {
+        @Override
+        protected RsaSha256Verifier initialValue() {
+            try {
+                final PublicKey key = getPublicKey();
+                if (!SignatureScheme.RSA_SHA256.getSignatureAlgorithm().equals(mSignatureAlgorithm)
+                        || !(key instanceof RSAPublicKey)) {
+                    return null;
+                }
+                return new RsaSha256Verifier((RSAPublicKey) key);
+            } catch (GeneralSecurityException ex) {
+                return null;
+            }
+        }
+    };
+
+    /**
+     * @param keyAlgorithm Algorithm of the key, e.g. {@code "RSA"}.
+     * @param signatureAlgorithm Signature algorithm, e.g. {@code "SHA256withRSA"}.
+     * @param encodedKey The X.509 (DER) encoded public key.
+     */
+    public SignatureVerifier(String keyAlgorithm, String signatureAlgorithm, byte[] encodedKey) {
+        this(keyAlgorithm, signatureAlgorithm, encodedKey, newDefaultExecutor(), true);
+    }
+
+    /**
+     * @param executor Executor the verifications run on. It is not shut down by
+     *                 {@link #shutdown()}.
+     */
+    public SignatureVerifier(String keyAlgorithm, String signatureAlgorithm, byte[] encodedKey,
+                             ExecutorService executor) {
+        this(keyAlgorithm, signatureAlgorithm, encodedKey, executor, false);
+    }
+
+    /**
+     * Verifies signatures of {@code scheme} against an already parsed key, e.g. one from a
+     * {@code PublicKeyRing}. Raw signatures are converted to DER on the verifying thread.
+     */
+    public SignatureVerifier(SignatureScheme scheme, PublicKey publicKey) {
+        this(scheme, publicKey, newDefaultExecutor(), true);
+    }
+
+    /**
+     * @param executor Executor the verifications run on. It is not shut down by
+     *                 {@link #shutdown()}.
+     */
+    public SignatureVerifier(SignatureScheme scheme, PublicKey publicKey,
+                             ExecutorService executor) {
+        this(scheme, publicKey, executor, false);
+    }
+
+    private SignatureVerifier(SignatureScheme scheme, PublicKey publicKey,
+                              ExecutorService executor, boolean ownsExecutor) {
+        this(publicKey.getAlgorithm(), scheme.getSignatureAlgorithm(), publicKey.getEncoded(),
+                executor, ownsExecutor);
+        mPublicKey = publicKey;
+        mScheme = scheme;
+    }
+
+    private SignatureVerifier(String keyAlgorithm, String signatureAlgorithm, byte[] encodedKey,
+                              ExecutorService executor, boolean ownsExecutor) {
+        mKeyAlgorithm = keyAlgorithm;
+        mSignatureAlgorithm = signatureAlgorithm;
+        mEncodedKey = encodedKey.clone();
+        mExecutor = executor;
+        mOwnsExecutor = ownsExecutor;
+    }
+
+    /**
+     * @return A verifier for the same key and scheme that runs its verifications on
+     *         {@code executor}. The executor is not shut down by {@link #shutdown()}.
+     */
+    public SignatureVerifier withExecutor(ExecutorService executor) {
+        final SignatureVerifier verifier = new SignatureVerifier(mKeyAlgorithm,
+                mSignatureAlgorithm, mEncodedKey, executor, false);
+        verifier.mPublicKey = mPublicKey;
+        verifier.mScheme = mScheme;
+        verifier.mBuiltInRsa = mBuiltInRsa;
+        return verifier;
+    }
+
+    /**
+     * Checks SHA256withRSA signatures with the built in {@code RsaSha256Verifier} when the key
+     * allows it. Call before {@link #prepare()}.
+     *
+     * Off by default: on HotSpot, JCA with a reused {@code Signature} is faster. Only turn it on
+     * for a runtime where {@code SignatureVerifyBenchmark} shows the built in verifier ahead.
+     */
+    public void setBuiltInRsaEnabled(boolean enabled) {
+        mBuiltInRsa = enabled;
+    }
+
+    /**
+     * @return The scheme given to the constructor, or {@code null} if it took algorithm names.
+     */
+    public SignatureScheme getScheme() {
+        return mScheme;
+    }
+
+    /**
+     * Checks the length of a signature against the key before it is verified: RSA signatures are
+     * as long as the modulus, raw ones as long as their scheme says. Other encodings vary and
+     * are left to the verification.
+     *
+     * @return Return false if a signature of {@code length} bytes cannot be valid, or if the key
+     *         is not usable.
+     */
+    public boolean isValidLength(int length) {
+        if (mScheme != null && mScheme.isRaw()) {
+            return mScheme.isValidLength(length, 0);
+        }
+        final PublicKey key;
+        try {
+            key = getPublicKey();
+        } catch (GeneralSecurityException ex) {
+            return false;
+        }
+        if (key instanceof RSAPublicKey) {
+            return SignatureScheme.RSA_SHA256.isValidLength(length,
+                    (((RSAPublicKey) key).getModulus().bitLength() + 7) / 8);
+        }
+        return length > 0;
+    }
+
+    /**
+     * Parses the key and sets up the background thread ahead of the first verification.
+     */
+    public void prepare() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    getPublicKey();
+                    if (!mBuiltInRsa || mRsaVerifiers.get() == null) {
+                        mSignatures.get();
+                    }
+                } catch (GeneralSecurityException ex) {
+                    // Reported again on the first verification.
+                }
+            }
+        });
+    }
+
+    /**
+     * Verifies {@code signature} over {@code message} on the calling thread.
+     */
+    public boolean verify(byte[] message, byte[] signature) throws GeneralSecurityException {
+        return verify(message, 0, message.length, signature, 0, signature.length);
+    }
+
+    public boolean verify(byte[] message, int messageOff, int messageLen,
+                          byte[] signature, int signatureOff, int signatureLen)
+            throws GeneralSecurityException {
+        if (mBuiltInRsa) {
+            final RsaSha256Verifier rsaVerifier = mRsaVerifiers.get();
+            if (rsaVerifier != null) {
+                return rsaVerifier.verify(message, messageOff, messageLen,
+                        signature, signatureOff, signatureLen);
+            }
+        }
+        final Signature verifier = mSignatures.get();
+        if (verifier == null) {
+            throw new GeneralSecurityException(mSignatureAlgorithm + " not available");
+        }
+        verifier.initVerify(getPublicKey());
+        verifier.update(message, messageOff, messageLen);
+        if (mScheme != null && mScheme.isRaw()) {
+            return verifier.verify(SignatureScheme.toDer(signature, signatureOff, signatureLen));
+        }
+        return verifier.verify(signature, signatureOff, signatureLen);
+    }
+
+    /**
+     * Verifies {@code signature} over {@code message} on the background executor. Both arrays are
+     * copied, so the caller may reuse them right away.
+     *
+     * @param callback Receives the result, or {@code null}.
+     * @param callbackExecutor Executor the callback runs on, e.g. a {@code MainThreadExecutor}.
+     *
+     * @return A future holding the result. After {@link #shutdown()} it holds the
+     *         {@code RejectedExecutionException}, which is also passed to
+     *         {@link Callback#onVerificationError(Exception)}.
+     */
+    public Future<Boolean> verifyAsync(byte[] message, byte[] signature,
+                                       final Callback callback, final Executor callbackExecutor) {
+        final byte messageCopy[] = message.clone();
+        final byte signatureCopy[] = signature.clone();
+        try {
+            return submit(messageCopy, signatureCopy, callback, callbackExecutor);
+        } catch (final RejectedExecutionException ex) {
+            if (callback != null) {
+                callbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onVerificationError(ex);
+                    }
+                });
+            }
+            final FutureTask<Boolean> rejected = new FutureTask<Boolean>(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    throw ex;
+                }
+            });
+            rejected.run();
+            return rejected;
+        }
+    }
+
+    private Future<Boolean> submit(final byte[] messageCopy, final byte[] signatureCopy,
+                                   final Callback callback, final Executor callbackExecutor) {
+        return mExecutor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                final boolean valid;
+                try {
+                    valid = verify(messageCopy, signatureCopy);
+                } catch (final Exception ex) {
+                    if (callback != null) {
+                        callbackExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                callback.onVerificationError(ex);
+                            }
+                        });
+                    }
+                    throw ex;
+                }
+                if (callback != null) {
+                    callbackExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onVerificationResult(valid);
+                        }
+                    });
+                }
+                return valid;
+            }
+        });
+    }
+
+    private static ExecutorService newDefaultExecutor() {
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "SignatureVerifier");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public void shutdown() {
+        if (mOwnsExecutor) {
+            mExecutor.shutdownNow();
+        }
+    }
+
+    private PublicKey getPublicKey() throws GeneralSecurityException {
+        PublicKey key = mPublicKey;
+        if (key == null) {
+            synchronized (this) {
+                key = mPublicKey;
+                if (key == null) {
+                    key = KeyFactory.getInstance(mKeyAlgorithm)
+                            .generatePublic(new X509EncodedKeySpec(mEncodedKey));
+                    mPublicKey = key;
+                }
+            }
+        }
+        return key;
+    }
+}
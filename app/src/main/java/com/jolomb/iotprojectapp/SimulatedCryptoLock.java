@@ -0,0 +1,751 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jolomb.iotprojectapp;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plain Java stand-in for the crypto signer lock firmware, used as a {@code GattTransport}.
+ *
+ * Implements the W/P/R/N/D state machine of the {@code 0000fff3} state characteristic: a
+ * challenge written to {@code 0000fff1} moves the lock from W to P, the on-board button press
+ * signs it with the lock's key and moves to R (or N if signing fails), and the signature is
+ * then read from {@code 0000fff2}. Locks with an EC key sign with
+ * {@code SignatureScheme.ECDSA_P256_SHA256}, send raw signatures and report the scheme in
+ * {@code 0000fff4}; RSA locks do not have that characteristic, like the older firmware.
+ * Writing D then W to the state characteristic resets the lock; a W without the D is rejected
+ * while a round is in progress.
+ * If notifications of {@code 0000fff2} are enabled, the signature is also streamed as
+ * {@code FragmentCodec} fragments sized to the negotiated MTU as soon as it is ready.
+ * The challenge can also be written without response; the P state then carries the
+ * {@code ChallengeDigest} of the challenge the lock received.
+ *
+ * Every request completes after a configurable latency on the given executor, like the binder
+ * callbacks of a real stack, which also run one at a time and in order; a read longer than one
+ * ATT payload costs one round trip per read blob, like a long read. Requests and notifications
+ * can be dropped at random, and the link can be dropped at random or on demand, to exercise
+ * timeouts and reconnects.
+ */
+public class SimulatedCryptoLock implements GattTransport {
+
+    public final static char STATE_WAITING_FOR_INPUT = 'W';
+    public final static char STATE_WAITING_FOR_BUTTON = 'P';
+    public final static char STATE_RESPONSE_READY = 'R';
+    public final static char STATE_SIGN_FAILED = 'N';
+    public final static char STATE_DONE = 'D';
+
+    public final static int CHALLENGE_LENGTH = 16;
+
+    // Same values as BluetoothGatt.GATT_FAILURE and the stack's link loss status codes.
+    public final static int STATUS_FAILURE = 0x101;
+    public final static int STATUS_CONNECTION_TIMEOUT = 0x08;
+    public final static int STATUS_GATT_ERROR = 0x85;
+
+    public final static int DEFAULT_MTU = 23;
+    public final static int MAX_MTU = 247;
+
+    // Connection intervals in 1.25 ms units picked for each priority, in the ranges Android
+    // asks for, and the supervision timeout in 10 ms units.
+    public final static int INTERVAL_HIGH = 9;
+    public final static int INTERVAL_BALANCED = 36;
+    public final static int INTERVAL_LOW_POWER = 96;
+    private final static int SUPERVISION_TIMEOUT = 500;
+
+    private final static UUID SERVICE_UUID = SampleGattAttributes.CRYPTO_SIGNER_SERVICE_UUID;
+    private final static UUID CHALLENGE_UUID =
+            SampleGattAttributes.CRYPTO_SIGNER_CHALLANGE_INPUT_UUID;
+    private final static UUID RESPONSE_UUID =
+            SampleGattAttributes.CRYPTO_SIGNER_SIGNED_RESPONSE_UUID;
+    private final static UUID STATE_UUID = SampleGattAttributes.CRYPTO_SIGNER_RESPONSE_STATE_UUID;
+    private final static UUID SCHEME_UUID =
+            SampleGattAttributes.CRYPTO_SIGNER_SIGNATURE_SCHEME_UUID;
+    private final static UUID NOTIFY_DESCRIPTOR_UUID =
+            GattConnection.NOTIFICATION_DESCRIPTOR_UUIDS[0];
+
+    private final static List<GattServiceInfo> SERVICES = services(false);
+    private final static List<GattServiceInfo> SCHEME_SERVICES = services(true);
+
+    private static List<GattServiceInfo> services(boolean reportsScheme) {
+        final List<UUID> none = Collections.emptyList();
+        final List<GattCharacteristicInfo> characteristics =
+                new ArrayList<GattCharacteristicInfo>();
+        characteristics.add(new GattCharacteristicInfo(SERVICE_UUID, CHALLENGE_UUID,
+                GattCharacteristicInfo.PROPERTY_WRITE
+                        | GattCharacteristicInfo.PROPERTY_WRITE_NO_RESPONSE, none));
+        characteristics.add(new GattCharacteristicInfo(SERVICE_UUID, RESPONSE_UUID,
+                GattCharacteristicInfo.PROPERTY_READ | GattCharacteristicInfo.PROPERTY_NOTIFY,
+                Collections.singletonList(NOTIFY_DESCRIPTOR_UUID)));
+        characteristics.add(new GattCharacteristicInfo(SERVICE_UUID, STATE_UUID,
+                GattCharacteristicInfo.PROPERTY_READ | GattCharacteristicInfo.PROPERTY_WRITE
+                        | GattCharacteristicInfo.PROPERTY_NOTIFY,
+                Collections.singletonList(NOTIFY_DESCRIPTOR_UUID)));
+        if (reportsScheme) {
+            characteristics.add(new GattCharacteristicInfo(SERVICE_UUID, SCHEME_UUID,
+                    GattCharacteristicInfo.PROPERTY_READ, none));
+        }
+        return Collections.singletonList(new GattServiceInfo(SERVICE_UUID, characteristics));
+    }
+
+    private final String mAddress;
+    private final KeyPair mKeyPair;
+    private final SignatureScheme mScheme;
+    private final Callback mCallback;
+    private final ScheduledExecutorService mExecutor;
+    private final Random mRandom;
+
+    // Callbacks waiting for their latency to pass, in the order they are due.
+    private final PriorityQueue<Delivery> mDeliveries = new PriorityQueue<Delivery>();
+    private final Object mDeliveryLock = new Object();
+    private long mDeliveryCount;
+
+    private static class Delivery implements Comparable<Delivery> {
+        final long dueNanos;
+        final long sequence;
+        final Runnable callback;
+
+        Delivery(long dueNanos, long sequence, Runnable callback) {
+            this.dueNanos = dueNanos;
+            this.sequence = sequence;
+            this.callback = callback;
+        }
+
+        @Override
+        public int compareTo(Delivery other) {
+            if (dueNanos != other.dueNanos) {
+                return dueNanos < other.dueNanos ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    // Runs every callback that is due. The executor has several threads, so without the lock
+    // a notification could overtake the one sent before it.
+    private final Runnable mDeliverDue = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mDeliveryLock) {
+                while (true) {
+                    final Delivery delivery;
+                    synchronized (mDeliveries) {
+                        delivery = mDeliveries.peek();
+                        if (delivery == null || delivery.dueNanos > System.nanoTime()) {
+                            return;
+                        }
+                        mDeliveries.poll();
+                    }
+                    synchronized (SimulatedCryptoLock.this) {
+                        if (mClosed) {
+                            continue;
+                        }
+                    }
+                    delivery.callback.run();
+                }
+            }
+        }
+    };
+
+    // Link and fault injection settings.
+    private volatile long mLatencyMs = 10;
+    private volatile long mJitterMs = 0;
+    private volatile double mPacketLoss = 0;
+    private volatile double mDisconnectProbability = 0;
+    private volatile long mButtonDelayMs = 0;
+    private volatile boolean mCorruptNextWrite;
+
+    // Lock state, guarded by this.
+    private boolean mConnected;
+    private boolean mClosed;
+    private boolean mDiscovered;
+    private boolean mStateNotifying;
+    private boolean mResponseNotifying;
+    private int mMtu = DEFAULT_MTU;
+    private int mConnectionInterval = INTERVAL_BALANCED;
+    private int mPhy = LinkProfile.PHY_LE_1M;
+    private char mState = STATE_WAITING_FOR_INPUT;
+    private byte mChallenge[];
+    private byte mResponse[] = new byte[0];
+
+    /**
+     * @param keyPair The lock's signing key.
+     * @param executor Executor the callbacks are delivered on.
+     * @param seed Seed of the packet loss and disconnect injection.
+     */
+    public SimulatedCryptoLock(String address, KeyPair keyPair, Callback callback,
+                               ScheduledExecutorService executor, long seed) {
+        mAddress = address;
+        mKeyPair = keyPair;
+        final SignatureScheme scheme =
+                SignatureScheme.forKeyAlgorithm(keyPair.getPublic().getAlgorithm());
+        mScheme = scheme == null ? SignatureScheme.RSA_SHA256 : scheme;
+        mCallback = callback;
+        mExecutor = executor;
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * @return A factory creating simulated locks that all sign with {@code keyPair}.
+     */
+    public static Factory factory(final KeyPair keyPair, final ScheduledExecutorService executor) {
+        return new Factory() {
+            @Override
+            public GattTransport create(String address, Callback callback) {
+                return new SimulatedCryptoLock(address, keyPair, callback, executor,
+                        address.hashCode());
+            }
+        };
+    }
+
+    /**
+     * @return A fresh 1024 bit RSA key pair, the key size the real locks use.
+     */
+    public static KeyPair generateKeyPair() throws GeneralSecurityException {
+        return generateKeyPair(1024);
+    }
+
+    /**
+     * @param keySize RSA modulus length in bits; the signature is as long as the modulus.
+     */
+    public static KeyPair generateKeyPair(int keySize) throws GeneralSecurityException {
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(keySize);
+        return generator.generateKeyPair();
+    }
+
+    /**
+     * @return A fresh P-256 key pair, for locks signing with
+     *         {@code SignatureScheme.ECDSA_P256_SHA256}.
+     */
+    public static KeyPair generateEcKeyPair() throws GeneralSecurityException {
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(256);
+        return generator.generateKeyPair();
+    }
+
+    /**
+     * @param latencyMs Delay before every callback.
+     * @param jitterMs Uniformly distributed extra delay, up to this value.
+     */
+    public void setLatency(long latencyMs, long jitterMs) {
+        mLatencyMs = latencyMs;
+        mJitterMs = jitterMs;
+    }
+
+    /**
+     * @param packetLoss Probability that a request or notification is silently lost.
+     */
+    public void setPacketLoss(double packetLoss) {
+        mPacketLoss = packetLoss;
+    }
+
+    /**
+     * @param disconnectProbability Probability that the link drops on any request.
+     */
+    public void setDisconnectProbability(double disconnectProbability) {
+        mDisconnectProbability = disconnectProbability;
+    }
+
+    /**
+     * @param buttonDelayMs Delay before the simulated user presses the on-board button after a
+     *                      challenge arrives, or a negative value to only press it through
+     *                      {@link #pressButton()}.
+     */
+    public void setButtonDelay(long buttonDelayMs) {
+        mButtonDelayMs = buttonDelayMs;
+    }
+
+    public KeyPair getKeyPair() {
+        return mKeyPair;
+    }
+
+    public synchronized char getState() {
+        return mState;
+    }
+
+    /**
+     * Flips a bit of the next written value on its way to the lock, past any link layer
+     * check.
+     */
+    public void corruptNextWrite() {
+        mCorruptNextWrite = true;
+    }
+
+    /**
+     * Drops the link now, reporting {@code status} to the callback.
+     */
+    public void injectDisconnect(final int status) {
+        synchronized (this) {
+            if (!mConnected) {
+                return;
+            }
+            mConnected = false;
+        }
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                mCallback.onConnectionStateChange(status, false);
+            }
+        });
+    }
+
+    /**
+     * Presses the on-board button: signs the pending challenge if the lock waits for it.
+     */
+    public void pressButton() {
+        final char state;
+        synchronized (this) {
+            if (mState != STATE_WAITING_FOR_BUTTON) {
+                return;
+            }
+            try {
+                final Signature signer = Signature.getInstance(mScheme.getSignatureAlgorithm());
+                signer.initSign(mKeyPair.getPrivate());
+                signer.update(mChallenge);
+                final byte signature[] = signer.sign();
+                mResponse = mScheme.isRaw() ?
+                        SignatureScheme.toRaw(signature, mScheme.getRawLength()) : signature;
+                if (mResponse == null) {
+                    throw new SignatureException("Unexpected signature encoding");
+                }
+                mState = STATE_RESPONSE_READY;
+            } catch (GeneralSecurityException ex) {
+                mResponse = new byte[0];
+                mState = STATE_SIGN_FAILED;
+            }
+            state = mState;
+        }
+        notifyState(state);
+        if (state == STATE_RESPONSE_READY) {
+            streamResponse();
+        }
+    }
+
+    @Override
+    public String getAddress() {
+        return mAddress;
+    }
+
+    @Override
+    public boolean connect() {
+        synchronized (this) {
+            if (mClosed) {
+                return false;
+            }
+        }
+        final boolean lost = lost();
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedCryptoLock.this) {
+                    if (mClosed) {
+                        return;
+                    }
+                    mConnected = !lost;
+                    mMtu = DEFAULT_MTU;
+                    mConnectionInterval = INTERVAL_BALANCED;
+                    mPhy = LinkProfile.PHY_LE_1M;
+                }
+                mCallback.onConnectionStateChange(lost ? STATUS_GATT_ERROR : 0, !lost);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public void disconnect() {
+        injectDisconnect(0);
+    }
+
+    @Override
+    public synchronized void close() {
+        mClosed = true;
+        mConnected = false;
+    }
+
+    @Override
+    public boolean isBonded() {
+        return false;
+    }
+
+    @Override
+    public boolean discoverServices() {
+        if (!beginRequest()) {
+            return false;
+        }
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedCryptoLock.this) {
+                    mDiscovered = true;
+                }
+                mCallback.onServicesDiscovered(0);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public synchronized List<GattServiceInfo> getServices() {
+        if (!mDiscovered) {
+            return Collections.emptyList();
+        }
+        return mScheme == SignatureScheme.RSA_SHA256 ? SERVICES : SCHEME_SERVICES;
+    }
+
+    @Override
+    public boolean readCharacteristic(UUID serviceUuid, final UUID characteristicUuid) {
+        if (!SERVICE_UUID.equals(serviceUuid) || !beginRequest()) {
+            return false;
+        }
+        final byte value[];
+        final int roundTrips;
+        synchronized (this) {
+            if (RESPONSE_UUID.equals(characteristicUuid)) {
+                value = mResponse.clone();
+            } else if (STATE_UUID.equals(characteristicUuid)) {
+                value = stateValue(mState);
+            } else if (SCHEME_UUID.equals(characteristicUuid)
+                    && mScheme != SignatureScheme.RSA_SHA256) {
+                value = new byte[] { mScheme.getId() };
+            } else {
+                return false;
+            }
+            // A read returns MTU - 1 bytes, every following read blob MTU - 1 more.
+            roundTrips = Math.max(1, (value.length + mMtu - 2) / (mMtu - 1));
+        }
+        if (!lost()) {
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onCharacteristicRead(characteristicUuid, 0, value);
+                }
+            }, roundTrips);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean writeCharacteristic(UUID serviceUuid, UUID characteristicUuid, byte[] value) {
+        return write(serviceUuid, characteristicUuid, value, true);
+    }
+
+    @Override
+    public boolean writeCharacteristicWithoutResponse(UUID serviceUuid, UUID characteristicUuid,
+                                                      byte[] value) {
+        return write(serviceUuid, characteristicUuid, value, false);
+    }
+
+    private boolean write(UUID serviceUuid, final UUID characteristicUuid, byte[] value,
+                          boolean withResponse) {
+        if (!SERVICE_UUID.equals(serviceUuid) || !beginRequest()) {
+            return false;
+        }
+        if (!withResponse) {
+            // Completes locally once the value is sent, whether or not it arrives.
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onCharacteristicWrite(characteristicUuid, 0);
+                }
+            }, 0);
+        }
+        if (lost()) {
+            return true;
+        }
+        if (mCorruptNextWrite) {
+            mCorruptNextWrite = false;
+            value = value.clone();
+            value[0] ^= 1;
+        }
+        final int status;
+        char notify = 0;
+        synchronized (this) {
+            if (CHALLENGE_UUID.equals(characteristicUuid)) {
+                if (mState == STATE_WAITING_FOR_INPUT && value.length == CHALLENGE_LENGTH) {
+                    mChallenge = value.clone();
+                    mState = STATE_WAITING_FOR_BUTTON;
+                    notify = mState;
+                    status = 0;
+                } else {
+                    status = STATUS_FAILURE;
+                }
+            } else if (STATE_UUID.equals(characteristicUuid) && value.length > 0
+                    && (value[0] == STATE_DONE || (value[0] == STATE_WAITING_FOR_INPUT
+                            && (mState == STATE_DONE || mState == STATE_WAITING_FOR_INPUT)))) {
+                mState = (char) value[0];
+                if (mState == STATE_WAITING_FOR_INPUT) {
+                    mChallenge = null;
+                    mResponse = new byte[0];
+                }
+                status = 0;
+            } else {
+                status = STATUS_FAILURE;
+            }
+        }
+        if (withResponse) {
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onCharacteristicWrite(characteristicUuid, status);
+                }
+            });
+        }
+        if (notify != 0) {
+            notifyState(notify);
+            final long buttonDelayMs = mButtonDelayMs;
+            if (buttonDelayMs >= 0) {
+                mExecutor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        pressButton();
+                    }
+                }, buttonDelayMs, TimeUnit.MILLISECONDS);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(UUID serviceUuid, UUID characteristicUuid,
+                                                 boolean enabled) {
+        return SERVICE_UUID.equals(serviceUuid);
+    }
+
+    @Override
+    public boolean writeDescriptor(UUID serviceUuid, final UUID characteristicUuid,
+                                   final UUID descriptorUuid, byte[] value) {
+        if (!SERVICE_UUID.equals(serviceUuid) || !NOTIFY_DESCRIPTOR_UUID.equals(descriptorUuid)
+                || !(STATE_UUID.equals(characteristicUuid) || RESPONSE_UUID.equals(characteristicUuid))
+                || !beginRequest()) {
+            return false;
+        }
+        if (lost()) {
+            return true;
+        }
+        final boolean enabled = Arrays.equals(value, GattConnection.ENABLE_NOTIFICATION_VALUE);
+        synchronized (this) {
+            if (STATE_UUID.equals(characteristicUuid)) {
+                mStateNotifying = enabled;
+            } else {
+                mResponseNotifying = enabled;
+            }
+        }
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                mCallback.onDescriptorWrite(characteristicUuid, descriptorUuid, 0);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        if (!beginRequest()) {
+            return false;
+        }
+        final int negotiated;
+        synchronized (this) {
+            mMtu = Math.max(DEFAULT_MTU, Math.min(mtu, MAX_MTU));
+            negotiated = mMtu;
+        }
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                mCallback.onMtuChanged(negotiated, 0);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int priority) {
+        if (!beginRequest()) {
+            return false;
+        }
+        final int interval;
+        final int latency;
+        switch (priority) {
+            case LinkProfile.CONNECTION_PRIORITY_HIGH:
+                interval = INTERVAL_HIGH;
+                latency = 0;
+                break;
+            case LinkProfile.CONNECTION_PRIORITY_LOW_POWER:
+                interval = INTERVAL_LOW_POWER;
+                latency = 2;
+                break;
+            default:
+                interval = INTERVAL_BALANCED;
+                latency = 0;
+                break;
+        }
+        synchronized (this) {
+            mConnectionInterval = interval;
+        }
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                mCallback.onConnectionUpdated(interval, latency, SUPERVISION_TIMEOUT, 0);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean setPreferredPhy(int txPhyMask, int rxPhyMask, int phyOptions) {
+        if (!beginRequest()) {
+            return false;
+        }
+        // The simulated controller supports LE 2M and takes it whenever it is allowed.
+        final int phy = (txPhyMask & rxPhyMask & LinkProfile.PHY_LE_2M_MASK) != 0 ?
+                LinkProfile.PHY_LE_2M : LinkProfile.PHY_LE_1M;
+        synchronized (this) {
+            mPhy = phy;
+        }
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                mCallback.onPhyUpdate(phy, phy, 0);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * @return The current connection interval in 1.25 ms units.
+     */
+    public synchronized int getConnectionInterval() {
+        return mConnectionInterval;
+    }
+
+    /**
+     * @return The PHY in use, {@code LinkProfile.PHY_LE_1M} or {@code PHY_LE_2M}.
+     */
+    public synchronized int getPhy() {
+        return mPhy;
+    }
+
+    /**
+     * @return Return false if the request cannot be issued. May drop the link on the way.
+     */
+    private boolean beginRequest() {
+        synchronized (this) {
+            if (!mConnected || mClosed) {
+                return false;
+            }
+        }
+        if (mDisconnectProbability > 0 && chance(mDisconnectProbability)) {
+            injectDisconnect(STATUS_CONNECTION_TIMEOUT);
+        }
+        return true;
+    }
+
+    private void notifyState(char state) {
+        final byte value[];
+        synchronized (this) {
+            if (!mStateNotifying || !mConnected) {
+                return;
+            }
+            value = stateValue(state);
+        }
+        if (lost()) {
+            return;
+        }
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                mCallback.onCharacteristicChanged(STATE_UUID, value);
+            }
+        });
+    }
+
+    // The state byte, followed by the digest of the received challenge in the P state.
+    private byte[] stateValue(char state) {
+        if (state != STATE_WAITING_FOR_BUTTON || mChallenge == null) {
+            return new byte[] { (byte) state };
+        }
+        final byte value[] = new byte[1 + ChallengeDigest.LENGTH];
+        value[0] = (byte) state;
+        ChallengeDigest.compute(mChallenge, value, 1);
+        return value;
+    }
+
+    private void streamResponse() {
+        final List<byte[]> fragments;
+        synchronized (this) {
+            if (!mResponseNotifying || !mConnected) {
+                return;
+            }
+            fragments = FragmentCodec.split(mResponse, mMtu);
+        }
+        // Notifications go out back to back in the following connection events, so the whole
+        // stream costs about one round trip. Each fragment can still be lost on its own.
+        final List<byte[]> delivered = new ArrayList<byte[]>(fragments.size());
+        for (byte[] fragment : fragments) {
+            if (!lost()) {
+                delivered.add(fragment);
+            }
+        }
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                for (byte[] fragment : delivered) {
+                    mCallback.onCharacteristicChanged(RESPONSE_UUID, fragment);
+                }
+            }
+        });
+    }
+
+    private boolean lost() {
+        return mPacketLoss > 0 && chance(mPacketLoss);
+    }
+
+    private boolean chance(double probability) {
+        synchronized (mRandom) {
+            return mRandom.nextDouble() < probability;
+        }
+    }
+
+    private void deliver(Runnable callback) {
+        deliver(callback, 1);
+    }
+
+    private void deliver(Runnable callback, int roundTrips) {
+        long delay = mLatencyMs * roundTrips;
+        if (mJitterMs > 0) {
+            synchronized (mRandom) {
+                delay += (long) (mRandom.nextDouble() * mJitterMs);
+            }
+        }
+        synchronized (mDeliveries) {
+            mDeliveries.add(new Delivery(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay),
+                    mDeliveryCount++, callback));
+        }
+        mExecutor.schedule(mDeliverDue, delay, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jolomb.iotprojectapp;
+
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One challenge/response round against a crypto signer lock: writes the challenge, waits for
+ * the state characteristic to report R (or N), reads the signed response and verifies it.
+ *
+ * The state characteristic must already be notifying. A disconnect before the outcome fails the
+ * round. With {@link #setFastWrite(boolean)} the challenge is written without response and
+ * confirmed by the {@code ChallengeDigest} in the P state; if that does not arrive in time, or
+ * does not match, the lock is reset and the challenge written again with an acknowledged
+ * write. Plain Java, so the same round can be driven against {@code SimulatedCryptoLock} on a
+ * build machine.
+ */
+class UnlockHandshake extends GattEventListener.Adapter {
+
+    enum Outcome {
+        GRANTED,
+        DENIED,
+        SIGNING_FAILED,
+        FAILED
+    }
+
+    interface Listener {
+        /**
+         * Called exactly once, on the thread that delivered the final event.
+         */
+        void onHandshakeComplete(String address, Outcome outcome);
+    }
+
+    private final GattConnection mConnection;
+    private final GattEventDispatcher mEventDispatcher;
+    private final SignatureVerifier mVerifier;
+    private final GattCharacteristicInfo mChallengeCharacteristic;
+    private final GattCharacteristicInfo mResponseCharacteristic;
+    private final GattCharacteristicInfo mStateCharacteristic;
+    private final UUID mStateUuid;
+    private final Listener mListener;
+    private final AtomicBoolean mFinished = new AtomicBoolean();
+    private final AtomicBoolean mResponseRequested = new AtomicBoolean();
+    private final AtomicBoolean mPending = new AtomicBoolean();
+
+    // Delivery of the challenge.
+    private final static int CHALLENGE_CONFIRMED = 0;
+    private final static int CHALLENGE_UNCONFIRMED = 1;
+    private final static int CHALLENGE_RESENDING = 2;
+    private final AtomicInteger mChallengeState = new AtomicInteger(CHALLENGE_CONFIRMED);
+    private volatile ScheduledFuture<?> mConfirmTimeout;
+    private volatile boolean mFastWrite;
+    private volatile boolean mFellBack;
+
+    private volatile boolean mResponseStreamed;
+    private volatile boolean mReadOnReady = true;
+    // Set once the lock reported R for the confirmed challenge.
+    private volatile boolean mResponseReady;
+    private volatile UnlockTracer mTracer;
+    private byte mChallenge[];
+
+    UnlockHandshake(GattConnection connection, GattEventDispatcher eventDispatcher,
+                    GattServiceInfo service, SignatureVerifier verifier, Listener listener) {
+        mConnection = connection;
+        mEventDispatcher = eventDispatcher;
+        mVerifier = verifier;
+        mListener = listener;
+        mChallengeCharacteristic = service.getCharacteristic(
+                SampleGattAttributes.CRYPTO_SIGNER_CHALLANGE_INPUT_UUID);
+        mResponseCharacteristic = service.getCharacteristic(
+                SampleGattAttributes.CRYPTO_SIGNER_SIGNED_RESPONSE_UUID);
+        mStateCharacteristic = service.getCharacteristic(
+                SampleGattAttributes.CRYPTO_SIGNER_RESPONSE_STATE_UUID);
+        mStateUuid = SampleGattAttributes.CRYPTO_SIGNER_RESPONSE_STATE_UUID;
+    }
+
+    /**
+     * @param streamed True if the response characteristic was subscribed to with
+     *                 {@code GattConnection#setFragmentedNotification}, in which case the lock
+     *                 pushes the response by itself and it is not read.
+     */
+    void setResponseStreamed(boolean streamed) {
+        mResponseStreamed = streamed;
+    }
+
+    /**
+     * @param fastWrite True to write the challenge without response if the characteristic
+     *                  allows it.
+     */
+    void setFastWrite(boolean fastWrite) {
+        mFastWrite = fastWrite;
+    }
+
+    /**
+     * @param readOnReady False to leave reading the response to {@link #readResponse()} once the
+     *                    lock reports R. True by default.
+     */
+    void setReadOnReady(boolean readOnReady) {
+        mReadOnReady = readOnReady;
+    }
+
+    /**
+     * @param tracer Receives the phases from the challenge write to the verification, or
+     *               {@code null}.
+     */
+    void setTracer(UnlockTracer tracer) {
+        mTracer = tracer;
+    }
+
+    /**
+     * Writes {@code challenge} and starts waiting for the response.
+     */
+    void start(byte[] challenge) {
+        mChallenge = challenge.clone();
+        if (mChallengeCharacteristic == null || mResponseCharacteristic == null) {
+            finish(Outcome.FAILED);
+            return;
+        }
+        mEventDispatcher.registerListener(this, GattEventDispatcher.DIRECT_EXECUTOR);
+        begin(UnlockTracer.Phase.WRITE_CHALLENGE);
+        begin(UnlockTracer.Phase.WAIT_FOR_PENDING);
+        final GattOperation write;
+        if (mFastWrite && mChallengeCharacteristic.hasProperty(
+                GattCharacteristicInfo.PROPERTY_WRITE_NO_RESPONSE)) {
+            mChallengeState.set(CHALLENGE_UNCONFIRMED);
+            mConfirmTimeout = mConnection.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    resendChallenge();
+                }
+            }, ChallengeDigest.CONFIRM_TIMEOUT_MS);
+            write = mConnection.writeCharacteristic(mChallengeCharacteristic, mChallenge, false);
+        } else {
+            write = mConnection.writeCharacteristic(mChallengeCharacteristic, mChallenge);
+        }
+        failOnError(write);
+        if (write != null) {
+            write.addCallback(new GattOperation.Callback() {
+                @Override
+                public void onComplete(GattOperation operation) {
+                    end(UnlockTracer.Phase.WRITE_CHALLENGE);
+                }
+            });
+        }
+    }
+
+    /**
+     * Reads the response, if the lock reported R and it was neither read nor pushed yet.
+     *
+     * @return Return true if the read was issued.
+     */
+    boolean readResponse() {
+        if (!mResponseReady || mResponseStreamed || mFinished.get()
+                || !mResponseRequested.compareAndSet(false, true)) {
+            return false;
+        }
+        begin(UnlockTracer.Phase.READ_RESPONSE);
+        failOnError(mConnection.readCharacteristic(mResponseCharacteristic));
+        return true;
+    }
+
+    boolean isFinished() {
+        return mFinished.get();
+    }
+
+    /**
+     * @return True if a challenge written without response had to be written again.
+     */
+    boolean didFallBack() {
+        return mFellBack;
+    }
+
+    @Override
+    public void onDisconnected(String address) {
+        if (mConnection.getAddress().equals(address)) {
+            finish(Outcome.FAILED);
+        }
+    }
+
+    @Override
+    public void onCharacteristicValue(String address, UUID uuid, byte[] value) {
+        if (!mConnection.getAddress().equals(address) || value == null || value.length == 0) {
+            return;
+        }
+        if (mStateUuid.equals(uuid)) {
+            final int challengeState = mChallengeState.get();
+            if (challengeState != CHALLENGE_CONFIRMED
+                    && value[0] == LockStateMachine.REMOTE_WAITING_FOR_ONBOARD_BUTTON) {
+                // The digest proves the lock holds this challenge, even while it is being
+                // written again. A P without it is only an answer to the acknowledged write.
+                if (ChallengeDigest.confirms(value, mChallenge)) {
+                    if (mChallengeState.compareAndSet(challengeState, CHALLENGE_CONFIRMED)) {
+                        cancelConfirmTimeout();
+                        onPending();
+                    }
+                } else if (challengeState == CHALLENGE_UNCONFIRMED) {
+                    resendChallenge();
+                }
+                return;
+            }
+            if (challengeState != CHALLENGE_CONFIRMED) {
+                // Whatever the lock signed now is not our challenge.
+                return;
+            }
+            if (value[0] == LockStateMachine.REMOTE_WAITING_FOR_ONBOARD_BUTTON) {
+                onPending();
+            } else if (value[0] == LockStateMachine.REMOTE_RESPONSE_READY && !mResponseReady) {
+                mResponseReady = true;
+                end(UnlockTracer.Phase.WAIT_FOR_BUTTON);
+                if (mResponseStreamed) {
+                    begin(UnlockTracer.Phase.READ_RESPONSE);
+                } else if (mReadOnReady) {
+                    readResponse();
+                }
+            } else if (value[0] == LockStateMachine.REMOTE_SIGN_FAILED) {
+                finish(Outcome.SIGNING_FAILED);
+            }
+        } else if (mResponseCharacteristic.getUuid().equals(uuid)
+                && (mResponseStreamed || mResponseRequested.get())
+                && mChallengeState.get() == CHALLENGE_CONFIRMED) {
+            end(UnlockTracer.Phase.READ_RESPONSE);
+            if (!mVerifier.isValidLength(value.length)) {
+                // Not a signature of the key the lock is expected to have.
+                finish(Outcome.SIGNING_FAILED);
+                return;
+            }
+            begin(UnlockTracer.Phase.VERIFY);
+            try {
+                mVerifier.verifyAsync(mChallenge, value, new SignatureVerifier.Callback() {
+                    @Override
+                    public void onVerificationResult(boolean valid) {
+                        end(UnlockTracer.Phase.VERIFY);
+                        finish(valid ? Outcome.GRANTED : Outcome.DENIED);
+                    }
+
+                    @Override
+                    public void onVerificationError(Exception ex) {
+                        // The key or the provider failed on our side; the lock did nothing wrong.
+                        finish(Outcome.FAILED);
+                    }
+                }, GattEventDispatcher.DIRECT_EXECUTOR);
+            } catch (RejectedExecutionException ex) {
+                // A verifier whose executor was shut down under us, e.g. by a key reload.
+                finish(Outcome.FAILED);
+            }
+        }
+    }
+
+    /**
+     * Stops listening without reporting an outcome.
+     */
+    void cancel() {
+        if (mFinished.compareAndSet(false, true)) {
+            unregister();
+        }
+    }
+
+    /**
+     * Resets the lock and writes the challenge again, acknowledged, after a write without
+     * response went unconfirmed. Only the first call does anything.
+     */
+    private void resendChallenge() {
+        if (!mChallengeState.compareAndSet(CHALLENGE_UNCONFIRMED, CHALLENGE_RESENDING)
+                || mFinished.get()) {
+            return;
+        }
+        cancelConfirmTimeout();
+        mFellBack = true;
+        if (mStateCharacteristic != null) {
+            // D then W, like the reset button; the lock ignores a W in the middle of a round.
+            failOnError(mConnection.writeCharacteristic(mStateCharacteristic,
+                    new byte[] { LockStateMachine.REMOTE_DONE }));
+            failOnError(mConnection.writeCharacteristic(mStateCharacteristic,
+                    new byte[] { LockStateMachine.REMOTE_WAITING_FOR_INPUT, 0 }));
+        }
+        final GattOperation write = mConnection.writeCharacteristic(mChallengeCharacteristic,
+                mChallenge);
+        if (write == null) {
+            finish(Outcome.FAILED);
+            return;
+        }
+        write.addCallback(new GattOperation.Callback() {
+            @Override
+            public void onComplete(GattOperation operation) {
+                if (operation.isSuccessful()) {
+                    // Unless the P state already confirmed it.
+                    mChallengeState.compareAndSet(CHALLENGE_RESENDING, CHALLENGE_CONFIRMED);
+                } else {
+                    finish(Outcome.FAILED);
+                }
+            }
+        });
+    }
+
+    // The lock holds the challenge and waits for its button. Repeated P states are ignored.
+    private void onPending() {
+        if (mPending.compareAndSet(false, true)) {
+            end(UnlockTracer.Phase.WAIT_FOR_PENDING);
+            begin(UnlockTracer.Phase.WAIT_FOR_BUTTON);
+        }
+    }
+
+    private void begin(UnlockTracer.Phase phase) {
+        final UnlockTracer tracer = mTracer;
+        if (tracer != null) {
+            tracer.begin(mConnection.getAddress(), phase);
+        }
+    }
+
+    private void end(UnlockTracer.Phase phase) {
+        final UnlockTracer tracer = mTracer;
+        if (tracer != null) {
+            tracer.end(mConnection.getAddress(), phase);
+        }
+    }
+
+    private void cancelConfirmTimeout() {
+        final ScheduledFuture<?> timeout = mConfirmTimeout;
+        if (timeout != null) {
+            timeout.cancel(false);
+        }
+    }
+
+    private void failOnError(GattOperation operation) {
+        if (operation == null) {
+            finish(Outcome.FAILED);
+            return;
+        }
+        operation.addCallback(new GattOperation.Callback() {
+            @Override
+            public void onComplete(GattOperation operation) {
+                if (!operation.isSuccessful()) {
+                    finish(Outcome.FAILED);
+                }
+            }
+        });
+    }
+
+    private void finish(Outcome outcome) {
+        if (!mFinished.compareAndSet(false, true)) {
+            return;
+        }
+        unregister();
+        mListener.onHandshakeComplete(mConnection.getAddress(), outcome);
+    }
+
+    private void unregister() {
+        cancelConfirmTimeout();
+        mEventDispatcher.unregisterListener(this);
+    }
+}
@@ -0,0 +1,516 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jolomb.iotprojectapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+/**
+ * Append only binary journal of unlock attempts, written through memory mapped segment files.
+ *
+ * Every entry holds the time, the device address, the SHA-256 of the challenge, the outcome and
+ * the phase timings of one attempt. {@link #append} only copies its arguments; hashing and the
+ * write happen on a background thread, so the unlock path does not wait for storage.
+ *
+ * Layout: each segment starts with an 8 byte header (magic, version). A record is
+ * {@code [int length][int crc32][body]}. The length is written last, so a crash mid-append
+ * leaves either a zero length, which ends the segment, or a record whose CRC does not match,
+ * which the reader skips and the writer overwrites when it reopens the journal. When a segment
+ * is full the next one is started, and the oldest ones are deleted beyond the segment limit.
+ */
+public class UnlockJournal {
+
+    public interface Visitor {
+        /**
+         * @param entry Reused for every entry; copy what needs to outlive the call.
+         */
+        void onEntry(Entry entry);
+    }
+
+    /**
+     * One journal entry as seen by a {@link Visitor}.
+     */
+    public static class Entry {
+        private long mTimestampMillis;
+        private final byte mAddress[] = new byte[ADDRESS_LENGTH];
+        private final byte mChallengeHash[] = new byte[HASH_LENGTH];
+        private LockState mOutcome;
+        private final int mPhaseMicros[] = new int[MAX_PHASES];
+        private int mPhaseCount;
+
+        public long getTimestampMillis() {
+            return mTimestampMillis;
+        }
+
+        /**
+         * @return The address in the usual {@code "00:11:22:33:44:55"} form.
+         */
+        public String getAddress() {
+            final StringBuilder sb = new StringBuilder(ADDRESS_LENGTH * 3);
+            final char hex[] = new char[2];
+            for (int i = 0; i < ADDRESS_LENGTH; i++) {
+                if (i > 0) {
+                    sb.append(':');
+                }
+                HexCodec.encode(mAddress, i, 1, hex, 0);
+                sb.append(hex);
+            }
+            return sb.toString();
+        }
+
+        public byte[] getChallengeHash() {
+            return mChallengeHash.clone();
+        }
+
+        public LockState getOutcome() {
+            return mOutcome;
+        }
+
+        public int getPhaseCount() {
+            return mPhaseCount;
+        }
+
+        /**
+         * @return Duration of a phase in microseconds, or -1 if it was not recorded.
+         */
+        public int getPhaseMicros(int phase) {
+            return phase < mPhaseCount ? mPhaseMicros[phase] : -1;
+        }
+    }
+
+    public final static int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+    public final static int DEFAULT_MAX_SEGMENTS = 8;
+
+    private final static int MAGIC = 0x554a4e4c; // "UJNL"
+    // Version 2 stores the outcome as a fixed code, version 1 as LockState.ordinal(). Segments
+    // of both versions are read; new records always go into a version 2 segment.
+    private final static int VERSION = 2;
+    private final static int VERSION_ORDINAL_OUTCOME = 1;
+    private final static int SEGMENT_HEADER_LENGTH = 8;
+    private final static int RECORD_HEADER_LENGTH = 8;
+    private final static int ADDRESS_LENGTH = 6;
+    private final static int HASH_LENGTH = 32;
+    private final static int MAX_PHASES = 32;
+    private final static int MAX_BODY_LENGTH = 8 + ADDRESS_LENGTH + HASH_LENGTH + 2 + 4 * MAX_PHASES;
+    private final static String SEGMENT_PREFIX = "journal-";
+    private final static String SEGMENT_SUFFIX = ".seg";
+
+    // The LockState order of version 1 segments. Never reorder.
+    private final static LockState V1_OUTCOMES[] = {
+            LockState.UNKNOWN,
+            LockState.WAITING_FOR_INPUT_BUFFER,
+            LockState.WAITING_FOR_ON_BOARD_CLICK,
+            LockState.RESPONSE_READY,
+            LockState.SIGNATURE_DONE,
+            LockState.SIGNING_FAILED,
+            LockState.INCORRECT_KEY,
+            LockState.DONE
+    };
+
+    // Outcome codes of version 2: the lock's state byte where there is one. Never change.
+    private final static byte OUTCOME_UNKNOWN = 'U';
+    private final static byte OUTCOME_GRANTED = 'G';
+    private final static byte OUTCOME_INCORRECT_KEY = 'K';
+
+    private final File mDirectory;
+    private final int mSegmentSize;
+    private final int mMaxSegments;
+    private final ExecutorService mExecutor;
+    private final boolean mOwnsExecutor;
+
+    // Only touched on the executor thread.
+    private MappedByteBuffer mSegment;
+    private int mSegmentIndex = -1;
+    private MessageDigest mDigest;
+    private final CRC32 mCrc = new CRC32();
+    private final byte mBody[] = new byte[MAX_BODY_LENGTH];
+
+    public UnlockJournal(File directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS,
+                Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "UnlockJournal");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }), true);
+    }
+
+    /**
+     * @param executor Single threaded executor the appends run on. It is not shut down by
+     *                 {@link #close()}.
+     */
+    public UnlockJournal(File directory, int segmentSize, int maxSegments,
+                         ExecutorService executor) {
+        this(directory, segmentSize, maxSegments, executor, false);
+    }
+
+    private UnlockJournal(File directory, int segmentSize, int maxSegments,
+                          ExecutorService executor, boolean ownsExecutor) {
+        if (segmentSize < SEGMENT_HEADER_LENGTH + RECORD_HEADER_LENGTH + MAX_BODY_LENGTH) {
+            throw new IllegalArgumentException("Segment too small: " + segmentSize);
+        }
+        mDirectory = directory;
+        mSegmentSize = segmentSize;
+        mMaxSegments = maxSegments;
+        mExecutor = executor;
+        mOwnsExecutor = ownsExecutor;
+    }
+
+    /**
+     * Queues an entry. All arguments are copied before returning.
+     *
+     * @param challenge The challenge of the attempt, or {@code null}. Only its hash is stored.
+     * @param phaseMicros Phase durations in microseconds, -1 for phases that did not run.
+     * @return Completes once the entry is in the mapped segment.
+     */
+    public Future<Boolean> append(String address, byte[] challenge, final LockState outcome,
+                                  int[] phaseMicros) {
+        final long timestampMillis = System.currentTimeMillis();
+        final byte addressBytes[] = parseAddress(address);
+        final byte challengeCopy[] = challenge == null ? new byte[0] : challenge.clone();
+        final int phases[] = phaseMicros == null ? new int[0] :
+                Arrays.copyOf(phaseMicros, Math.min(phaseMicros.length, MAX_PHASES));
+        return mExecutor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                write(timestampMillis, addressBytes, challengeCopy, outcome, phases);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Forces the current segment to storage.
+     */
+    public Future<Boolean> flush() {
+        return mExecutor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                if (mSegment != null) {
+                    mSegment.force();
+                }
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Flushes and stops accepting appends.
+     */
+    public void close() {
+        flush();
+        if (mOwnsExecutor) {
+            mExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Reads every valid entry, oldest first, on the calling thread. Entries appended
+     * concurrently may or may not be seen; call {@code flush().get()} first for a complete
+     * export.
+     *
+     * @return The number of entries visited.
+     */
+    public int read(Visitor visitor) throws IOException {
+        final Entry entry = new Entry();
+        final byte body[] = new byte[MAX_BODY_LENGTH];
+        final CRC32 crc = new CRC32();
+        int count = 0;
+        for (File file : listSegments()) {
+            final ByteBuffer segment = map(file, false);
+            if (segment == null || !hasValidHeader(segment)) {
+                continue;
+            }
+            final int version = segment.getInt(4);
+            int position = SEGMENT_HEADER_LENGTH;
+            while (true) {
+                final int length = readRecord(segment, position, body, crc);
+                if (length <= 0) {
+                    break;
+                }
+                decode(body, length, version, entry);
+                visitor.onEntry(entry);
+                count++;
+                position += RECORD_HEADER_LENGTH + length;
+            }
+        }
+        return count;
+    }
+
+    private void write(long timestampMillis, byte[] address, byte[] challenge, LockState outcome,
+                       int[] phases) throws IOException, NoSuchAlgorithmException {
+        if (mDigest == null) {
+            mDigest = MessageDigest.getInstance("SHA-256");
+        }
+        final ByteBuffer body = ByteBuffer.wrap(mBody);
+        body.putLong(timestampMillis);
+        body.put(address);
+        body.put(mDigest.digest(challenge));
+        body.put(encodeOutcome(outcome));
+        body.put((byte) phases.length);
+        for (int phase : phases) {
+            body.putInt(phase);
+        }
+        final int length = body.position();
+        mCrc.reset();
+        mCrc.update(mBody, 0, length);
+
+        if (mSegment == null) {
+            openLastSegment();
+        }
+        if (mSegment.remaining() < RECORD_HEADER_LENGTH + length) {
+            startSegment(mSegmentIndex + 1);
+        }
+        final int position = mSegment.position();
+        mSegment.position(position + RECORD_HEADER_LENGTH);
+        mSegment.put(mBody, 0, length);
+        mSegment.putInt(position + 4, (int) mCrc.getValue());
+        // Written last: until here the record does not exist for a reader.
+        mSegment.putInt(position, length);
+    }
+
+    private void openLastSegment() throws IOException {
+        final List<File> segments = listSegments();
+        if (segments.isEmpty()) {
+            startSegment(0);
+            return;
+        }
+        final File last = segments.get(segments.size() - 1);
+        final int index = indexOf(last);
+        final MappedByteBuffer segment = map(last, true);
+        if (segment == null || segment.capacity() != mSegmentSize || !hasValidHeader(segment)
+                || segment.getInt(4) != VERSION) {
+            startSegment(index + 1);
+            return;
+        }
+        // Skip the intact records; a torn record at the end gets overwritten.
+        final byte body[] = new byte[MAX_BODY_LENGTH];
+        final CRC32 crc = new CRC32();
+        int position = SEGMENT_HEADER_LENGTH;
+        int length;
+        while ((length = readRecord(segment, position, body, crc)) > 0) {
+            position += RECORD_HEADER_LENGTH + length;
+        }
+        segment.putInt(position, 0);
+        segment.position(position);
+        mSegment = segment;
+        mSegmentIndex = index;
+    }
+
+    private void startSegment(int index) throws IOException {
+        if (mSegment != null) {
+            mSegment.force();
+        }
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + mDirectory);
+        }
+        final File file = new File(mDirectory, String.format("%s%08d%s",
+                SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+        // A leftover file with this name is unusable; start it over.
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Unable to replace " + file);
+        }
+        final MappedByteBuffer segment = map(file, true);
+        segment.putInt(0, MAGIC);
+        segment.putInt(4, VERSION);
+        segment.position(SEGMENT_HEADER_LENGTH);
+        mSegment = segment;
+        mSegmentIndex = index;
+
+        final List<File> segments = listSegments();
+        for (int i = 0; i < segments.size() - mMaxSegments; i++) {
+            segments.get(i).delete();
+        }
+    }
+
+    private MappedByteBuffer map(File file, boolean writable) throws IOException {
+        if (!writable && !file.isFile()) {
+            return null;
+        }
+        final RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            if (writable) {
+                if (raf.length() < mSegmentSize) {
+                    raf.setLength(mSegmentSize);
+                }
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+            }
+            // The mapping stays valid after the file is closed.
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+    }
+
+    private List<File> listSegments() {
+        final File files[] = mDirectory.listFiles();
+        final List<File> segments = new ArrayList<File>();
+        if (files == null) {
+            return segments;
+        }
+        for (File file : files) {
+            if (indexOf(file) >= 0) {
+                segments.add(file);
+            }
+        }
+        // Zero padded indexes sort by name.
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private static int indexOf(File file) {
+        final String name = file.getName();
+        if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                    name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    private static boolean hasValidHeader(ByteBuffer segment) {
+        return segment.capacity() >= SEGMENT_HEADER_LENGTH && segment.getInt(0) == MAGIC
+                && (segment.getInt(4) == VERSION
+                        || segment.getInt(4) == VERSION_ORDINAL_OUTCOME);
+    }
+
+    /**
+     * Copies the body of the record at {@code position} into {@code body}.
+     *
+     * @return The body length, or 0 at the end of the segment or at a torn record.
+     */
+    private static int readRecord(ByteBuffer segment, int position, byte[] body, CRC32 crc) {
+        if (position + RECORD_HEADER_LENGTH > segment.capacity()) {
+            return 0;
+        }
+        final int length = segment.getInt(position);
+        if (length <= 0 || length > MAX_BODY_LENGTH
+                || position + RECORD_HEADER_LENGTH + length > segment.capacity()) {
+            return 0;
+        }
+        final int expectedCrc = segment.getInt(position + 4);
+        for (int i = 0; i < length; i++) {
+            body[i] = segment.get(position + RECORD_HEADER_LENGTH + i);
+        }
+        crc.reset();
+        crc.update(body, 0, length);
+        return (int) crc.getValue() == expectedCrc ? length : 0;
+    }
+
+    private static byte encodeOutcome(LockState outcome) {
+        switch (outcome) {
+            case WAITING_FOR_INPUT_BUFFER:
+                return LockStateMachine.REMOTE_WAITING_FOR_INPUT;
+            case WAITING_FOR_ON_BOARD_CLICK:
+                return LockStateMachine.REMOTE_WAITING_FOR_ONBOARD_BUTTON;
+            case RESPONSE_READY:
+                return LockStateMachine.REMOTE_RESPONSE_READY;
+            case SIGNATURE_DONE:
+                return OUTCOME_GRANTED;
+            case SIGNING_FAILED:
+                return LockStateMachine.REMOTE_SIGN_FAILED;
+            case INCORRECT_KEY:
+                return OUTCOME_INCORRECT_KEY;
+            case DONE:
+                return LockStateMachine.REMOTE_DONE;
+            default:
+                return OUTCOME_UNKNOWN;
+        }
+    }
+
+    private static LockState decodeOutcome(int code) {
+        switch (code) {
+            case LockStateMachine.REMOTE_WAITING_FOR_INPUT:
+                return LockState.WAITING_FOR_INPUT_BUFFER;
+            case LockStateMachine.REMOTE_WAITING_FOR_ONBOARD_BUTTON:
+                return LockState.WAITING_FOR_ON_BOARD_CLICK;
+            case LockStateMachine.REMOTE_RESPONSE_READY:
+                return LockState.RESPONSE_READY;
+            case OUTCOME_GRANTED:
+                return LockState.SIGNATURE_DONE;
+            case LockStateMachine.REMOTE_SIGN_FAILED:
+                return LockState.SIGNING_FAILED;
+            case OUTCOME_INCORRECT_KEY:
+                return LockState.INCORRECT_KEY;
+            case LockStateMachine.REMOTE_DONE:
+                return LockState.DONE;
+            default:
+                return LockState.UNKNOWN;
+        }
+    }
+
+    private static void decode(byte[] body, int length, int version, Entry entry) {
+        final ByteBuffer buffer = ByteBuffer.wrap(body, 0, length);
+        entry.mTimestampMillis = buffer.getLong();
+        buffer.get(entry.mAddress);
+        buffer.get(entry.mChallengeHash);
+        final int outcome = buffer.get() & 0xff;
+        if (version == VERSION_ORDINAL_OUTCOME) {
+            entry.mOutcome = outcome < V1_OUTCOMES.length ?
+                    V1_OUTCOMES[outcome] : LockState.UNKNOWN;
+        } else {
+            entry.mOutcome = decodeOutcome(outcome);
+        }
+        entry.mPhaseCount = Math.min(buffer.get() & 0xff, MAX_PHASES);
+        for (int i = 0; i < entry.mPhaseCount; i++) {
+            entry.mPhaseMicros[i] = buffer.getInt();
+        }
+    }
+
+    private static byte[] parseAddress(String address) {
+        final byte bytes[] = new byte[ADDRESS_LENGTH];
+        if (address == null) {
+            return bytes;
+        }
+        int count = 0;
+        int value = 0;
+        int digits = 0;
+        for (int i = 0; i < address.length() && count < ADDRESS_LENGTH; i++) {
+            final int digit = Character.digit(address.charAt(i), 16);
+            if (digit >= 0) {
+                value = (value << 4) | digit;
+                if (++digits == 2) {
+                    bytes[count++] = (byte) value;
+                    value = 0;
+                    digits = 0;
+                }
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jolomb.iotprojectapp;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Times the phases of an unlock, per device.
+ *
+ * Every finished phase goes into the {@code LatencyHistogram} of its phase, so percentiles are
+ * available for the whole lifetime of the tracer in fixed memory. The spans of the last few
+ * handshakes are also kept and can be written as a Chrome trace ({@code chrome://tracing},
+ * Perfetto), one track per handshake.
+ *
+ * Timestamps come from {@code System.nanoTime()}.
+ */
+public class UnlockTracer {
+
+    public enum Phase {
+        SCAN,
+        CONNECT,
+        DISCOVER_SERVICES,
+        ENABLE_NOTIFICATIONS,
+        WRITE_CHALLENGE,
+        WAIT_FOR_PENDING,
+        WAIT_FOR_BUTTON,
+        READ_RESPONSE,
+        VERIFY
+    }
+
+    public final static int DEFAULT_HANDSHAKE_CAPACITY = 32;
+
+    private final static Phase PHASES[] = Phase.values();
+
+    /**
+     * The spans of one handshake. Records are allocated up front and reused.
+     */
+    private static class Handshake {
+        final long startNanos[] = new long[PHASES.length];
+        final long endNanos[] = new long[PHASES.length];
+        String address;
+        String outcome;
+        long id;
+
+        void reset(String address, long id) {
+            this.address = address;
+            this.id = id;
+            outcome = null;
+            for (int i = 0; i < PHASES.length; i++) {
+                startNanos[i] = 0;
+                endNanos[i] = 0;
+            }
+        }
+    }
+
+    private final LatencyHistogram mHistograms[] = new LatencyHistogram[PHASES.length];
+    private final Handshake mRing[];
+    private final Map<String, Handshake> mActive = new HashMap<String, Handshake>();
+    private int mNext;
+    private long mNextId;
+
+    public UnlockTracer() {
+        this(DEFAULT_HANDSHAKE_CAPACITY);
+    }
+
+    /**
+     * @param capacity How many handshakes the trace export keeps.
+     */
+    public UnlockTracer(int capacity) {
+        for (int i = 0; i < PHASES.length; i++) {
+            mHistograms[i] = new LatencyHistogram();
+        }
+        mRing = new Handshake[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mRing[i] = new Handshake();
+        }
+    }
+
+    /**
+     * Marks the start of a phase on a device. Starts a new handshake record if the device has
+     * none yet. A phase that begins again, e.g. CONNECT after a reconnect, replaces its earlier
+     * span.
+     */
+    public synchronized void begin(String address, Phase phase) {
+        final Handshake handshake = handshake(address);
+        handshake.startNanos[phase.ordinal()] = System.nanoTime();
+        handshake.endNanos[phase.ordinal()] = 0;
+    }
+
+    /**
+     * Marks the end of a phase. Ignored if the phase was not started.
+     */
+    public synchronized void end(String address, Phase phase) {
+        final Handshake handshake = mActive.get(address);
+        if (handshake == null || handshake.startNanos[phase.ordinal()] == 0
+                || handshake.endNanos[phase.ordinal()] != 0) {
+            return;
+        }
+        final long now = System.nanoTime();
+        handshake.endNanos[phase.ordinal()] = now;
+        mHistograms[phase.ordinal()].recordNanos(now - handshake.startNanos[phase.ordinal()]);
+    }
+
+    /**
+     * Records a phase that was timed elsewhere, e.g. the scan.
+     */
+    public synchronized void span(String address, Phase phase, long startNanos, long endNanos) {
+        final Handshake handshake = handshake(address);
+        handshake.startNanos[phase.ordinal()] = startNanos;
+        handshake.endNanos[phase.ordinal()] = endNanos;
+        mHistograms[phase.ordinal()].recordNanos(endNanos - startNanos);
+    }
+
+    /**
+     * Closes the handshake of a device. The next {@link #begin} starts a new one.
+     *
+     * @param outcome Shown in the trace, e.g. {@code "granted"}.
+     */
+    public synchronized void finish(String address, String outcome) {
+        finish(address, outcome, null);
+    }
+
+    /**
+     * Like {@link #finish(String, String)}, also copying the duration of every phase into
+     * {@code phaseMicros}, indexed by {@code Phase.ordinal()}. Phases that did not complete are
+     * set to -1.
+     */
+    public synchronized void finish(String address, String outcome, int[] phaseMicros) {
+        final Handshake handshake = mActive.remove(address);
+        if (phaseMicros != null) {
+            for (int i = 0; i < phaseMicros.length && i < PHASES.length; i++) {
+                phaseMicros[i] = handshake == null || handshake.endNanos[i] == 0 ? -1 :
+                        (int) Math.min(Integer.MAX_VALUE,
+                                (handshake.endNanos[i] - handshake.startNanos[i]) / 1000);
+            }
+        }
+        if (handshake != null) {
+            handshake.outcome = outcome;
+        }
+    }
+
+    public LatencyHistogram getHistogram(Phase phase) {
+        return mHistograms[phase.ordinal()];
+    }
+
+    /**
+     * Appends one line per phase with its count and p50/p90/p99/max in milliseconds.
+     */
+    public StringBuilder appendSummary(StringBuilder sb) {
+        for (Phase phase : PHASES) {
+            final LatencyHistogram histogram = mHistograms[phase.ordinal()];
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            sb.append(phase).append(": n=").append(histogram.getCount());
+            appendMillis(sb.append(" p50="), histogram.getPercentileMicros(50));
+            appendMillis(sb.append(" p90="), histogram.getPercentileMicros(90));
+            appendMillis(sb.append(" p99="), histogram.getPercentileMicros(99));
+            appendMillis(sb.append(" max="), histogram.getMaxMicros());
+            sb.append('\n');
+        }
+        return sb;
+    }
+
+    /**
+     * Writes the kept handshakes in the Chrome trace event format, one complete ("X") event per
+     * finished phase. Timestamps are relative to the earliest span.
+     */
+    public synchronized void writeChromeTrace(Writer writer) throws IOException {
+        long origin = Long.MAX_VALUE;
+        for (Handshake handshake : mRing) {
+            if (handshake.address == null) {
+                continue;
+            }
+            for (int i = 0; i < PHASES.length; i++) {
+                if (handshake.endNanos[i] != 0) {
+                    origin = Math.min(origin, handshake.startNanos[i]);
+                }
+            }
+        }
+        final StringBuilder sb = new StringBuilder(256);
+        writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        boolean first = true;
+        // Oldest first.
+        for (int n = 0; n < mRing.length; n++) {
+            final Handshake handshake = mRing[(mNext + n) % mRing.length];
+            if (handshake.address == null) {
+                continue;
+            }
+            for (int i = 0; i < PHASES.length; i++) {
+                if (handshake.endNanos[i] == 0) {
+                    continue;
+                }
+                sb.setLength(0);
+                if (!first) {
+                    sb.append(',');
+                }
+                first = false;
+                sb.append("{\"name\":\"").append(PHASES[i])
+                        .append("\",\"cat\":\"unlock\",\"ph\":\"X\",\"pid\":1,\"tid\":")
+                        .append(handshake.id)
+                        .append(",\"ts\":").append((handshake.startNanos[i] - origin) / 1000)
+                        .append(",\"dur\":")
+                        .append((handshake.endNanos[i] - handshake.startNanos[i]) / 1000)
+                        .append(",\"args\":{\"address\":\"").append(handshake.address)
+                        .append("\",\"outcome\":\"")
+                        .append(handshake.outcome == null ? "" : handshake.outcome)
+                        .append("\"}}");
+                writer.write(sb.toString());
+            }
+        }
+        writer.write("]}");
+        writer.flush();
+    }
+
+    private Handshake handshake(String address) {
+        Handshake handshake = mActive.get(address);
+        if (handshake == null) {
+            // Reuse the oldest record. If it still belongs to an unfinished handshake, that one
+            // is dropped from the trace.
+            handshake = mRing[mNext];
+            if (handshake.address != null && mActive.get(handshake.address) == handshake) {
+                mActive.remove(handshake.address);
+            }
+            mNext = (mNext + 1) % mRing.length;
+            handshake.reset(address, mNextId++);
+            mActive.put(address, handshake);
+        }
+        return handshake;
+    }
+
+    private static void appendMillis(StringBuilder sb, long micros) {
+        sb.append(micros / 1000).append('.');
+        final long fraction = micros % 1000 / 10;
+        if (fraction < 10) {
+            sb.append('0');
+        }
+        sb.append(fraction);
+    }
+}
@@ -0,0 +1,30 @@
+package com.jolomb.iotprojectapp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link ChallengeDigest}.
+ */
+public class ChallengeDigestTest {
+
+    @Test
+    public void confirms_onlyMatchingPState() throws Exception {
+        byte challenge[] = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 };
+        byte state[] = new byte[1 + ChallengeDigest.LENGTH];
+        state[0] = (byte) LockStateMachine.REMOTE_WAITING_FOR_ONBOARD_BUTTON;
+        ChallengeDigest.compute(challenge, state, 1);
+        assertTrue(ChallengeDigest.confirms(state, challenge));
+
+        byte other[] = challenge.clone();
+        other[15] ^= 0x40;
+        assertFalse(ChallengeDigest.confirms(state, other));
+        // An older lock reports P alone.
+        assertFalse(ChallengeDigest.confirms(
+                new byte[] { (byte) LockStateMachine.REMOTE_WAITING_FOR_ONBOARD_BUTTON },
+                challenge));
+        state[0] = (byte) LockStateMachine.REMOTE_RESPONSE_READY;
+        assertFalse(ChallengeDigest.confirms(state, challenge));
+    }
+}
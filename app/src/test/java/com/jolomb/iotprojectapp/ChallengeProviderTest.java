@@ -0,0 +1,49 @@
+package com.jolomb.iotprojectapp;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link ChallengeProvider}.
+ */
+public class ChallengeProviderTest {
+
+    @Test
+    public void prepare_fillsPool() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        ChallengeProvider provider = new ChallengeProvider(16, 4, executor);
+        provider.prepare();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(4, provider.available());
+    }
+
+    @Test
+    public void take_neverRepeatsChallenge() throws Exception {
+        ChallengeProvider provider = new ChallengeProvider(16, 4);
+        provider.prepare();
+        Set<ByteBuffer> seen = new HashSet<ByteBuffer>();
+        for (int i = 0; i < 100; i++) {
+            byte challenge[] = provider.take();
+            assertEquals(16, challenge.length);
+            assertTrue(seen.add(ByteBuffer.wrap(challenge)));
+        }
+        provider.shutdown();
+    }
+
+    @Test
+    public void take_worksAfterShutdown() throws Exception {
+        ChallengeProvider provider = new ChallengeProvider(16, 4);
+        provider.shutdown();
+        assertEquals(16, provider.take().length);
+        assertEquals(0, provider.available());
+    }
+}
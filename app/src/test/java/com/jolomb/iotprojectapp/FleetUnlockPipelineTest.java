@@ -0,0 +1,199 @@
+package com.jolomb.iotprojectapp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.KeyPair;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link FleetUnlockPipeline}, against {@link SimulatedCryptoLock}s.
+ */
+public class FleetUnlockPipelineTest {
+
+    private static final String OTHER_KEY_ADDRESS = "00:11:22:33:44:05";
+    private static final String MISSING_ADDRESS = "00:11:22:33:44:06";
+
+    private static class MemoryStorage implements GattServiceCache.Storage {
+        private final Map<String, String> mValues = new HashMap<String, String>();
+
+        @Override
+        public synchronized String load(String key) {
+            return mValues.get(key);
+        }
+
+        @Override
+        public synchronized void store(String key, String value) {
+            mValues.put(key, value);
+        }
+
+        @Override
+        public synchronized void remove(String key) {
+            mValues.remove(key);
+        }
+    }
+
+    private static class RecordingListener implements FleetUnlockPipeline.Listener {
+        final Map<String, UnlockHandshake.Outcome> mResults =
+                new HashMap<String, UnlockHandshake.Outcome>();
+        final CountDownLatch mComplete = new CountDownLatch(1);
+
+        @Override
+        public synchronized void onLockResult(String address, UnlockHandshake.Outcome outcome,
+                                              long elapsedMillis) {
+            assertNull(mResults.put(address, outcome));
+        }
+
+        @Override
+        public void onFleetComplete() {
+            mComplete.countDown();
+        }
+    }
+
+    private static class CountingSlots implements FleetUnlockPipeline.ConnectionSlots {
+        int mFree;
+
+        CountingSlots(int free) {
+            mFree = free;
+        }
+
+        @Override
+        public synchronized boolean acquire(String address) {
+            if (mFree == 0) {
+                return false;
+            }
+            mFree--;
+            return true;
+        }
+
+        @Override
+        public synchronized void release(String address) {
+            mFree++;
+        }
+    }
+
+    private ScheduledExecutorService mExecutor;
+    private ExecutorService mVerifyPool;
+    private KeyPair mKeyPair;
+    private KeyPair mOtherKeyPair;
+    private final AtomicInteger mOpen = new AtomicInteger();
+    private final AtomicInteger mMaxOpen = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        mExecutor = Executors.newScheduledThreadPool(4);
+        mVerifyPool = Executors.newFixedThreadPool(2);
+        mKeyPair = SimulatedCryptoLock.generateKeyPair();
+        mOtherKeyPair = SimulatedCryptoLock.generateKeyPair();
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+        mVerifyPool.shutdownNow();
+    }
+
+    private FleetUnlockPipeline newPipeline(FleetUnlockPipeline.Listener listener) {
+        GattTransport.Factory factory = new GattTransport.Factory() {
+            @Override
+            public GattTransport create(String address, GattTransport.Callback callback) {
+                if (MISSING_ADDRESS.equals(address)) {
+                    return null;
+                }
+                KeyPair keyPair = OTHER_KEY_ADDRESS.equals(address) ? mOtherKeyPair : mKeyPair;
+                SimulatedCryptoLock lock = new SimulatedCryptoLock(address, keyPair, callback,
+                        mExecutor, address.hashCode()) {
+                    @Override
+                    public boolean connect() {
+                        mMaxOpen.set(Math.max(mMaxOpen.get(), mOpen.incrementAndGet()));
+                        return super.connect();
+                    }
+
+                    @Override
+                    public void close() {
+                        mOpen.decrementAndGet();
+                        super.close();
+                    }
+                };
+                lock.setLatency(1, 0);
+                lock.setButtonDelay(20);
+                return lock;
+            }
+        };
+        return new FleetUnlockPipeline(factory, new GattEventDispatcher(), mExecutor,
+                new GattServiceCache(new MemoryStorage(),
+                        SampleGattAttributes.CRYPTO_SIGNER_SERVICE_UUID),
+                new SignatureVerifier("RSA", "SHA256withRSA", mKeyPair.getPublic().getEncoded(),
+                        mVerifyPool),
+                new ChallengeProvider(SimulatedCryptoLock.CHALLENGE_LENGTH, 4), listener);
+    }
+
+    @Test
+    public void start_reportsEveryLockWithinConnectionLimit() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        FleetUnlockPipeline pipeline = newPipeline(listener);
+        pipeline.setMaxConnections(2, 1);
+        pipeline.start(Arrays.asList("00:11:22:33:44:01", "00:11:22:33:44:02",
+                "00:11:22:33:44:03", OTHER_KEY_ADDRESS, MISSING_ADDRESS));
+
+        assertTrue(listener.mComplete.await(10, TimeUnit.SECONDS));
+        assertEquals(5, listener.mResults.size());
+        assertEquals(UnlockHandshake.Outcome.GRANTED, listener.mResults.get("00:11:22:33:44:01"));
+        assertEquals(UnlockHandshake.Outcome.GRANTED, listener.mResults.get("00:11:22:33:44:03"));
+        assertEquals(UnlockHandshake.Outcome.DENIED, listener.mResults.get(OTHER_KEY_ADDRESS));
+        assertEquals(UnlockHandshake.Outcome.FAILED, listener.mResults.get(MISSING_ADDRESS));
+        assertEquals(2, mMaxOpen.get());
+        assertEquals(0, pipeline.getActiveCount());
+    }
+
+    @Test
+    public void cancel_failsLocksInFlight() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        FleetUnlockPipeline pipeline = newPipeline(listener);
+        pipeline.setLockTimeout(10000);
+        pipeline.start(Arrays.asList("00:11:22:33:44:01", "00:11:22:33:44:02"));
+        pipeline.cancel();
+
+        assertTrue(listener.mComplete.await(5, TimeUnit.SECONDS));
+        assertEquals(UnlockHandshake.Outcome.FAILED, listener.mResults.get("00:11:22:33:44:01"));
+        assertEquals(UnlockHandshake.Outcome.FAILED, listener.mResults.get("00:11:22:33:44:02"));
+        assertEquals(0, mOpen.get());
+    }
+
+    @Test
+    public void connectionSlots_shareTheCap() throws Exception {
+        CountingSlots slots = new CountingSlots(1);
+        RecordingListener listener = new RecordingListener();
+        FleetUnlockPipeline pipeline = newPipeline(listener);
+        pipeline.setMaxConnections(4, 2);
+        pipeline.setConnectionSlots(slots);
+        pipeline.start(Arrays.asList("00:11:22:33:44:01", "00:11:22:33:44:02",
+                "00:11:22:33:44:03"));
+
+        assertTrue(listener.mComplete.await(10, TimeUnit.SECONDS));
+        assertEquals(UnlockHandshake.Outcome.GRANTED, listener.mResults.get("00:11:22:33:44:01"));
+        assertEquals(UnlockHandshake.Outcome.GRANTED, listener.mResults.get("00:11:22:33:44:03"));
+        assertEquals(1, mMaxOpen.get());
+        assertEquals(1, slots.mFree);
+
+        // Without a free slot the locks fail instead of waiting forever.
+        listener = new RecordingListener();
+        pipeline = newPipeline(listener);
+        pipeline.setConnectionSlots(new CountingSlots(0));
+        pipeline.start(Arrays.asList("00:11:22:33:44:01", "00:11:22:33:44:02"));
+        assertTrue(listener.mComplete.await(5, TimeUnit.SECONDS));
+        assertEquals(UnlockHandshake.Outcome.FAILED, listener.mResults.get("00:11:22:33:44:01"));
+        assertEquals(UnlockHandshake.Outcome.FAILED, listener.mResults.get("00:11:22:33:44:02"));
+    }
+}
@@ -0,0 +1,74 @@
+package com.jolomb.iotprojectapp;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link FragmentCodec}.
+ */
+public class FragmentCodecTest {
+
+    private static byte[] randomValue(int length) {
+        byte value[] = new byte[length];
+        new Random(length).nextBytes(value);
+        return value;
+    }
+
+    @Test
+    public void split_fitsMtu() throws Exception {
+        byte value[] = randomValue(384);
+        List<byte[]> fragments = FragmentCodec.split(value, 247);
+        assertEquals(2, fragments.size());
+        for (byte[] fragment : fragments) {
+            assertTrue(fragment.length <= 247 - FragmentCodec.ATT_HEADER_LENGTH);
+        }
+        assertEquals(1, FragmentCodec.split(new byte[0], 23).size());
+    }
+
+    @Test
+    public void reassembler_roundTrip() throws Exception {
+        FragmentCodec.Reassembler reassembler = new FragmentCodec.Reassembler(4096);
+        for (int length : new int[] { 0, 1, 19, 128, 256, 384, 3000 }) {
+            byte value[] = randomValue(length);
+            List<byte[]> fragments = FragmentCodec.split(value, 23);
+            for (int i = 0; i < fragments.size() - 1; i++) {
+                assertNull(reassembler.offer(fragments.get(i)));
+            }
+            assertArrayEquals(value, reassembler.offer(fragments.get(fragments.size() - 1)));
+            assertTrue(reassembler.isIdle());
+        }
+        assertEquals(0, reassembler.getErrorCount());
+    }
+
+    @Test
+    public void reassembler_dropsValueWithMissingFragment() throws Exception {
+        FragmentCodec.Reassembler reassembler = new FragmentCodec.Reassembler(512);
+        List<byte[]> broken = FragmentCodec.split(randomValue(128), 23);
+        reassembler.offer(broken.get(0));
+        reassembler.offer(broken.get(2));
+        assertEquals(1, reassembler.getErrorCount());
+
+        // The next complete value still goes through.
+        byte value[] = randomValue(64);
+        byte result[] = null;
+        for (byte[] fragment : FragmentCodec.split(value, 23)) {
+            result = reassembler.offer(fragment);
+        }
+        assertArrayEquals(value, result);
+    }
+
+    @Test
+    public void reassembler_dropsOversizedValue() throws Exception {
+        FragmentCodec.Reassembler reassembler = new FragmentCodec.Reassembler(100);
+        byte result[] = null;
+        for (byte[] fragment : FragmentCodec.split(randomValue(128), 23)) {
+            result = reassembler.offer(fragment);
+        }
+        assertNull(result);
+        assertTrue(reassembler.getErrorCount() > 0);
+    }
+}
@@ -0,0 +1,41 @@
+package com.jolomb.iotprojectapp;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link GattAttributeRegistry}.
+ */
+public class GattAttributeRegistryTest {
+
+    private static UUID shortUuid(int value) {
+        return UUID.fromString(String.format("%08x-0000-1000-8000-00805f9b34fb", value));
+    }
+
+    @Test
+    public void lookup_knownAndUnknown() throws Exception {
+        assertEquals("Crypto Signing Service",
+                SampleGattAttributes.lookup(SampleGattAttributes.CRYPTO_SIGNER_SERVICE_UUID));
+        assertNull(SampleGattAttributes.lookup(shortUuid(0x2a00)));
+        assertEquals("x", SampleGattAttributes.lookup(shortUuid(0x2a00), "x"));
+        assertEquals("x", SampleGattAttributes.lookup("not a uuid", "x"));
+    }
+
+    @Test
+    public void put_growsAndOverwrites() throws Exception {
+        GattAttributeRegistry registry = new GattAttributeRegistry(2);
+        for (int i = 0; i < 1000; i++) {
+            registry.put(shortUuid(i), "attr" + i);
+        }
+        registry.put(shortUuid(7), "seven");
+        assertEquals(1000, registry.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i == 7 ? "seven" : "attr" + i, registry.lookup(shortUuid(i)));
+        }
+        assertNull(registry.lookup(shortUuid(1000)));
+        assertFalse(registry.contains(UUID.randomUUID()));
+    }
+}
@@ -0,0 +1,141 @@
+package com.jolomb.iotprojectapp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link GattOperationQueue}.
+ */
+public class GattOperationQueueTest {
+
+    private static final UUID CHAR_UUID =
+            UUID.fromString(SampleGattAttributes.CRYPTO_SIGNER_RESPONSE_STATE);
+
+    private static class RecordingOperation extends GattOperation {
+        private final List<String> mLog;
+        private final String mName;
+        private final boolean mStarts;
+
+        RecordingOperation(List<String> log, String name, Type type, long timeoutMs,
+                           boolean starts) {
+            super(type, CHAR_UUID, timeoutMs);
+            mLog = log;
+            mName = name;
+            mStarts = starts;
+        }
+
+        @Override
+        protected boolean execute() {
+            mLog.add(mName);
+            return mStarts;
+        }
+    }
+
+    @Test
+    public void operations_runOneAtATime() throws Exception {
+        GattOperationQueue queue = new GattOperationQueue();
+        List<String> log = new ArrayList<String>();
+        GattOperation read = queue.enqueue(new RecordingOperation(log, "read",
+                GattOperation.Type.READ_CHARACTERISTIC, 1000, true));
+        GattOperation write = queue.enqueue(new RecordingOperation(log, "write",
+                GattOperation.Type.WRITE_CHARACTERISTIC, 1000, true));
+
+        assertEquals(1, log.size());
+        assertFalse(queue.onOperationComplete(GattOperation.Type.WRITE_CHARACTERISTIC,
+                CHAR_UUID, GattOperation.STATUS_SUCCESS, null));
+
+        byte value[] = new byte[] { 'W' };
+        assertTrue(queue.onOperationComplete(GattOperation.Type.READ_CHARACTERISTIC,
+                CHAR_UUID, GattOperation.STATUS_SUCCESS, value));
+        assertArrayEquals(value, read.get(0, TimeUnit.MILLISECONDS));
+        assertEquals(2, log.size());
+        assertFalse(write.isDone());
+
+        queue.onOperationComplete(GattOperation.Type.WRITE_CHARACTERISTIC,
+                CHAR_UUID, GattOperation.STATUS_SUCCESS, null);
+        assertTrue(write.isSuccessful());
+        assertTrue(queue.isIdle());
+        queue.shutdown();
+    }
+
+    @Test
+    public void timeout_startsNextOperation() throws Exception {
+        GattOperationQueue queue = new GattOperationQueue();
+        List<String> log = Collections.synchronizedList(new ArrayList<String>());
+        GattOperation stuck = queue.enqueue(new RecordingOperation(log, "stuck",
+                GattOperation.Type.WRITE_DESCRIPTOR, 20, true));
+        GattOperation next = queue.enqueue(new RecordingOperation(log, "next",
+                GattOperation.Type.WRITE_DESCRIPTOR, 1000, true));
+
+        try {
+            stuck.get(1, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException ex) {
+            assertEquals(GattOperation.STATUS_TIMEOUT, stuck.getStatus());
+        }
+        // The next operation is issued on the timer thread, right after the timeout completes.
+        for (int i = 0; i < 100 && log.size() < 2; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, log.size());
+        assertFalse(next.isDone());
+        queue.shutdown();
+        assertEquals(GattOperation.STATUS_CANCELLED, next.getStatus());
+    }
+
+    @Test
+    public void failedStart_doesNotBlockQueue() throws Exception {
+        GattOperationQueue queue = new GattOperationQueue();
+        List<String> log = new ArrayList<String>();
+        GattOperation rejected = queue.enqueue(new RecordingOperation(log, "rejected",
+                GattOperation.Type.REQUEST_MTU, 1000, false));
+        queue.enqueue(new RecordingOperation(log, "next",
+                GattOperation.Type.READ_CHARACTERISTIC, 1000, true));
+
+        assertEquals(GattOperation.STATUS_FAILED_TO_START, rejected.getStatus());
+        assertEquals(2, log.size());
+        queue.clear(GattOperation.STATUS_DISCONNECTED);
+        assertTrue(queue.isIdle());
+        queue.shutdown();
+    }
+
+    @Test
+    public void callbacks_composeAndRunOnce() throws Exception {
+        GattOperationQueue queue = new GattOperationQueue();
+        final List<String> log = new ArrayList<String>();
+        GattOperation read = queue.enqueue(new RecordingOperation(log, "read",
+                GattOperation.Type.READ_CHARACTERISTIC, 1000, true));
+        read.addCallback(new GattOperation.Callback() {
+            @Override
+            public void onComplete(GattOperation operation) {
+                log.add("first");
+            }
+        }).addCallback(new GattOperation.Callback() {
+            @Override
+            public void onComplete(GattOperation operation) {
+                log.add("second");
+            }
+        });
+
+        queue.onOperationComplete(GattOperation.Type.READ_CHARACTERISTIC,
+                CHAR_UUID, GattOperation.STATUS_SUCCESS, null);
+        read.addCallback(new GattOperation.Callback() {
+            @Override
+            public void onComplete(GattOperation operation) {
+                log.add("late");
+            }
+        });
+        read.cancel(false);
+        assertEquals(Arrays.asList("read", "first", "second", "late"), log);
+        queue.shutdown();
+    }
+}
@@ -0,0 +1,121 @@
+package com.jolomb.iotprojectapp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link GattServiceCache}.
+ */
+public class GattServiceCacheTest {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final UUID SERVICE_UUID = SampleGattAttributes.CRYPTO_SIGNER_SERVICE_UUID;
+    private static final UUID STATE_UUID = SampleGattAttributes.CRYPTO_SIGNER_RESPONSE_STATE_UUID;
+    private static final UUID CHALLENGE_UUID =
+            SampleGattAttributes.CRYPTO_SIGNER_CHALLANGE_INPUT_UUID;
+    private static final UUID RESPONSE_UUID =
+            SampleGattAttributes.CRYPTO_SIGNER_SIGNED_RESPONSE_UUID;
+
+    private static class MemoryStorage implements GattServiceCache.Storage {
+        final Map<String, String> mValues = new HashMap<String, String>();
+
+        @Override
+        public String load(String key) {
+            return mValues.get(key);
+        }
+
+        @Override
+        public void store(String key, String value) {
+            mValues.put(key, value);
+        }
+
+        @Override
+        public void remove(String key) {
+            mValues.remove(key);
+        }
+    }
+
+    private static GattServiceInfo service(int stateProperties, boolean withResponse) {
+        final List<UUID> none = Collections.emptyList();
+        final List<GattCharacteristicInfo> characteristics =
+                new ArrayList<GattCharacteristicInfo>();
+        characteristics.add(new GattCharacteristicInfo(SERVICE_UUID, CHALLENGE_UUID,
+                GattCharacteristicInfo.PROPERTY_WRITE, none));
+        characteristics.add(new GattCharacteristicInfo(SERVICE_UUID, STATE_UUID,
+                stateProperties,
+                Collections.singletonList(GattConnection.NOTIFICATION_DESCRIPTOR_UUIDS[0])));
+        if (withResponse) {
+            characteristics.add(new GattCharacteristicInfo(SERVICE_UUID, RESPONSE_UUID,
+                    GattCharacteristicInfo.PROPERTY_READ, none));
+        }
+        return new GattServiceInfo(SERVICE_UUID, characteristics);
+    }
+
+    private static final int STATE_PROPERTIES =
+            GattCharacteristicInfo.PROPERTY_READ | GattCharacteristicInfo.PROPERTY_NOTIFY;
+
+    @Test
+    public void layout_encodeDecodeRoundTrip() throws Exception {
+        GattServiceCache.Layout layout =
+                GattServiceCache.Layout.of(service(STATE_PROPERTIES, true));
+        layout.notifying.set(1, true);
+
+        GattServiceCache.Layout decoded = GattServiceCache.Layout.decode(layout.encode());
+        assertNotNull(decoded);
+        assertEquals(SERVICE_UUID, decoded.serviceUuid);
+        assertEquals(layout.characteristicUuids, decoded.characteristicUuids);
+        assertEquals(layout.properties, decoded.properties);
+        assertTrue(decoded.isNotifying(STATE_UUID));
+        assertFalse(decoded.isNotifying(CHALLENGE_UUID));
+        assertTrue(decoded.matches(service(STATE_PROPERTIES, true)));
+    }
+
+    @Test
+    public void get_treatsCorruptEntryAsMiss() throws Exception {
+        assertNull(GattServiceCache.Layout.decode("not-a-uuid;1,2,3"));
+        assertNull(GattServiceCache.Layout.decode(SERVICE_UUID + ";" + STATE_UUID + ",x,1"));
+
+        MemoryStorage storage = new MemoryStorage();
+        storage.store(ADDRESS, SERVICE_UUID + ";" + STATE_UUID);
+        GattServiceCache cache = new GattServiceCache(storage, SERVICE_UUID);
+        assertNull(cache.get(ADDRESS));
+        assertFalse(cache.matches(ADDRESS, service(STATE_PROPERTIES, true)));
+    }
+
+    @Test
+    public void matches_detectsPropertyAndCharacteristicChanges() throws Exception {
+        GattServiceCache cache = new GattServiceCache(new MemoryStorage(), SERVICE_UUID);
+        cache.put(ADDRESS, service(STATE_PROPERTIES, true));
+
+        assertTrue(cache.matches(ADDRESS, service(STATE_PROPERTIES, true)));
+        assertFalse(cache.matches(ADDRESS,
+                service(STATE_PROPERTIES | GattCharacteristicInfo.PROPERTY_WRITE, true)));
+        assertFalse(cache.matches(ADDRESS, service(STATE_PROPERTIES, false)));
+        assertFalse(cache.matches(ADDRESS, null));
+    }
+
+    @Test
+    public void put_keepsNotifyingFlagsWhileLayoutIsUnchanged() throws Exception {
+        MemoryStorage storage = new MemoryStorage();
+        GattServiceCache cache = new GattServiceCache(storage, SERVICE_UUID);
+        cache.put(ADDRESS, service(STATE_PROPERTIES, true));
+        cache.setNotifying(ADDRESS, STATE_UUID, true);
+
+        cache.put(ADDRESS, service(STATE_PROPERTIES, true));
+        assertTrue(cache.isNotifying(ADDRESS, STATE_UUID));
+        // The flag was persisted, so a fresh cache over the same storage sees it too.
+        assertTrue(new GattServiceCache(storage, SERVICE_UUID).isNotifying(ADDRESS, STATE_UUID));
+
+        // A changed layout starts over.
+        cache.put(ADDRESS, service(STATE_PROPERTIES, false));
+        assertFalse(cache.isNotifying(ADDRESS, STATE_UUID));
+    }
+}
@@ -0,0 +1,50 @@
+package com.jolomb.iotprojectapp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link HexCodec}.
+ */
+public class HexCodecTest {
+
+    @Test
+    public void toHexString_matchesFormat() throws Exception {
+        byte data[] = new byte[256];
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+            expected.append(String.format("%02X ", data[i]));
+        }
+        assertEquals(expected.toString().trim(), HexCodec.toHexString(data));
+    }
+
+    @Test
+    public void encode_writesIntoBuffer() throws Exception {
+        char out[] = new char[6];
+        int end = HexCodec.encode(new byte[] { 0x00, (byte) 0x9f, 0x7a, 0x11 }, 1, 2, out, 1);
+        assertEquals(5, end);
+        assertEquals("9F7A", new String(out, 1, 4));
+    }
+
+    @Test
+    public void decode_roundTrips() throws Exception {
+        byte data[] = new byte[] { 'W', (byte) 0xff, 0x00, (byte) 0x80 };
+        byte out[] = new byte[data.length];
+        assertEquals(data.length, HexCodec.decode(HexCodec.toHexString(data), out));
+        assertArrayEquals(data, out);
+        assertEquals(2, HexCodec.decode("ab0F", out));
+        assertEquals((byte) 0xab, out[0]);
+        assertEquals(0x0f, out[1]);
+    }
+
+    @Test
+    public void decode_rejectsMalformedInput() throws Exception {
+        byte out[] = new byte[2];
+        assertEquals(-1, HexCodec.decode("5", out));
+        assertEquals(-1, HexCodec.decode("5 7", out));
+        assertEquals(-1, HexCodec.decode("zz", out));
+        assertEquals(-1, HexCodec.decode("010203", out));
+    }
+}
@@ -0,0 +1,42 @@
+package com.jolomb.iotprojectapp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void buckets_coverRangeWithBoundedError() throws Exception {
+        int lastBucket = -1;
+        for (long micros = 0; micros < (1L << 41); micros = micros * 3 / 2 + 1) {
+            int bucket = LatencyHistogram.bucketOf(micros);
+            assertTrue(bucket >= lastBucket);
+            lastBucket = bucket;
+            long upper = LatencyHistogram.upperBoundOf(bucket);
+            assertTrue(upper >= micros);
+            assertTrue(upper - micros <= micros / LatencyHistogram.SUB_BUCKETS);
+        }
+    }
+
+    @Test
+    public void percentiles_followRecordedValues() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentileMicros(50));
+        for (int i = 1; i <= 1000; i++) {
+            histogram.recordMicros(i * 1000);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000000, histogram.getMaxMicros());
+        assertEquals(500500, histogram.getMeanMicros());
+        long p50 = histogram.getPercentileMicros(50);
+        assertTrue(p50 >= 500000 && p50 <= 500000 * 17 / 16);
+        assertEquals(1000000, histogram.getPercentileMicros(100));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+    }
+}
@@ -0,0 +1,78 @@
+package com.jolomb.iotprojectapp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link LockStateMachine}.
+ */
+public class LockStateMachineTest {
+
+    private static class RecordingListener implements LockStateMachine.Listener {
+        final List<LockState> transitions = new ArrayList<LockState>();
+        final List<Integer> rejected = new ArrayList<Integer>();
+        long lastTimestamp;
+
+        @Override
+        public void onTransition(LockState from, LockState to, long timestampNanos) {
+            assertTrue(timestampNanos >= lastTimestamp);
+            lastTimestamp = timestampNanos;
+            transitions.add(to);
+        }
+
+        @Override
+        public void onRejected(LockState from, LockState to, int rawState, long timestampNanos) {
+            rejected.add(rawState);
+        }
+    }
+
+    @Test
+    public void decode_knownAndUnknownBytes() throws Exception {
+        assertEquals(LockState.WAITING_FOR_INPUT_BUFFER, LockStateMachine.decode('W'));
+        assertEquals(LockState.WAITING_FOR_ON_BOARD_CLICK, LockStateMachine.decode('P'));
+        assertEquals(LockState.RESPONSE_READY, LockStateMachine.decode('R'));
+        assertEquals(LockState.SIGNING_FAILED, LockStateMachine.decode('N'));
+        assertEquals(LockState.DONE, LockStateMachine.decode('D'));
+        assertNull(LockStateMachine.decode('X'));
+        assertNull(LockStateMachine.decode(0xff));
+    }
+
+    @Test
+    public void unlockRound_reportsEveryTransition() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        LockStateMachine machine = new LockStateMachine(listener);
+        assertTrue(machine.onRemoteState((byte) 'W'));
+        assertTrue(machine.onRemoteState((byte) 'W'));
+        assertTrue(machine.onRemoteState((byte) 'P'));
+        assertTrue(machine.onRemoteState(new byte[] { 'R' }));
+        assertTrue(machine.moveTo(LockState.SIGNATURE_DONE));
+        assertTrue(machine.onRemoteState((byte) 'D'));
+        assertTrue(machine.onRemoteState((byte) 'W'));
+
+        assertEquals(6, listener.transitions.size());
+        assertEquals(LockState.SIGNATURE_DONE, listener.transitions.get(3));
+        assertEquals(LockState.WAITING_FOR_INPUT_BUFFER, machine.getState());
+        assertEquals(0, machine.getRejectedCount());
+    }
+
+    @Test
+    public void invalidUpdates_areRejected() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        LockStateMachine machine = new LockStateMachine(listener);
+        machine.onRemoteState((byte) 'W');
+        assertFalse(machine.onRemoteState((byte) 'R'));
+        assertFalse(machine.onRemoteState((byte) '?'));
+        assertFalse(machine.moveTo(LockState.SIGNATURE_DONE));
+        assertEquals(LockState.WAITING_FOR_INPUT_BUFFER, machine.getState());
+        assertEquals(3, machine.getRejectedCount());
+        assertEquals(Integer.valueOf('R'), listener.rejected.get(0));
+        assertEquals(Integer.valueOf(-1), listener.rejected.get(2));
+
+        machine.reset(LockState.UNKNOWN);
+        assertTrue(machine.onRemoteState((byte) 'R'));
+    }
+}
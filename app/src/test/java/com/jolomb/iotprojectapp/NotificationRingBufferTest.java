@@ -0,0 +1,221 @@
+package com.jolomb.iotprojectapp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link NotificationRingBuffer}.
+ */
+public class NotificationRingBufferTest {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final String OTHER_ADDRESS = "00:11:22:33:44:56";
+    private static final String THIRD_ADDRESS = "00:11:22:33:44:57";
+    private static final UUID STATE_UUID = SampleGattAttributes.CRYPTO_SIGNER_RESPONSE_STATE_UUID;
+
+    private static byte[] value(char c) {
+        return new byte[] { (byte) c };
+    }
+
+    @Test
+    public void latestValue_keepsOneSlotPerKeyAndOverwritesOldest() throws Exception {
+        NotificationRingBuffer buffer =
+                new NotificationRingBuffer(NotificationRingBuffer.Policy.LATEST_VALUE, 2);
+        assertTrue(buffer.offer(ADDRESS, value('W')));
+        assertFalse(buffer.offer(OTHER_ADDRESS, value('W')));
+        assertFalse(buffer.offer(ADDRESS, value('P')));
+        assertFalse(buffer.offer(ADDRESS, value('R')));
+        assertEquals(2, buffer.getCoalescedCount());
+        assertEquals(0, buffer.getOverflowCount());
+
+        String addresses[] = new String[4];
+        byte values[][] = new byte[4][];
+        // The newest value took the slot of the first one, ahead of the other device.
+        assertEquals(2, buffer.drain(addresses, values));
+        assertEquals(ADDRESS, addresses[0]);
+        assertArrayEquals(value('R'), values[0]);
+        assertEquals(OTHER_ADDRESS, addresses[1]);
+        assertEquals(0, buffer.drain(addresses, values));
+
+        buffer.offer(ADDRESS, value('W'));
+        buffer.offer(OTHER_ADDRESS, value('W'));
+        buffer.offer(THIRD_ADDRESS, value('W'));
+        assertEquals(1, buffer.getOverflowCount());
+        assertEquals(2, buffer.drain(addresses, values));
+        assertEquals(OTHER_ADDRESS, addresses[0]);
+        assertEquals(THIRD_ADDRESS, addresses[1]);
+        assertEquals(0, buffer.drain(addresses, values));
+        // The buffer was found empty, so the next value needs a new drain.
+        assertTrue(buffer.offer(ADDRESS, value('D')));
+    }
+
+    @Test
+    public void lossless_keepsOrderAndCountsOverflow() throws Exception {
+        NotificationRingBuffer buffer =
+                new NotificationRingBuffer(NotificationRingBuffer.Policy.LOSSLESS, 3);
+        for (int i = 0; i < 5; i++) {
+            buffer.offer(ADDRESS, new byte[] { (byte) i, (byte) i });
+        }
+        assertEquals(2, buffer.getOverflowCount());
+
+        String addresses[] = new String[2];
+        byte values[][] = new byte[2][];
+        assertEquals(2, buffer.drain(addresses, values));
+        assertEquals(0, values[0][0]);
+        assertEquals(1, values[1][0]);
+        assertEquals(1, buffer.drain(addresses, values));
+        assertEquals(2, values[0][0]);
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void stateBurst_keepsPendingOnlyWhenLossless() throws Exception {
+        NotificationRingBuffer latest =
+                new NotificationRingBuffer(NotificationRingBuffer.Policy.LATEST_VALUE, 2);
+        NotificationRingBuffer lossless =
+                new NotificationRingBuffer(NotificationRingBuffer.Policy.LOSSLESS, 2);
+        for (char c : new char[] { 'P', 'R', 'D' }) {
+            latest.offer(ADDRESS, value(c));
+            lossless.offer(ADDRESS, value(c));
+        }
+
+        String addresses[] = new String[2];
+        byte values[][] = new byte[2][];
+        // Only the newest state is left, so the listener would see W -> D.
+        assertEquals(1, latest.drain(addresses, values));
+        assertArrayEquals(value('D'), values[0]);
+        assertEquals(2, lossless.drain(addresses, values));
+        assertArrayEquals(value('P'), values[0]);
+        assertArrayEquals(value('R'), values[1]);
+        assertEquals(1, lossless.getOverflowCount());
+    }
+
+    @Test
+    public void latestValue_neverCoalescesOtherCharacteristics() throws Exception {
+        NotificationRingBuffer buffer =
+                new NotificationRingBuffer(NotificationRingBuffer.Policy.LATEST_VALUE, 4);
+        UUID otherUuid = SampleGattAttributes.CRYPTO_SIGNER_SIGNED_RESPONSE_UUID;
+        buffer.offer(ADDRESS, STATE_UUID, value('P'));
+        buffer.offer(ADDRESS, otherUuid, value('P'));
+        assertEquals(0, buffer.getCoalescedCount());
+
+        String addresses[] = new String[4];
+        UUID uuids[] = new UUID[4];
+        byte values[][] = new byte[4][];
+        assertEquals(2, buffer.drain(addresses, uuids, values));
+        assertEquals(STATE_UUID, uuids[0]);
+        assertEquals(otherUuid, uuids[1]);
+    }
+
+    @Test
+    public void dispatcher_drainsBurstInOneTask() throws Exception {
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        Executor deferred = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        };
+        final List<Byte> states = new ArrayList<Byte>();
+        GattEventDispatcher dispatcher = new GattEventDispatcher();
+        NotificationRingBuffer buffer = dispatcher.registerCharacteristicListener(STATE_UUID,
+                new CharacteristicListener() {
+                    @Override
+                    public void onCharacteristicValue(String address, UUID uuid, byte[] value) {
+                        states.add(value[0]);
+                    }
+                }, deferred, NotificationRingBuffer.Policy.LATEST_VALUE,
+                NotificationRingBuffer.DEFAULT_CAPACITY);
+
+        for (char c : new char[] { 'W', 'W', 'P', 'P', 'R' }) {
+            dispatcher.dispatchCharacteristicValue(ADDRESS, STATE_UUID, value(c));
+        }
+        assertEquals(1, tasks.size());
+        tasks.remove(0).run();
+        assertEquals(1, states.size());
+        assertEquals((byte) 'R', (byte) states.get(0));
+        assertEquals(4, buffer.getCoalescedCount());
+        assertEquals(0, dispatcher.getOverflowCount());
+    }
+
+    @Test
+    public void dispatcher_batchesValuesForEventListeners() throws Exception {
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        Executor deferred = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        };
+        final List<UUID> uuids = new ArrayList<UUID>();
+        final List<Byte> states = new ArrayList<Byte>();
+        GattEventDispatcher dispatcher = new GattEventDispatcher();
+        dispatcher.registerListener(new GattEventListener.Adapter() {
+            @Override
+            public void onCharacteristicValue(String address, UUID uuid, byte[] value) {
+                uuids.add(uuid);
+                states.add(value[0]);
+            }
+        }, deferred);
+
+        UUID otherUuid = SampleGattAttributes.CRYPTO_SIGNER_SIGNED_RESPONSE_UUID;
+        for (char c : new char[] { 'W', 'P', 'P', 'R' }) {
+            dispatcher.dispatchCharacteristicValue(ADDRESS, STATE_UUID, value(c));
+        }
+        dispatcher.dispatchCharacteristicValue(ADDRESS, otherUuid, value('S'));
+        assertEquals(1, tasks.size());
+        tasks.remove(0).run();
+        // Every value is delivered, in order and with its characteristic.
+        assertEquals(5, states.size());
+        assertEquals((byte) 'P', (byte) states.get(2));
+        assertEquals(otherUuid, uuids.get(4));
+        assertEquals(0, dispatcher.getOverflowCount());
+
+        dispatcher.dispatchCharacteristicValue(ADDRESS, STATE_UUID, value('D'));
+        assertEquals(1, tasks.size());
+    }
+
+    @Test
+    public void dispatcher_keepsConnectionEventsInOrderWithValues() throws Exception {
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        Executor deferred = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        };
+        final List<String> events = new ArrayList<String>();
+        GattEventDispatcher dispatcher = new GattEventDispatcher();
+        dispatcher.registerListener(new GattEventListener.Adapter() {
+            @Override
+            public void onConnected(String address) {
+                events.add("connected");
+            }
+
+            @Override
+            public void onDisconnected(String address) {
+                events.add("disconnected");
+            }
+
+            @Override
+            public void onCharacteristicValue(String address, UUID uuid, byte[] value) {
+                events.add(String.valueOf((char) value[0]));
+            }
+        }, deferred);
+
+        dispatcher.dispatchCharacteristicValue(ADDRESS, STATE_UUID, value('W'));
+        dispatcher.dispatchDisconnected(ADDRESS);
+        dispatcher.dispatchConnected(ADDRESS);
+        dispatcher.dispatchCharacteristicValue(ADDRESS, STATE_UUID, value('P'));
+        assertEquals(1, tasks.size());
+        tasks.remove(0).run();
+        assertEquals(Arrays.asList("W", "disconnected", "connected", "P"), events);
+    }
+}
@@ -0,0 +1,107 @@
+package com.jolomb.iotprojectapp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.security.KeyPair;
+import java.security.PublicKey;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link PublicKeyRing}.
+ */
+public class PublicKeyRingTest {
+
+    private static final String ADDRESS = "00:11:22:AA:BB:CC";
+    private static final String OTHER_ADDRESS = "00:11:22:AA:BB:DD";
+
+    private File mFile;
+    private KeyPair mKeyPair;
+    private KeyPair mOtherKeyPair;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("lock_keys", ".txt");
+        mKeyPair = SimulatedCryptoLock.generateKeyPair();
+        mOtherKeyPair = SimulatedCryptoLock.generateKeyPair();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    private static String line(String address, KeyPair keyPair) {
+        return address + " " + HexCodec.toHexString(keyPair.getPublic().getEncoded())
+                .replace(" ", "") + "\n";
+    }
+
+    private void writeKeys(String content) throws Exception {
+        Writer writer = new FileWriter(mFile);
+        writer.write(content);
+        writer.close();
+    }
+
+    @Test
+    public void load_readsKeysByAddressAndDefault() throws Exception {
+        PublicKeyRing ring = new PublicKeyRing(mFile, 4);
+        assertEquals(2, ring.load(new StringReader("# lock keys\n\n"
+                + line(ADDRESS.toLowerCase(), mKeyPair)
+                + "not-a-key zz\n"
+                + line(PublicKeyRing.DEFAULT_ADDRESS, mOtherKeyPair))));
+
+        assertEquals(mKeyPair.getPublic(), ring.getPublicKey(ADDRESS));
+        assertEquals(mOtherKeyPair.getPublic(), ring.getPublicKey(OTHER_ADDRESS));
+    }
+
+    @Test
+    public void getPublicKey_cachesParsedKeysUpToCapacity() throws Exception {
+        PublicKeyRing ring = new PublicKeyRing(mFile, 2);
+        ring.setFallbackKey(mKeyPair.getPublic().getEncoded());
+        PublicKey first = ring.getPublicKey("00:00:00:00:00:01");
+        assertSame(first, ring.getPublicKey("00:00:00:00:00:01"));
+        ring.getPublicKey("00:00:00:00:00:02");
+        ring.getPublicKey("00:00:00:00:00:03");
+        assertEquals(2, ring.getCachedCount());
+        // The least recently used key was dropped and gets parsed again.
+        assertNotSame(first, ring.getPublicKey("00:00:00:00:00:01"));
+    }
+
+    @Test
+    public void setFallbackKey_keepsCacheWhenKeyIsUnchanged() throws Exception {
+        PublicKeyRing ring = new PublicKeyRing(mFile, 4);
+        ring.setFallbackKey(mKeyPair.getPublic().getEncoded());
+        PublicKey first = ring.getPublicKey(ADDRESS);
+
+        ring.setFallbackKey(mKeyPair.getPublic().getEncoded());
+        assertSame(first, ring.getPublicKey(ADDRESS));
+
+        ring.setFallbackKey(mOtherKeyPair.getPublic().getEncoded());
+        assertEquals(mOtherKeyPair.getPublic(), ring.getPublicKey(ADDRESS));
+    }
+
+    @Test
+    public void reload_picksUpNewKeys() throws Exception {
+        PublicKeyRing ring = new PublicKeyRing(mFile, 4);
+        assertEquals(0, ring.reload());
+        assertNull(ring.getPublicKey(ADDRESS));
+
+        writeKeys(line(ADDRESS, mKeyPair));
+        assertEquals(1, ring.reload());
+        assertEquals(mKeyPair.getPublic(), ring.getPublicKey(ADDRESS));
+
+        writeKeys(line(ADDRESS, mOtherKeyPair));
+        ring.reload();
+        assertEquals(mOtherKeyPair.getPublic(), ring.getPublicKey(ADDRESS));
+
+        assertTrue(mFile.delete());
+        assertEquals(0, ring.reload());
+        assertNull(ring.getPublicKey(ADDRESS));
+    }
+}
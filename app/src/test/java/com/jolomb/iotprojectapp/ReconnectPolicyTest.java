@@ -0,0 +1,49 @@
+package com.jolomb.iotprojectapp;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link ReconnectPolicy}.
+ */
+public class ReconnectPolicyTest {
+
+    @Test
+    public void classify_mapsStatusCodes() throws Exception {
+        assertEquals(ReconnectPolicy.DisconnectCause.LINK_LOSS,
+                ReconnectPolicy.classify(ReconnectPolicy.STATUS_CONNECTION_TIMEOUT));
+        assertEquals(ReconnectPolicy.DisconnectCause.REMOTE_TERMINATED,
+                ReconnectPolicy.classify(ReconnectPolicy.STATUS_REMOTE_USER_TERMINATED));
+        // The peer closing the link cleanly, and the local controller dropping it.
+        assertEquals(ReconnectPolicy.DisconnectCause.REMOTE_TERMINATED,
+                ReconnectPolicy.classify(ReconnectPolicy.STATUS_SUCCESS));
+        assertEquals(ReconnectPolicy.DisconnectCause.LINK_LOSS,
+                ReconnectPolicy.classify(ReconnectPolicy.STATUS_LOCAL_HOST_TERMINATED));
+        assertEquals(ReconnectPolicy.DisconnectCause.GATT_ERROR, ReconnectPolicy.classify(133));
+        assertEquals(ReconnectPolicy.DisconnectCause.AUTHENTICATION,
+                ReconnectPolicy.classify(ReconnectPolicy.STATUS_AUTHENTICATION_FAILURE));
+        assertEquals(ReconnectPolicy.DisconnectCause.UNKNOWN, ReconnectPolicy.classify(0x7f));
+
+        assertTrue(ReconnectPolicy.DisconnectCause.LINK_LOSS.reusesTransport());
+        assertFalse(ReconnectPolicy.DisconnectCause.GATT_ERROR.reusesTransport());
+        assertFalse(ReconnectPolicy.DisconnectCause.AUTHENTICATION.isRetried());
+    }
+
+    @Test
+    public void getDelayMs_backsOffWithJitterAndGivesUp() throws Exception {
+        ReconnectPolicy policy = new ReconnectPolicy(100, 1000, 6, new Random(3));
+        for (int attempt = 0; attempt < 6; attempt++) {
+            long ceiling = Math.min(1000, 100L << attempt);
+            for (int i = 0; i < 50; i++) {
+                long delay = policy.getDelayMs(ReconnectPolicy.DisconnectCause.LINK_LOSS, attempt);
+                assertTrue(delay >= ceiling / 2);
+                assertTrue(delay <= ceiling);
+            }
+        }
+        assertEquals(-1, policy.getDelayMs(ReconnectPolicy.DisconnectCause.LINK_LOSS, 6));
+        assertEquals(-1, policy.getDelayMs(ReconnectPolicy.DisconnectCause.REQUESTED, 0));
+    }
+}
@@ -0,0 +1,95 @@
+package com.jolomb.iotprojectapp;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.Signature;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link RsaSha256Verifier}, checked against {@code Signature}.
+ */
+public class RsaSha256VerifierTest {
+
+    @Test
+    public void verify_matchesJca() throws Exception {
+        Random random = new Random(7);
+        for (int keySize : new int[] { 1024, 1032, 2048 }) {
+            KeyPair keyPair = SimulatedCryptoLock.generateKeyPair(keySize);
+            RsaSha256Verifier verifier =
+                    new RsaSha256Verifier((RSAPublicKey) keyPair.getPublic());
+            Signature signer = Signature.getInstance("SHA256withRSA");
+            Signature jca = Signature.getInstance("SHA256withRSA");
+            for (int i = 0; i < 20; i++) {
+                byte message[] = new byte[SimulatedCryptoLock.CHALLENGE_LENGTH];
+                random.nextBytes(message);
+                signer.initSign(keyPair.getPrivate());
+                signer.update(message);
+                byte signature[] = signer.sign();
+                if (i % 2 == 1) {
+                    // Every other signature gets a flipped bit.
+                    signature[random.nextInt(signature.length)] ^= 1 << random.nextInt(8);
+                }
+                jca.initVerify(keyPair.getPublic());
+                jca.update(message);
+                boolean expected = jca.verify(signature);
+                assertEquals(i % 2 == 0, expected);
+                assertEquals(expected, verifier.verify(message, 0, message.length,
+                        signature, 0, signature.length));
+            }
+        }
+    }
+
+    @Test
+    public void verify_rejectsOtherKeyAndBadLengths() throws Exception {
+        KeyPair keyPair = SimulatedCryptoLock.generateKeyPair();
+        KeyPair other = SimulatedCryptoLock.generateKeyPair();
+        byte message[] = new byte[] { 1, 2, 3 };
+        Signature signer = Signature.getInstance("SHA256withRSA");
+        signer.initSign(other.getPrivate());
+        signer.update(message);
+        byte signature[] = signer.sign();
+
+        RsaSha256Verifier verifier = new RsaSha256Verifier((RSAPublicKey) keyPair.getPublic());
+        assertFalse(verifier.verify(message, 0, 3, signature, 0, signature.length));
+        assertFalse(verifier.verify(message, 0, 3, signature, 0, signature.length - 1));
+        // A signature not below the modulus.
+        byte tooLarge[] = new byte[signature.length];
+        Arrays.fill(tooLarge, (byte) 0xff);
+        assertFalse(verifier.verify(message, 0, 3, tooLarge, 0, tooLarge.length));
+    }
+
+    @Test(expected = InvalidKeyException.class)
+    public void constructor_rejectsOtherExponents() throws Exception {
+        RSAPublicKey key = (RSAPublicKey) SimulatedCryptoLock.generateKeyPair().getPublic();
+        RSAPublicKey three = (RSAPublicKey) KeyFactory.getInstance("RSA").generatePublic(
+                new RSAPublicKeySpec(key.getModulus(), BigInteger.valueOf(3)));
+        new RsaSha256Verifier(three);
+    }
+
+    @Test
+    public void signatureVerifier_usesBuiltInVerifier() throws Exception {
+        KeyPair keyPair = SimulatedCryptoLock.generateKeyPair();
+        byte message[] = new byte[] { 4, 5, 6 };
+        Signature signer = Signature.getInstance("SHA256withRSA");
+        signer.initSign(keyPair.getPrivate());
+        signer.update(message);
+        byte signature[] = signer.sign();
+
+        SignatureVerifier verifier = new SignatureVerifier(SignatureScheme.RSA_SHA256,
+                keyPair.getPublic());
+        verifier.setBuiltInRsaEnabled(true);
+        assertTrue(verifier.verify(message, signature));
+        signature[0] ^= 1;
+        assertFalse(verifier.verify(message, signature));
+        verifier.shutdown();
+    }
+}
@@ -0,0 +1,49 @@
+package com.jolomb.iotprojectapp;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link ScanRecordParser}.
+ */
+public class ScanRecordParserTest {
+
+    private static final UUID SERVICE = SampleGattAttributes.CRYPTO_SIGNER_SERVICE_UUID;
+
+    @Test
+    public void finds16BitServiceUuid() throws Exception {
+        byte record[] = new byte[62];
+        byte ad[] = {
+                0x02, 0x01, 0x06,                   // flags
+                0x05, 0x03, 0x0d, 0x18, (byte) 0xf0, (byte) 0xff  // 0x180d, 0xfff0
+        };
+        System.arraycopy(ad, 0, record, 0, ad.length);
+        assertTrue(ScanRecordParser.advertisesService(record, SERVICE));
+        assertFalse(ScanRecordParser.advertisesService(record,
+                SampleGattAttributes.CRYPTO_SIGNER_RESPONSE_STATE_UUID));
+    }
+
+    @Test
+    public void finds128BitServiceUuid() throws Exception {
+        byte record[] = new byte[18];
+        record[0] = 17;
+        record[1] = 0x07;
+        long lsb = SERVICE.getLeastSignificantBits();
+        long msb = SERVICE.getMostSignificantBits();
+        for (int i = 0; i < 8; i++) {
+            record[2 + i] = (byte) (lsb >>> (8 * i));
+            record[10 + i] = (byte) (msb >>> (8 * i));
+        }
+        assertTrue(ScanRecordParser.advertisesService(record, SERVICE));
+    }
+
+    @Test
+    public void stopsOnTruncatedRecord() throws Exception {
+        byte record[] = { 0x05, 0x03, (byte) 0xf0 };
+        assertFalse(ScanRecordParser.advertisesService(record, SERVICE));
+        assertFalse(ScanRecordParser.advertisesService(null, SERVICE));
+    }
+}
@@ -0,0 +1,66 @@
+package com.jolomb.iotprojectapp;
+
+import org.junit.Test;
+
+import java.security.KeyPair;
+import java.security.Signature;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link SignatureScheme}.
+ */
+public class SignatureSchemeTest {
+
+    @Test
+    public void toRaw_roundTripsJcaSignatures() throws Exception {
+        KeyPair keyPair = SimulatedCryptoLock.generateEcKeyPair();
+        byte message[] = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 };
+        Signature signer = Signature.getInstance("SHA256withECDSA");
+        Signature verifier = Signature.getInstance("SHA256withECDSA");
+        // Enough signatures to hit r and s with a leading zero byte and with the high bit set.
+        for (int i = 0; i < 64; i++) {
+            signer.initSign(keyPair.getPrivate());
+            signer.update(message);
+            byte der[] = signer.sign();
+            byte raw[] = SignatureScheme.toRaw(der, 64);
+            assertNotNull(raw);
+            assertEquals(64, raw.length);
+            assertArrayEquals(der, SignatureScheme.toDer(raw, 0, raw.length));
+
+            verifier.initVerify(keyPair.getPublic());
+            verifier.update(message);
+            assertTrue(verifier.verify(SignatureScheme.toDer(raw, 0, raw.length)));
+        }
+    }
+
+    @Test
+    public void toRaw_rejectsMalformedDer() throws Exception {
+        assertNull(SignatureScheme.toRaw(new byte[] { 0x30, 0x06, 0x02, 0x01, 0x01 }, 64));
+        assertNull(SignatureScheme.toRaw(new byte[128], 64));
+    }
+
+    @Test
+    public void fromId_knowsReportedSchemes() throws Exception {
+        assertEquals(SignatureScheme.RSA_SHA256, SignatureScheme.fromId((byte) 0x01));
+        assertEquals(SignatureScheme.ECDSA_P256_SHA256, SignatureScheme.fromId((byte) 0x02));
+        assertNull(SignatureScheme.fromId((byte) 0x7f));
+        assertTrue(SignatureScheme.ECDSA_P256_SHA256.isValidLength(64, 128));
+        assertFalse(SignatureScheme.ECDSA_P256_SHA256.isValidLength(128, 128));
+        assertTrue(SignatureScheme.RSA_SHA256.isValidLength(128, 128));
+    }
+
+    @Test
+    public void verifierLength_followsSchemeAndKey() throws Exception {
+        SignatureVerifier rsa = new SignatureVerifier(SignatureScheme.RSA_SHA256,
+                SimulatedCryptoLock.generateKeyPair(2048).getPublic());
+        assertTrue(rsa.isValidLength(256));
+        assertFalse(rsa.isValidLength(128));
+        SignatureVerifier ec = new SignatureVerifier(SignatureScheme.ECDSA_P256_SHA256,
+                SimulatedCryptoLock.generateEcKeyPair().getPublic());
+        assertTrue(ec.isValidLength(64));
+        assertFalse(ec.isValidLength(128));
+        rsa.shutdown();
+        ec.shutdown();
+    }
+}
@@ -0,0 +1,376 @@
+package com.jolomb.iotprojectapp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.KeyPair;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link SimulatedCryptoLock}, driven through a {@link GattConnection}.
+ */
+public class SimulatedCryptoLockTest {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+
+    private static class MemoryStorage implements GattServiceCache.Storage {
+        private final Map<String, String> mValues = new HashMap<String, String>();
+
+        @Override
+        public synchronized String load(String key) {
+            return mValues.get(key);
+        }
+
+        @Override
+        public synchronized void store(String key, String value) {
+            mValues.put(key, value);
+        }
+
+        @Override
+        public synchronized void remove(String key) {
+            mValues.remove(key);
+        }
+    }
+
+    private ScheduledExecutorService mExecutor;
+    private GattEventDispatcher mDispatcher;
+    private KeyPair mKeyPair;
+    private SimulatedCryptoLock mLock;
+    private int mTransportsCreated;
+    private GattConnection mConnection;
+    private boolean mFastWrite;
+    private UnlockHandshake mHandshake;
+
+    @Before
+    public void setUp() throws Exception {
+        mExecutor = Executors.newScheduledThreadPool(2);
+        mDispatcher = new GattEventDispatcher();
+        mKeyPair = SimulatedCryptoLock.generateKeyPair();
+        GattTransport.Factory factory = new GattTransport.Factory() {
+            @Override
+            public GattTransport create(String address, GattTransport.Callback callback) {
+                mTransportsCreated++;
+                mLock = new SimulatedCryptoLock(address, mKeyPair, callback, mExecutor, 1);
+                mLock.setLatency(1, 0);
+                return mLock;
+            }
+        };
+        mConnection = new GattConnection(ADDRESS, factory, mDispatcher, mExecutor,
+                new GattServiceCache(new MemoryStorage(),
+                        SampleGattAttributes.CRYPTO_SIGNER_SERVICE_UUID));
+    }
+
+    @After
+    public void tearDown() {
+        mConnection.close();
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void handshake_grantedWithLockKey() throws Exception {
+        GattServiceInfo service = connectAndSubscribe();
+        assertEquals(UnlockHandshake.Outcome.GRANTED,
+                runHandshake(service, mKeyPair.getPublic().getEncoded()));
+        assertEquals(SimulatedCryptoLock.STATE_RESPONSE_READY, mLock.getState());
+    }
+
+    @Test
+    public void handshake_deniedWithOtherKey() throws Exception {
+        GattServiceInfo service = connectAndSubscribe();
+        KeyPair other = SimulatedCryptoLock.generateKeyPair();
+        assertEquals(UnlockHandshake.Outcome.DENIED,
+                runHandshake(service, other.getPublic().getEncoded()));
+    }
+
+    @Test
+    public void handshake_streamsLargeResponseAtNegotiatedMtu() throws Exception {
+        mKeyPair = SimulatedCryptoLock.generateKeyPair(2048);
+        GattServiceInfo service = connectAndSubscribe();
+        assertEquals(SimulatedCryptoLock.MAX_MTU, mConnection.getMtu());
+        GattCharacteristicInfo response = service.getCharacteristic(
+                SampleGattAttributes.CRYPTO_SIGNER_SIGNED_RESPONSE_UUID);
+        mConnection.setFragmentedNotification(response, true).get(5, TimeUnit.SECONDS);
+        // Without the read the response can only come from the stream.
+        assertEquals(UnlockHandshake.Outcome.GRANTED,
+                runHandshake(service, mKeyPair.getPublic().getEncoded(), true));
+    }
+
+    @Test
+    public void handshake_signingFailedOnResponseOfOtherKeySize() throws Exception {
+        GattServiceInfo service = connectAndSubscribe();
+        KeyPair larger = SimulatedCryptoLock.generateKeyPair(2048);
+        assertEquals(UnlockHandshake.Outcome.SIGNING_FAILED,
+                runHandshake(service, larger.getPublic().getEncoded()));
+    }
+
+    @Test
+    public void ecdsaLock_reportsSchemeAndSendsRawSignature() throws Exception {
+        mKeyPair = SimulatedCryptoLock.generateEcKeyPair();
+        GattServiceInfo service = connectAndSubscribe();
+        GattCharacteristicInfo scheme = service.getCharacteristic(
+                SampleGattAttributes.CRYPTO_SIGNER_SIGNATURE_SCHEME_UUID);
+        assertNotNull(scheme);
+        assertEquals(SignatureScheme.ECDSA_P256_SHA256, SignatureScheme.fromId(
+                mConnection.readCharacteristic(scheme).get(5, TimeUnit.SECONDS)[0]));
+
+        SignatureVerifier verifier = new SignatureVerifier(SignatureScheme.ECDSA_P256_SHA256,
+                mKeyPair.getPublic());
+        assertEquals(UnlockHandshake.Outcome.GRANTED, runHandshake(service, verifier, false));
+        GattCharacteristicInfo response = service.getCharacteristic(
+                SampleGattAttributes.CRYPTO_SIGNER_SIGNED_RESPONSE_UUID);
+        assertEquals(64, mConnection.readCharacteristic(response).get(5, TimeUnit.SECONDS).length);
+    }
+
+    @Test
+    public void fastWrite_confirmedByDigest() throws Exception {
+        GattServiceInfo service = connectAndSubscribe();
+        mFastWrite = true;
+        assertEquals(UnlockHandshake.Outcome.GRANTED,
+                runHandshake(service, mKeyPair.getPublic().getEncoded()));
+        assertFalse(mHandshake.didFallBack());
+    }
+
+    @Test
+    public void fastWrite_fallsBackOnDigestMismatch() throws Exception {
+        GattServiceInfo service = connectAndSubscribe();
+        mFastWrite = true;
+        mLock.setButtonDelay(50);
+        mLock.corruptNextWrite();
+        assertEquals(UnlockHandshake.Outcome.GRANTED,
+                runHandshake(service, mKeyPair.getPublic().getEncoded()));
+        assertTrue(mHandshake.didFallBack());
+    }
+
+    @Test
+    public void handshake_readsResponseOnRequestAndTracesPhases() throws Exception {
+        GattServiceInfo service = connectAndSubscribe();
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<UnlockHandshake.Outcome> outcome =
+                new AtomicReference<UnlockHandshake.Outcome>();
+        SignatureVerifier verifier = new SignatureVerifier("RSA", "SHA256withRSA",
+                mKeyPair.getPublic().getEncoded());
+        UnlockTracer tracer = new UnlockTracer();
+        UnlockHandshake handshake = new UnlockHandshake(mConnection, mDispatcher, service,
+                verifier, new UnlockHandshake.Listener() {
+            @Override
+            public void onHandshakeComplete(String address, UnlockHandshake.Outcome result) {
+                outcome.set(result);
+                done.countDown();
+            }
+        });
+        handshake.setReadOnReady(false);
+        handshake.setTracer(tracer);
+        assertFalse(handshake.readResponse());
+        handshake.start(new byte[SimulatedCryptoLock.CHALLENGE_LENGTH]);
+
+        // Nothing is read until asked for, once the lock reported R.
+        assertFalse(done.await(300, TimeUnit.MILLISECONDS));
+        assertTrue(handshake.readResponse());
+        assertFalse(handshake.readResponse());
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(UnlockHandshake.Outcome.GRANTED, outcome.get());
+        for (UnlockTracer.Phase phase : new UnlockTracer.Phase[] {
+                UnlockTracer.Phase.WRITE_CHALLENGE, UnlockTracer.Phase.WAIT_FOR_PENDING,
+                UnlockTracer.Phase.WAIT_FOR_BUTTON, UnlockTracer.Phase.READ_RESPONSE,
+                UnlockTracer.Phase.VERIFY }) {
+            assertEquals(phase.name(), 1, tracer.getHistogram(phase).getCount());
+        }
+        verifier.shutdown();
+    }
+
+    @Test
+    public void injectedDisconnect_failsHandshake() throws Exception {
+        GattServiceInfo service = connectAndSubscribe();
+        mLock.setButtonDelay(-1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<UnlockHandshake.Outcome> outcome =
+                new AtomicReference<UnlockHandshake.Outcome>();
+        SignatureVerifier verifier = new SignatureVerifier("RSA", "SHA256withRSA",
+                mKeyPair.getPublic().getEncoded());
+        UnlockHandshake handshake = new UnlockHandshake(mConnection, mDispatcher, service,
+                verifier, new UnlockHandshake.Listener() {
+            @Override
+            public void onHandshakeComplete(String address, UnlockHandshake.Outcome result) {
+                outcome.set(result);
+                done.countDown();
+            }
+        });
+        handshake.start(new byte[SimulatedCryptoLock.CHALLENGE_LENGTH]);
+        mLock.injectDisconnect(SimulatedCryptoLock.STATUS_CONNECTION_TIMEOUT);
+        // Without the button press the lock never answers, so only the disconnect ends it.
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(UnlockHandshake.Outcome.FAILED, outcome.get());
+        assertFalse(mConnection.isActive());
+        verifier.shutdown();
+    }
+
+    @Test
+    public void reconnect_reusesTransportAfterLinkLossOnly() throws Exception {
+        final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+        mDispatcher.registerListener(new GattEventListener.Adapter() {
+            @Override
+            public void onConnected(String address) {
+                events.add("connected");
+            }
+
+            @Override
+            public void onDisconnected(String address) {
+                events.add("disconnected");
+            }
+        }, GattEventDispatcher.DIRECT_EXECUTOR);
+        mConnection.setReconnectPolicy(new ReconnectPolicy(20, 100, 3, new Random(1)));
+        connectAndSubscribe();
+        assertEquals("connected", events.poll(5, TimeUnit.SECONDS));
+
+        mLock.injectDisconnect(SimulatedCryptoLock.STATUS_CONNECTION_TIMEOUT);
+        assertEquals("disconnected", events.poll(5, TimeUnit.SECONDS));
+        assertEquals(ReconnectPolicy.DisconnectCause.LINK_LOSS,
+                mConnection.getLastDisconnectCause());
+        assertEquals("connected", events.poll(5, TimeUnit.SECONDS));
+        assertEquals(1, mTransportsCreated);
+
+        // Status 133: the stale transport is closed and a new one connects.
+        mLock.injectDisconnect(SimulatedCryptoLock.STATUS_GATT_ERROR);
+        assertEquals("disconnected", events.poll(5, TimeUnit.SECONDS));
+        assertEquals("connected", events.poll(5, TimeUnit.SECONDS));
+        assertEquals(2, mTransportsCreated);
+
+        // Asked for: stays down.
+        mConnection.disconnect();
+        mLock.injectDisconnect(0);
+        assertEquals("disconnected", events.poll(5, TimeUnit.SECONDS));
+        assertNull(events.poll(300, TimeUnit.MILLISECONDS));
+        assertFalse(mConnection.isActive());
+    }
+
+    @Test
+    public void connectionState_ignoresCallbacksOfLinksAlreadyHandled() throws Exception {
+        connectAndSubscribe();
+        final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+        mDispatcher.registerListener(new GattEventListener.Adapter() {
+            @Override
+            public void onConnected(String address) {
+                events.add("connected");
+            }
+
+            @Override
+            public void onDisconnected(String address) {
+                events.add("disconnected");
+            }
+        }, GattEventDispatcher.DIRECT_EXECUTOR);
+
+        mConnection.onConnectionStateChange(ReconnectPolicy.STATUS_LOCAL_HOST_TERMINATED, false);
+        assertEquals("disconnected", events.poll());
+        assertEquals(ReconnectPolicy.DisconnectCause.LINK_LOSS,
+                mConnection.getLastDisconnectCause());
+        // A repeated disconnect and a connect nobody asked for change nothing.
+        mConnection.onConnectionStateChange(ReconnectPolicy.STATUS_LOCAL_HOST_TERMINATED, false);
+        mConnection.onConnectionStateChange(0, true);
+        assertNull(events.poll());
+        assertEquals(GattConnection.ConnectionState.STATE_DISCONNECTED,
+                mConnection.getConnectionState());
+    }
+
+    @Test
+    public void connect_keepsStateWhenAlreadyConnected() throws Exception {
+        connectAndSubscribe();
+        assertTrue(mConnection.connect());
+        assertEquals(GattConnection.ConnectionState.STATE_CONNECTED,
+                mConnection.getConnectionState());
+    }
+
+    @Test
+    public void linkProfile_highPriorityOnConnectThenRelaxed() throws Exception {
+        final BlockingQueue<Integer> intervals = new LinkedBlockingQueue<Integer>();
+        mConnection.setLinkListener(new LinkProfile.Listener() {
+            @Override
+            public void onLinkProfileRequested(String address, LinkProfile profile,
+                                               boolean accepted) {
+            }
+
+            @Override
+            public void onConnectionUpdated(String address, int interval, int latency,
+                                            int timeout, int status) {
+                intervals.add(interval);
+            }
+
+            @Override
+            public void onPhyUpdated(String address, int txPhy, int rxPhy, int status) {
+            }
+        });
+        connectAndSubscribe();
+        assertEquals(LinkProfile.HANDSHAKE, mConnection.getLinkProfile());
+        assertEquals(SimulatedCryptoLock.INTERVAL_HIGH,
+                (int) intervals.poll(5, TimeUnit.SECONDS));
+        assertEquals(LinkProfile.PHY_LE_2M, mLock.getPhy());
+
+        assertTrue(mConnection.setLinkProfile(LinkProfile.BALANCED));
+        assertEquals(SimulatedCryptoLock.INTERVAL_BALANCED,
+                (int) intervals.poll(5, TimeUnit.SECONDS));
+    }
+
+    private GattServiceInfo connectAndSubscribe() throws Exception {
+        final CountDownLatch discovered = new CountDownLatch(1);
+        mDispatcher.registerListener(new GattEventListener.Adapter() {
+            @Override
+            public void onServicesDiscovered(String address) {
+                discovered.countDown();
+            }
+        }, GattEventDispatcher.DIRECT_EXECUTOR);
+        assertTrue(mConnection.connect());
+        assertTrue(discovered.await(5, TimeUnit.SECONDS));
+
+        GattServiceInfo service = mConnection.getCachedService();
+        assertNotNull(service);
+        GattCharacteristicInfo state = service.getCharacteristic(
+                SampleGattAttributes.CRYPTO_SIGNER_RESPONSE_STATE_UUID);
+        mConnection.setCharacteristicNotification(state, true).get(5, TimeUnit.SECONDS);
+        return service;
+    }
+
+    private UnlockHandshake.Outcome runHandshake(GattServiceInfo service, byte[] publicKey)
+            throws Exception {
+        return runHandshake(service, publicKey, false);
+    }
+
+    private UnlockHandshake.Outcome runHandshake(GattServiceInfo service, byte[] publicKey,
+                                                 boolean streamed) throws Exception {
+        return runHandshake(service,
+                new SignatureVerifier("RSA", "SHA256withRSA", publicKey), streamed);
+    }
+
+    private UnlockHandshake.Outcome runHandshake(GattServiceInfo service,
+                                                 SignatureVerifier verifier, boolean streamed)
+            throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<UnlockHandshake.Outcome> outcome =
+                new AtomicReference<UnlockHandshake.Outcome>();
+        UnlockHandshake handshake = new UnlockHandshake(mConnection, mDispatcher, service,
+                verifier, new UnlockHandshake.Listener() {
+            @Override
+            public void onHandshakeComplete(String address, UnlockHandshake.Outcome result) {
+                outcome.set(result);
+                done.countDown();
+            }
+        });
+        handshake.setResponseStreamed(streamed);
+        handshake.setFastWrite(mFastWrite);
+        mHandshake = handshake;
+        handshake.start(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        verifier.shutdown();
+        return outcome.get();
+    }
+}
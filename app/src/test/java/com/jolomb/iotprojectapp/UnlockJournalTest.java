@@ -0,0 +1,189 @@
+package com.jolomb.iotprojectapp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link UnlockJournal}.
+ */
+public class UnlockJournalTest {
+
+    private static final String ADDRESS = "00:11:22:AA:BB:CC";
+    private static final int SEGMENT_SIZE = 1024;
+
+    private File mDirectory;
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = File.createTempFile("journal", "");
+        assertTrue(mDirectory.delete());
+        mExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+        final File files[] = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    private List<Integer> readFirstPhases(UnlockJournal journal) throws Exception {
+        final List<Integer> phases = new ArrayList<Integer>();
+        journal.read(new UnlockJournal.Visitor() {
+            @Override
+            public void onEntry(UnlockJournal.Entry entry) {
+                phases.add(entry.getPhaseMicros(0));
+            }
+        });
+        return phases;
+    }
+
+    @Test
+    public void append_roundTrips() throws Exception {
+        UnlockJournal journal = new UnlockJournal(mDirectory, SEGMENT_SIZE, 4, mExecutor);
+        byte challenge[] = new byte[] { 1, 2, 3, 4 };
+        journal.append(ADDRESS, challenge, LockState.SIGNATURE_DONE, new int[] { 1500, -1, 42 })
+                .get();
+
+        final List<UnlockJournal.Entry> entries = new ArrayList<UnlockJournal.Entry>();
+        assertEquals(1, journal.read(new UnlockJournal.Visitor() {
+            @Override
+            public void onEntry(UnlockJournal.Entry entry) {
+                entries.add(entry);
+            }
+        }));
+        UnlockJournal.Entry entry = entries.get(0);
+        assertEquals(ADDRESS, entry.getAddress());
+        assertEquals(LockState.SIGNATURE_DONE, entry.getOutcome());
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(challenge),
+                entry.getChallengeHash());
+        assertEquals(3, entry.getPhaseCount());
+        assertEquals(1500, entry.getPhaseMicros(0));
+        assertEquals(-1, entry.getPhaseMicros(1));
+        assertEquals(42, entry.getPhaseMicros(2));
+        assertEquals(-1, entry.getPhaseMicros(3));
+    }
+
+    @Test
+    public void append_rotatesAndDropsOldestSegments() throws Exception {
+        UnlockJournal journal = new UnlockJournal(mDirectory, SEGMENT_SIZE, 2, mExecutor);
+        for (int i = 0; i < 40; i++) {
+            journal.append(ADDRESS, null, LockState.INCORRECT_KEY, new int[] { i });
+        }
+        journal.flush().get();
+
+        assertEquals(2, mDirectory.listFiles().length);
+        List<Integer> phases = readFirstPhases(journal);
+        assertFalse(phases.isEmpty());
+        assertTrue(phases.size() < 40);
+        // Oldest first, ending with the last append.
+        for (int i = 0; i < phases.size(); i++) {
+            assertEquals(40 - phases.size() + i, (int) phases.get(i));
+        }
+    }
+
+    @Test
+    public void reopen_skipsTornRecordAndKeepsAppending() throws Exception {
+        UnlockJournal journal = new UnlockJournal(mDirectory, SEGMENT_SIZE, 4, mExecutor);
+        journal.append(ADDRESS, null, LockState.SIGNATURE_DONE, new int[] { 1 });
+        journal.append(ADDRESS, null, LockState.SIGNATURE_DONE, new int[] { 2 }).get();
+        journal.flush().get();
+
+        // Corrupt the body of the second record, as if the process died while writing it.
+        File segment = mDirectory.listFiles()[0];
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        raf.seek(8);
+        int second = 8 + 8 + raf.readInt();
+        raf.seek(second + 8);
+        raf.writeLong(-1L);
+        raf.close();
+
+        UnlockJournal reopened = new UnlockJournal(mDirectory, SEGMENT_SIZE, 4, mExecutor);
+        assertEquals(1, readFirstPhases(reopened).size());
+        reopened.append(ADDRESS, null, LockState.SIGNATURE_DONE, new int[] { 3 }).get();
+        List<Integer> phases = readFirstPhases(reopened);
+        assertEquals(2, phases.size());
+        assertEquals(1, (int) phases.get(0));
+        assertEquals(3, (int) phases.get(1));
+    }
+
+    @Test
+    public void outcome_storedAsStableCode() throws Exception {
+        UnlockJournal journal = new UnlockJournal(mDirectory, SEGMENT_SIZE, 4, mExecutor);
+        for (LockState outcome : LockState.values()) {
+            journal.append(ADDRESS, new byte[] { 1 }, outcome, new int[0]).get();
+        }
+        final List<LockState> outcomes = new ArrayList<LockState>();
+        journal.read(new UnlockJournal.Visitor() {
+            @Override
+            public void onEntry(UnlockJournal.Entry entry) {
+                outcomes.add(entry.getOutcome());
+            }
+        });
+        assertEquals(Arrays.asList(LockState.values()), outcomes);
+
+        // The first record is UNKNOWN; its outcome byte follows the time, address and hash.
+        RandomAccessFile segment = new RandomAccessFile(mDirectory.listFiles()[0], "r");
+        try {
+            segment.seek(8 + 8 + 8 + 6 + 32);
+            assertEquals('U', segment.read());
+        } finally {
+            segment.close();
+        }
+    }
+
+    @Test
+    public void read_decodesOrdinalOutcomeOfVersionOneSegment() throws Exception {
+        UnlockJournal journal = new UnlockJournal(mDirectory, SEGMENT_SIZE, 4, mExecutor);
+        journal.append(ADDRESS, new byte[] { 1 }, LockState.SIGNATURE_DONE, new int[0]).get();
+
+        // Rewrite the segment the way version 1 stored it: INCORRECT_KEY had ordinal 6.
+        RandomAccessFile segment = new RandomAccessFile(mDirectory.listFiles()[0], "rw");
+        try {
+            segment.seek(4);
+            segment.writeInt(1);
+            segment.seek(8);
+            int length = segment.readInt();
+            byte body[] = new byte[length];
+            segment.seek(16);
+            segment.readFully(body);
+            body[8 + 6 + 32] = 6;
+            CRC32 crc = new CRC32();
+            crc.update(body, 0, length);
+            segment.seek(12);
+            segment.writeInt((int) crc.getValue());
+            segment.write(body);
+        } finally {
+            segment.close();
+        }
+
+        final List<LockState> outcomes = new ArrayList<LockState>();
+        new UnlockJournal(mDirectory, SEGMENT_SIZE, 4, mExecutor).read(
+                new UnlockJournal.Visitor() {
+            @Override
+            public void onEntry(UnlockJournal.Entry entry) {
+                outcomes.add(entry.getOutcome());
+            }
+        });
+        assertEquals(Arrays.asList(LockState.INCORRECT_KEY), outcomes);
+    }
+}
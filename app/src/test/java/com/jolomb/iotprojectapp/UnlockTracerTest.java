@@ -0,0 +1,70 @@
+package com.jolomb.iotprojectapp;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link UnlockTracer}.
+ */
+public class UnlockTracerTest {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+
+    @Test
+    public void phases_goIntoHistograms() throws Exception {
+        UnlockTracer tracer = new UnlockTracer(4);
+        tracer.span(ADDRESS, UnlockTracer.Phase.SCAN, 1000000, 3000000);
+        tracer.begin(ADDRESS, UnlockTracer.Phase.CONNECT);
+        tracer.end(ADDRESS, UnlockTracer.Phase.CONNECT);
+        // Not started: ignored.
+        tracer.end(ADDRESS, UnlockTracer.Phase.VERIFY);
+        tracer.finish(ADDRESS, "granted");
+
+        assertEquals(1, tracer.getHistogram(UnlockTracer.Phase.SCAN).getCount());
+        assertEquals(2000, tracer.getHistogram(UnlockTracer.Phase.SCAN).getMaxMicros());
+        assertEquals(1, tracer.getHistogram(UnlockTracer.Phase.CONNECT).getCount());
+        assertEquals(0, tracer.getHistogram(UnlockTracer.Phase.VERIFY).getCount());
+        String summary = tracer.appendSummary(new StringBuilder()).toString();
+        assertTrue(summary.contains("SCAN: n=1 p50=2.00"));
+    }
+
+    @Test
+    public void begin_restartsFinishedPhase() throws Exception {
+        UnlockTracer tracer = new UnlockTracer(2);
+        tracer.begin(ADDRESS, UnlockTracer.Phase.CONNECT);
+        tracer.end(ADDRESS, UnlockTracer.Phase.CONNECT);
+        // A reconnect before the outcome.
+        tracer.begin(ADDRESS, UnlockTracer.Phase.CONNECT);
+        Thread.sleep(2);
+        tracer.end(ADDRESS, UnlockTracer.Phase.CONNECT);
+        int phaseMicros[] = new int[UnlockTracer.Phase.values().length];
+        tracer.finish(ADDRESS, "granted", phaseMicros);
+
+        assertEquals(2, tracer.getHistogram(UnlockTracer.Phase.CONNECT).getCount());
+        assertTrue(phaseMicros[UnlockTracer.Phase.CONNECT.ordinal()] >= 2000);
+        StringWriter writer = new StringWriter();
+        tracer.writeChromeTrace(writer);
+        assertFalse(writer.toString().contains("\"dur\":-"));
+    }
+
+    @Test
+    public void chromeTrace_keepsLastHandshakes() throws Exception {
+        UnlockTracer tracer = new UnlockTracer(2);
+        for (int i = 0; i < 3; i++) {
+            long start = 1000000L * (i + 1);
+            tracer.span(ADDRESS, UnlockTracer.Phase.CONNECT, start, start + 500000);
+            tracer.finish(ADDRESS, "round" + i);
+        }
+        StringWriter writer = new StringWriter();
+        tracer.writeChromeTrace(writer);
+        String trace = writer.toString();
+        assertTrue(trace.startsWith("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[{"));
+        assertFalse(trace.contains("round0"));
+        assertTrue(trace.indexOf("round1") < trace.indexOf("round2"));
+        assertTrue(trace.contains("\"ts\":0,\"dur\":500"));
+        assertTrue(trace.endsWith("]}"));
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jolomb.iotprojectapp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code SampleGattAttributes} lookups for a known and an unknown UUID, against the legacy
+ * service walk that turned every UUID into a string, looked it up in a string map and threw for
+ * unknown ones.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AttributeLookupBenchmark {
+
+    private final UUID mKnown = SampleGattAttributes.CRYPTO_SIGNER_RESPONSE_STATE_UUID;
+    private final UUID mUnknown = UUID.fromString("00002a00-0000-1000-8000-00805f9b34fb");
+    private final HashMap<String, String> mLegacyAttributes = new HashMap<String, String>();
+
+    @Setup
+    public void setUp() {
+        mLegacyAttributes.put(SampleGattAttributes.CRYPTO_SIGNER_RESPONSE_STATE,
+                "State of the signed response");
+    }
+
+    private String legacyLookupNoDefault(String uuid) {
+        String name = mLegacyAttributes.get(uuid);
+        if (name == null) {
+            throw new RuntimeException();
+        }
+        return name;
+    }
+
+    @Benchmark
+    public String legacyLookupKnown() {
+        return legacyLookupNoDefault(mKnown.toString());
+    }
+
+    @Benchmark
+    public String legacyLookupUnknown() {
+        try {
+            return legacyLookupNoDefault(mUnknown.toString());
+        } catch (RuntimeException ex) {
+            return null;
+        }
+    }
+
+    @Benchmark
+    public String lookupKnown() {
+        return SampleGattAttributes.lookup(mKnown);
+    }
+
+    @Benchmark
+    public String lookupUnknown() {
+        return SampleGattAttributes.lookup(mUnknown);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jolomb.iotprojectapp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hex encoding and decoding of characteristic values. The {@code legacy*} benchmarks are the
+ * {@code String.format} / {@code split} code that used to run in
+ * {@code BluetoothLeService.broadcastUpdate} and the {@code DeviceControlActivity} receiver.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HexCodecBenchmark {
+
+    // 1 byte for the lock state, 128 bytes for an RSA 1024 signature.
+    @Param({ "1", "128" })
+    public int length;
+
+    private byte mData[];
+    private String mText;
+    private char mChars[];
+    private byte mDecoded[];
+
+    @Setup
+    public void setUp() {
+        mData = new byte[length];
+        new Random(42).nextBytes(mData);
+        mText = HexCodec.toHexString(mData);
+        mChars = new char[length * 2];
+        mDecoded = new byte[length];
+    }
+
+    @Benchmark
+    public String legacyEncode() {
+        final StringBuilder stringBuilder = new StringBuilder(mData.length);
+        for (byte byteChar : mData)
+            stringBuilder.append(String.format("%02X ", byteChar));
+        return stringBuilder.toString();
+    }
+
+    @Benchmark
+    public byte[] legacyDecode() {
+        String elements[] = mText.split(" ");
+        byte byteElements[] = new byte[elements.length];
+        for (int i = 0; i < elements.length; i++)
+            byteElements[i] = (byte) Integer.parseInt(elements[i], 16);
+        return byteElements;
+    }
+
+    @Benchmark
+    public String toHexString() {
+        return HexCodec.toHexString(mData);
+    }
+
+    @Benchmark
+    public char[] encodeIntoBuffer() {
+        HexCodec.encode(mData, 0, mData.length, mChars, 0);
+        return mChars;
+    }
+
+    @Benchmark
+    public int decodeIntoBuffer() {
+        return HexCodec.decode(mText, mDecoded);
+    }
+}
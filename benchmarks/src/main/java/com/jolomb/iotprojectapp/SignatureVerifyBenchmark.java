@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jolomb.iotprojectapp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.Signature;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SHA256withRSA verification of a signed response, with the key and {@code Signature} built
+ * for every response as the activity used to do, through a reused {@code SignatureVerifier},
+ * and through the built in {@code RsaSha256Verifier} on its own and behind the
+ * {@code SignatureVerifier}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SignatureVerifyBenchmark {
+
+    private final static String SIGNATURE_ALGORITHM = "SHA256withRSA";
+
+    private byte mEncodedKey[];
+    private byte mChallenge[];
+    private byte mSignature[];
+    private SignatureVerifier mVerifier;
+    private SignatureVerifier mBuiltInVerifier;
+    private RsaSha256Verifier mRsaVerifier;
+
+    @Setup
+    public void setUp() throws Exception {
+        final KeyPair keyPair = SimulatedCryptoLock.generateKeyPair();
+        mEncodedKey = keyPair.getPublic().getEncoded();
+        mChallenge = new byte[SimulatedCryptoLock.CHALLENGE_LENGTH];
+        for (int i = 0; i < mChallenge.length; i++) {
+            mChallenge[i] = (byte) i;
+        }
+        final Signature signer = Signature.getInstance(SIGNATURE_ALGORITHM);
+        signer.initSign(keyPair.getPrivate());
+        signer.update(mChallenge);
+        mSignature = signer.sign();
+        mVerifier = new SignatureVerifier("RSA", SIGNATURE_ALGORITHM, mEncodedKey);
+        mBuiltInVerifier = new SignatureVerifier("RSA", SIGNATURE_ALGORITHM, mEncodedKey);
+        mBuiltInVerifier.setBuiltInRsaEnabled(true);
+        mRsaVerifier = new RsaSha256Verifier((RSAPublicKey) keyPair.getPublic());
+    }
+
+    @TearDown
+    public void tearDown() {
+        mVerifier.shutdown();
+        mBuiltInVerifier.shutdown();
+    }
+
+    @Benchmark
+    public boolean verifyWithoutReuse() throws Exception {
+        final Signature publicSignature = Signature.getInstance(SIGNATURE_ALGORITHM);
+        final KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+        publicSignature.initVerify(keyFactory.generatePublic(
+                new X509EncodedKeySpec(mEncodedKey)));
+        publicSignature.update(mChallenge);
+        return publicSignature.verify(mSignature);
+    }
+
+    @Benchmark
+    public boolean verifyWithReuse() throws Exception {
+        return mVerifier.verify(mChallenge, mSignature);
+    }
+
+    @Benchmark
+    public boolean verifyBuiltIn() throws Exception {
+        return mRsaVerifier.verify(mChallenge, 0, mChallenge.length,
+                mSignature, 0, mSignature.length);
+    }
+
+    @Benchmark
+    public boolean verifyBuiltInWithReuse() throws Exception {
+        return mBuiltInVerifier.verify(mChallenge, mSignature);
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jolomb.iotprojectapp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.KeyPair;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * One full unlock round against {@code SimulatedCryptoLock} over a {@code GattConnection}:
+ * challenge write, state notification, response read and verification. With no simulated
+ * latency this measures the app side of the pipeline.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SimulatedHandshakeBenchmark {
+
+    private final static String ADDRESS = "00:11:22:33:44:55";
+
+    @Param({ "0" })
+    public long latencyMs;
+
+    private static class MemoryStorage implements GattServiceCache.Storage {
+        private final Map<String, String> mValues = new HashMap<String, String>();
+
+        @Override
+        public synchronized String load(String key) {
+            return mValues.get(key);
+        }
+
+        @Override
+        public synchronized void store(String key, String value) {
+            mValues.put(key, value);
+        }
+
+        @Override
+        public synchronized void remove(String key) {
+            mValues.remove(key);
+        }
+    }
+
+    private ScheduledExecutorService mExecutor;
+    private GattEventDispatcher mDispatcher;
+    private GattConnection mConnection;
+    private GattServiceInfo mService;
+    private GattCharacteristicInfo mStateCharacteristic;
+    private SignatureVerifier mVerifier;
+    private byte mChallenge[];
+
+    @Setup
+    public void setUp() throws Exception {
+        final KeyPair keyPair = SimulatedCryptoLock.generateKeyPair();
+        mExecutor = Executors.newScheduledThreadPool(2);
+        mDispatcher = new GattEventDispatcher();
+        mVerifier = new SignatureVerifier("RSA", "SHA256withRSA",
+                keyPair.getPublic().getEncoded());
+        mVerifier.prepare();
+        mConnection = new GattConnection(ADDRESS, new GattTransport.Factory() {
+            @Override
+            public GattTransport create(String address, GattTransport.Callback callback) {
+                final SimulatedCryptoLock lock = new SimulatedCryptoLock(address, keyPair,
+                        callback, mExecutor, 1);
+                lock.setLatency(latencyMs, 0);
+                return lock;
+            }
+        }, mDispatcher, mExecutor, new GattServiceCache(new MemoryStorage(),
+                SampleGattAttributes.CRYPTO_SIGNER_SERVICE_UUID));
+
+        final CountDownLatch discovered = new CountDownLatch(1);
+        mDispatcher.registerListener(new GattEventListener.Adapter() {
+            @Override
+            public void onServicesDiscovered(String address) {
+                discovered.countDown();
+            }
+        }, GattEventDispatcher.DIRECT_EXECUTOR);
+        mConnection.connect();
+        if (!discovered.await(5, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Simulated lock did not connect");
+        }
+        mService = mConnection.getCachedService();
+        mStateCharacteristic = mService.getCharacteristic(
+                SampleGattAttributes.CRYPTO_SIGNER_RESPONSE_STATE_UUID);
+        mConnection.setCharacteristicNotification(mStateCharacteristic, true)
+                .get(5, TimeUnit.SECONDS);
+        mChallenge = new byte[SimulatedCryptoLock.CHALLENGE_LENGTH];
+    }
+
+    @TearDown
+    public void tearDown() {
+        mConnection.close();
+        mVerifier.shutdown();
+        mExecutor.shutdownNow();
+    }
+
+    @Benchmark
+    public UnlockHandshake.Outcome handshake() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<UnlockHandshake.Outcome> outcome =
+                new AtomicReference<UnlockHandshake.Outcome>();
+        mChallenge[0]++;
+        new UnlockHandshake(mConnection, mDispatcher, mService, mVerifier,
+                new UnlockHandshake.Listener() {
+            @Override
+            public void onHandshakeComplete(String address, UnlockHandshake.Outcome result) {
+                outcome.set(result);
+                done.countDown();
+            }
+        }).start(mChallenge);
+        if (!done.await(5, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Handshake timed out");
+        }
+        // Back to W for the next round, like the reset button does.
+        mConnection.writeCharacteristic(mStateCharacteristic,
+                new byte[] { SimulatedCryptoLock.STATE_DONE });
+        mConnection.writeCharacteristic(mStateCharacteristic,
+                new byte[] { SimulatedCryptoLock.STATE_WAITING_FOR_INPUT, 0 })
+                .get(5, TimeUnit.SECONDS);
+        return outcome.get();
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jolomb.iotprojectapp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of journaling an unlock attempt, including the hop to the journal thread and the write
+ * into the mapped segment, and of a sequential read of the whole journal.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UnlockJournalBenchmark {
+
+    private final static String ADDRESS = "00:11:22:AA:BB:CC";
+
+    private File mDirectory;
+    private UnlockJournal mJournal;
+    private byte mChallenge[];
+    private int mPhaseMicros[];
+    private final UnlockJournal.Visitor mVisitor = new UnlockJournal.Visitor() {
+        @Override
+        public void onEntry(UnlockJournal.Entry entry) {
+        }
+    };
+
+    @Setup
+    public void setUp() throws Exception {
+        mDirectory = File.createTempFile("journal", "");
+        mDirectory.delete();
+        mJournal = new UnlockJournal(mDirectory);
+        mChallenge = new byte[SimulatedCryptoLock.CHALLENGE_LENGTH];
+        mPhaseMicros = new int[UnlockTracer.Phase.values().length];
+        for (int i = 0; i < mPhaseMicros.length; i++) {
+            mPhaseMicros[i] = 1000 * (i + 1);
+        }
+        // Fill the journal so the read benchmark walks every segment.
+        for (int i = 0; i < 10000; i++) {
+            mJournal.append(ADDRESS, mChallenge, LockState.SIGNATURE_DONE, mPhaseMicros);
+        }
+        mJournal.flush().get();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        mJournal.flush().get();
+        mJournal.close();
+        final File files[] = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    @Benchmark
+    public Boolean appendAndWait() throws Exception {
+        return mJournal.append(ADDRESS, mChallenge, LockState.SIGNATURE_DONE, mPhaseMicros)
+                .get();
+    }
+
+    @Benchmark
+    public int readAll() throws Exception {
+        return mJournal.read(mVisitor);
+    }
+}